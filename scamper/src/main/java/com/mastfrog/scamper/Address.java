@@ -19,29 +19,133 @@
 package com.mastfrog.scamper;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 
 /**
  * Wrapper for an address, serializable as JSON.
+ * <p>
+ * If the host is an IP address, it is also kept as its raw bytes, which
+ * equality and the (cached) hash code use, so addresses compare equal however
+ * the IP address was written; host names are compared as strings.
+ * <p>
+ * A multi-homed peer can be given alternate hosts - other addresses of the
+ * same SCTP endpoint, on the same port. The host is the primary path; if
+ * connecting to it fails, the alternates are tried in turn before backing
+ * off, and once connected, the kernel fails over between whichever paths the
+ * peer advertises. Alternates do not take part in equality: an address names
+ * an association by its primary path.
  *
  * @author Tim Boudreau
  */
 public class Address {
     public final String host;
     public final int port;
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    public final List<String> alternates;
+    private final byte[] addressBytes;
+    private final int hash;
+
+    public Address(String origin, int port) {
+        this(origin, port, Collections.emptyList());
+    }
 
     @JsonCreator
-    public Address(@JsonProperty("origin") String origin, @JsonProperty("port") int port) {
-        this.host = origin;
-        this.port = port;
+    public Address(@JsonProperty("origin") String origin, @JsonProperty("port") int port,
+            @JsonProperty("alternates") List<String> alternates) {
+        this(origin, port, literalBytes(origin), alternates);
     }
     
     public Address(InetSocketAddress a) {
-        this(a.getAddress().getHostAddress(), a.getPort());
+        this(a.getAddress().getHostAddress(), a.getPort(), a.getAddress().getAddress(), null);
+    }
+
+    private Address(String host, int port, byte[] addressBytes, List<String> alternates) {
+        this.host = host;
+        this.port = port;
+        this.alternates = alternates == null || alternates.isEmpty() ? Collections.emptyList()
+                : Collections.unmodifiableList(new ArrayList<>(alternates));
+        this.addressBytes = addressBytes;
+        int h = addressBytes != null ? Arrays.hashCode(addressBytes) : Objects.hashCode(host);
+        this.hash = 37 * h + port;
+    }
+
+    /**
+     * Get the bytes of an IP address literal, without resolving host names.
+     */
+    private static byte[] literalBytes(String host) {
+        if (host == null || host.isEmpty()) {
+            return null;
+        }
+        if (host.indexOf(':') >= 0) {
+            try {
+                // IPv6 literals are parsed, never looked up
+                return InetAddress.getByName(host).getAddress();
+            } catch (UnknownHostException ex) {
+                return null;
+            }
+        }
+        byte[] result = new byte[4];
+        int octet = 0;
+        int value = -1;
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (value > 255) {
+                    return null;
+                }
+            } else if (c == '.' && value >= 0 && octet < 3) {
+                result[octet++] = (byte) value;
+                value = -1;
+            } else {
+                return null;
+            }
+        }
+        if (octet != 3 || value < 0) {
+            return null;
+        }
+        result[3] = (byte) value;
+        return result;
     }
     
+    /**
+     * Create an address for the same primary path and port, with alternate
+     * hosts for a multi-homed peer.
+     *
+     * @param hosts Other addresses of the peer, in the order to try them
+     * @return A new address
+     */
+    public Address withAlternates(String... hosts) {
+        return new Address(host, port, addressBytes, Arrays.asList(hosts));
+    }
+
+    /**
+     * Get the host to connect to on some attempt: the primary path first,
+     * then each alternate in turn.
+     *
+     * @param attempt The number of consecutive failed attempts so far
+     * @return A host
+     */
+    String hostForAttempt(int attempt) {
+        int ix = Math.floorMod(attempt, alternates.size() + 1);
+        return ix == 0 ? host : alternates.get(ix - 1);
+    }
+
+    @JsonIgnore
+    public boolean isMultiHomed() {
+        return !alternates.isEmpty();
+    }
+
     public InetSocketAddress toSocketAddress() {
         return InetSocketAddress.createUnresolved(host, port);
     }
@@ -52,14 +156,14 @@ public class Address {
 
     @Override
     public int hashCode() {
-        int hash = 7;
-        hash = 37 * hash + Objects.hashCode(this.host);
-        hash = 37 * hash + this.port;
         return hash;
     }
 
     @Override
     public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
         if (obj == null) {
             return false;
         }
@@ -67,9 +171,12 @@ public class Address {
             return false;
         }
         final Address other = (Address) obj;
-        if (!Objects.equals(this.host, other.host)) {
+        if (this.port != other.port || this.hash != other.hash) {
             return false;
         }
-        return this.port == other.port;
+        if (this.addressBytes != null && other.addressBytes != null) {
+            return Arrays.equals(this.addressBytes, other.addressBytes);
+        }
+        return Objects.equals(this.host, other.host);
     }
 }
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Everything scamper itself keeps for one association, in a single channel
+ * attribute: the remote address, the pool slot it belongs to, its stream
+ * counters, the stream the last inbound message arrived on and, created only
+ * once needed, its fragment queues and, if the peer is multi-homed, its
+ * {@link SctpPaths}. It is also the
+ * one listener on the channel's close future, and cleans up each part.
+ * <p>
+ * With tens of thousands of associations open, per-channel overhead adds
+ * up: this replaces four attributes, a pair of counter objects holding an
+ * AtomicInteger each and two close listeners with one object of a few
+ * fields. Optional features (write coalescing, backpressure, virtual
+ * threads, least-pending stream selection) still keep their own attribute,
+ * created only on channels that use them.
+ *
+ * @author Tim Boudreau
+ */
+final class AssociationState implements ChannelFutureListener {
+
+    private static final AttributeKey<AssociationState> KEY
+            = AttributeKey.valueOf(AssociationState.class, "state");
+    private static final AtomicIntegerFieldUpdater<AssociationState> NEXT_IN
+            = AtomicIntegerFieldUpdater.newUpdater(AssociationState.class, "nextIn");
+    private static final AtomicIntegerFieldUpdater<AssociationState> NEXT_OUT
+            = AtomicIntegerFieldUpdater.newUpdater(AssociationState.class, "nextOut");
+
+    private volatile Address remote;
+    private volatile Associations.Asso member;
+    // Only touched on the channel's event loop
+    private InboundSctpMessageToByteBufDecoder.Fragments fragments;
+    private volatile SctpPaths paths;
+    // Written before member is published, read after
+    private int maxIn;
+    private int maxOut;
+    private volatile int nextIn;
+    private volatile int nextOut;
+    private volatile int stream;
+
+    AssociationState() {
+    }
+
+    /**
+     * Get the state of a channel, creating it the first time.
+     *
+     * @param channel The channel
+     * @return Its state
+     */
+    static AssociationState of(Channel channel) {
+        Attribute<AssociationState> attr = channel.attr(KEY);
+        AssociationState result = attr.get();
+        if (result == null) {
+            AssociationState created = new AssociationState();
+            result = attr.setIfAbsent(created);
+            if (result == null) {
+                result = created;
+                channel.closeFuture().addListener(created);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the state of a channel if it has any, without creating it.
+     *
+     * @param channel The channel
+     * @return Its state or null
+     */
+    static AssociationState peek(Channel channel) {
+        return channel.hasAttr(KEY) ? channel.attr(KEY).get() : null;
+    }
+
+    /**
+     * Get the remote address, computing it the first time.
+     *
+     * @param channel The channel this is the state of
+     * @return The address
+     */
+    Address remoteAddress(Channel channel) {
+        Address result = remote;
+        if (result == null) {
+            // Racing threads compute equal addresses
+            remote = result = addressOf(channel);
+        }
+        return result;
+    }
+
+    private static Address addressOf(Channel channel) {
+        SocketAddress address = channel.remoteAddress();
+        if (address instanceof InetSocketAddress) {
+            return new Address((InetSocketAddress) address);
+        }
+        // A Unix domain socket's peer usually has no path; if not, the
+        // channel itself is the only thing to tell peers apart by
+        String path = Transport.hasNativeTransport() ? UnixDomainSockets.path(address) : null;
+        return new Address(path == null || path.isEmpty() ? channel.id().asLongText() : path, 0);
+    }
+
+    Associations.Asso member() {
+        return member;
+    }
+
+    /**
+     * Record the pool slot the association fills, and the stream counts
+     * negotiated for it.
+     */
+    void acquired(Associations.Asso member, int maxIn, int maxOut) {
+        this.maxIn = maxIn;
+        this.maxOut = maxOut;
+        this.member = member;
+    }
+
+    int nextInStream() {
+        return next(NEXT_IN, true);
+    }
+
+    int nextOutStream() {
+        return next(NEXT_OUT, false);
+    }
+
+    /**
+     * Get the number of outbound streams, or 0 if not yet known.
+     */
+    int outStreams() {
+        return member == null ? 0 : maxOut;
+    }
+
+    private int next(AtomicIntegerFieldUpdater<AssociationState> counter, boolean in) {
+        if (member == null) {
+            return 0;
+        }
+        // Only read once member has been seen, so it is not stale
+        int max = in ? maxIn : maxOut;
+        return max <= 1 ? 0 : Math.floorMod(counter.getAndIncrement(this), max);
+    }
+
+    /**
+     * Get the stream the last inbound message arrived on.
+     *
+     * @return A stream id
+     */
+    int stream() {
+        return stream;
+    }
+
+    void stream(int stream) {
+        this.stream = stream;
+    }
+
+    InboundSctpMessageToByteBufDecoder.Fragments fragments() {
+        return fragments;
+    }
+
+    void fragments(InboundSctpMessageToByteBufDecoder.Fragments fragments) {
+        this.fragments = fragments;
+    }
+
+    /**
+     * Get the paths of a multi-homed association.
+     *
+     * @return The paths, or null if the peer has one address
+     */
+    SctpPaths paths() {
+        return paths;
+    }
+
+    void paths(SctpPaths paths) {
+        this.paths = paths;
+    }
+
+    @Override
+    public void operationComplete(ChannelFuture future) throws Exception {
+        Associations.Asso m = member;
+        if (m != null) {
+            m.closed();
+        }
+        InboundSctpMessageToByteBufDecoder.Fragments f = fragments;
+        if (f != null) {
+            fragments = null;
+            f.release();
+        }
+    }
+}
@@ -20,20 +20,37 @@ package com.mastfrog.scamper;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
-import com.mastfrog.util.thread.AtomicRoundRobin;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_ASSOCIATIONS_PER_ADDRESS;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_MAX_ASSOCIATIONS;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_RECONNECT_BACKOFF_MAX_MILLIS;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_RECONNECT_BACKOFF_MILLIS;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_VIRTUAL_STREAMS;
+import com.mastfrog.settings.Settings;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelException;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.sctp.nio.NioSctpChannel;
-import io.netty.util.Attribute;
-import io.netty.util.AttributeKey;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.sctp.SctpChannel;
+import io.netty.channel.sctp.SctpChannelConfig;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -41,6 +58,38 @@ import java.util.logging.Logger;
  * Maintains a mapping of addresses and open channels, and manages a rotating
  * list of SCTP "channels" (multiplexed payloads) so that messages do not block
  * each other.
+ * <p>
+ * Each address maps to a pool of associations - one unless
+ * <code>sctp.associations.per.address</code> says otherwise - so that heavy
+ * traffic to a single peer is not limited to the one event loop a single
+ * channel is registered on. A send with a key always uses the same member of
+ * the pool; other sends use the least loaded one. A member which fails or
+ * closes is dropped from its slot alone, and reconnected the next time a
+ * send is routed to that slot.
+ * <p>
+ * After a failed connect, the address backs off: until a delay which doubles
+ * with each consecutive failure (with jitter, up to a maximum) has passed,
+ * connects to it return the failed future at once rather than trying again,
+ * so a burst of sends to a peer which is down costs one connect attempt, not
+ * one per send. Once the delay has passed, an address nothing has connected
+ * to since is forgotten, as new addresses are added.
+ * <p>
+ * Each address records when a message was last sent to or received from
+ * it. The associations to an address idle for longer than
+ * <code>sctp.association.idle.millis</code> are closed by
+ * {@link IdleAssociationReaper}, and once there are associations to more
+ * than <code>sctp.max.associations</code> addresses, those of the least
+ * recently used are closed - gracefully, once anything already written to
+ * them has been flushed.
+ * <p>
+ * The mapping is a ConcurrentHashMap, and each association publishes its
+ * connect future and stream counters through volatile fields, so sends to an
+ * address already connected to take no locks; only the first connect to an
+ * address synchronizes, on that association alone. What is kept per channel
+ * lives in one {@link AssociationState}.
+ * <p>
+ * Over a {@link Transport} other than SCTP, a connection stands in for an
+ * association, with <code>sctp.virtual.streams</code> streams each way.
  *
  * @author Tim Boudreau
  */
@@ -48,209 +97,786 @@ import java.util.logging.Logger;
 final class Associations {
 
     private final ChannelConfigurer config;
-    private final Map<Address, Asso> associations = new HashMap<>();
-    private static final AttributeKey<AtomicRoundRobin> NEXT_IN_STREAM
-            = AttributeKey.valueOf(Associations.class, "instream");
-    private static final AttributeKey<AtomicRoundRobin> NEXT_OUT_STREAM
-            = AttributeKey.valueOf(Associations.class, "outstream");
+    private final ConcurrentMap<Address, Pool> associations = new ConcurrentHashMap<>();
+    // Pools which failed to connect, oldest failure first
+    private final ConcurrentLinkedQueue<Pool> failing = new ConcurrentLinkedQueue<>();
     private static final Logger logger = Logger.getLogger(Associations.class.getName());
     private final ErrorHandler handler;
+    private final int poolSize;
+    private final Backoff backoff;
+    private final int maxAssociations;
+    private final Object evictionLock = new Object();
+    private static final long CLOSE_POLL_MILLIS = 10;
+    private static final int CLOSE_POLL_ATTEMPTS = 500;
+    private static final long DEFAULT_BACKOFF_MILLIS = 100;
+    private static final long DEFAULT_BACKOFF_MAX_MILLIS = 30000;
+    static final int DEFAULT_VIRTUAL_STREAMS = 16;
+    private static final int MAX_VIRTUAL_STREAMS = 65535;
+    private final int virtualStreams;
 
     @Inject
+    Associations(final ChannelConfigurer config, ErrorHandler handler, Settings settings) {
+        this(config, handler, settings.getInt(SETTINGS_KEY_ASSOCIATIONS_PER_ADDRESS, 1),
+                new Backoff(settings.getLong(SETTINGS_KEY_RECONNECT_BACKOFF_MILLIS, DEFAULT_BACKOFF_MILLIS),
+                        settings.getLong(SETTINGS_KEY_RECONNECT_BACKOFF_MAX_MILLIS, DEFAULT_BACKOFF_MAX_MILLIS)),
+                settings.getInt(SETTINGS_KEY_MAX_ASSOCIATIONS, -1),
+                settings.getInt(SETTINGS_KEY_VIRTUAL_STREAMS, DEFAULT_VIRTUAL_STREAMS));
+    }
+
     Associations(final ChannelConfigurer config, ErrorHandler handler) {
+        this(config, handler, 1);
+    }
+
+    Associations(final ChannelConfigurer config, ErrorHandler handler, int poolSize) {
+        this(config, handler, poolSize, new Backoff(DEFAULT_BACKOFF_MILLIS, DEFAULT_BACKOFF_MAX_MILLIS));
+    }
+
+    Associations(final ChannelConfigurer config, ErrorHandler handler, int poolSize, Backoff backoff) {
+        this(config, handler, poolSize, backoff, -1);
+    }
+
+    Associations(final ChannelConfigurer config, ErrorHandler handler, int poolSize, Backoff backoff, int maxAssociations) {
+        this(config, handler, poolSize, backoff, maxAssociations, DEFAULT_VIRTUAL_STREAMS);
+    }
+
+    Associations(final ChannelConfigurer config, ErrorHandler handler, int poolSize, Backoff backoff, int maxAssociations, int virtualStreams) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException(SETTINGS_KEY_ASSOCIATIONS_PER_ADDRESS
+                    + " must be at least 1: " + poolSize);
+        }
+        if (virtualStreams < 1 || virtualStreams > MAX_VIRTUAL_STREAMS) {
+            throw new IllegalArgumentException(SETTINGS_KEY_VIRTUAL_STREAMS
+                    + " must be between 1 and " + MAX_VIRTUAL_STREAMS + ": " + virtualStreams);
+        }
         this.config = config;
         this.handler = handler;
+        this.poolSize = poolSize;
+        this.backoff = backoff;
+        this.maxAssociations = maxAssociations;
+        this.virtualStreams = virtualStreams;
     }
 
     public ChannelFuture connect(Address address) {
-        Asso result;
-        synchronized (this) {
-            result = associations.get(address);
-            if (result == null) {
-                result = new Asso(address);
-                associations.put(address, result);
+        return connect(address, null);
+    }
+
+    /**
+     * Get a connection to an address, opening one if necessary; with a key,
+     * always the same member of the address's pool.
+     *
+     * @param address The address
+     * @param key A stream-affinity key, or null to use the least loaded
+     * member
+     * @return A future for the channel
+     */
+    public ChannelFuture connect(Address address, Object key) {
+        Pool pool = pool(address);
+        while (pool.evicted) {
+            // Evicted between looking it up and now
+            associations.remove(address, pool);
+            pool = pool(address);
+        }
+        return pool.pick(key).connect();
+    }
+
+    /**
+     * Open every association in an address's pool which is not already open
+     * or connecting.
+     *
+     * @param address The address
+     * @return A future for each member of the pool
+     */
+    List<ChannelFuture> connectAll(Address address) {
+        Pool pool = pool(address);
+        while (pool.evicted) {
+            associations.remove(address, pool);
+            pool = pool(address);
+        }
+        List<ChannelFuture> result = new ArrayList<>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            result.add(pool.member(i).connect());
+        }
+        return result;
+    }
+
+    /**
+     * Get the pool for an address, creating it - and evicting the least
+     * recently used if that makes too many - if there is none, and mark it
+     * used.
+     */
+    private Pool pool(Address address) {
+        Pool result = associations.get(address);
+        if (result == null) {
+            forgetFailed();
+            result = associations.computeIfAbsent(address, Pool::new);
+            if (maxAssociations > 0 && associations.size() > maxAssociations) {
+                evictLeastRecentlyUsed(result);
             }
         }
-        return result.connect();
+        result.touch();
+        return result;
     }
 
-    void ensureRegistered(ChannelHandlerContext ctx) {
-        Address addr = new Address((InetSocketAddress) ctx.channel().remoteAddress());
-        Asso asso = associations.get(addr);
+    /**
+     * Close the associations of the least recently used addresses until no
+     * more than the maximum remain. This scans every address, but only runs
+     * when a new one pushes the table over its limit.
+     */
+    private void evictLeastRecentlyUsed(Pool keep) {
+        synchronized (evictionLock) {
+            while (associations.size() > maxAssociations) {
+                Pool oldest = null;
+                for (Pool pool : associations.values()) {
+                    if (pool != keep && (oldest == null || pool.lastUsed < oldest.lastUsed)) {
+                        oldest = pool;
+                    }
+                }
+                if (oldest == null) {
+                    return;
+                }
+                logger.log(Level.FINE, "Evict least recently used {0}", oldest.address);
+                evict(oldest);
+            }
+        }
+    }
+
+    /**
+     * Close the associations of every address unused for the passed time.
+     *
+     * @param idleMillis The idle time
+     * @return The number of addresses evicted
+     */
+    int evictIdle(long idleMillis) {
+        long cutoff = System.currentTimeMillis() - idleMillis;
+        int result = 0;
+        for (Pool pool : associations.values()) {
+            if (pool.lastUsed < cutoff) {
+                logger.log(Level.FINE, "Evict idle {0}", pool.address);
+                evict(pool);
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Forget addresses which failed to connect, whose retry window has
+     * passed and which nothing has tried to connect to since, so addresses
+     * which never answer do not pile up. Runs as new addresses are added.
+     */
+    private void forgetFailed() {
+        long now = System.nanoTime();
+        Pool pool;
+        while ((pool = failing.poll()) != null) {
+            if (pool.lastFailure == null) {
+                // Connected since
+                pool.queued = false;
+            } else if (now - pool.forgetAt < 0) {
+                // Retry windows differ, so later ones may have passed, but
+                // they are caught by the next call
+                failing.add(pool);
+                return;
+            } else {
+                pool.queued = false;
+                if (pool.isEmpty()) {
+                    associations.remove(pool.address, pool);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get a failed future for a connect which could not even be attempted,
+     * the way Netty's bootstrap reports a channel it could not create: a
+     * DefaultChannelPromise whose listeners are notified on
+     * GlobalEventExecutor. Its channel was never registered, so no promise
+     * can be made with it; Sender returns such a future as it is.
+     */
+    private ChannelFuture failedConnect(Exception cause) {
+        RuntimeException thrown = cause instanceof RuntimeException
+                ? (RuntimeException) cause : new ChannelException(cause);
+        return new Bootstrap().group(config.group)
+                .channelFactory((io.netty.channel.ChannelFactory<Channel>) () -> {
+                    throw thrown;
+                })
+                .handler(new ChannelInboundHandlerAdapter())
+                .register();
+    }
+
+    private void evict(Pool pool) {
+        pool.evicted = true;
+        if (associations.remove(pool.address, pool)) {
+            for (int i = 0; i < poolSize; i++) {
+                Asso asso = pool.members.get(i);
+                if (asso != null) {
+                    asso.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Mark the address a channel is connected to as used; called as
+     * messages are read from it.
+     *
+     * @param channel The channel
+     */
+    void touch(Channel channel) {
+        AssociationState state = AssociationState.peek(channel);
+        Asso asso = state == null ? null : state.member();
         if (asso != null) {
+            asso.pool.touch();
+        }
+    }
+
+    /**
+     * Get when a message was last sent to or received from an address.
+     *
+     * @param address The address
+     * @return Milliseconds since the epoch, or 0 if there is no association
+     * to it
+     */
+    long lastUsed(Address address) {
+        Pool pool = associations.get(address);
+        return pool == null ? 0 : pool.lastUsed;
+    }
+
+    /**
+     * Get when a message was last sent to or received from each address
+     * there are associations to.
+     *
+     * @return A map of addresses to milliseconds since the epoch
+     */
+    Map<Address, Long> lastUsed() {
+        Map<Address, Long> result = new HashMap<>();
+        for (Pool pool : associations.values()) {
+            result.put(pool.address, pool.lastUsed);
+        }
+        return result;
+    }
+
+    int size() {
+        return associations.size();
+    }
+
+    /**
+     * Register the association for a channel which the remote end opened,
+     * if its address's pool has a free slot. Called when the channel becomes
+     * active; later calls return immediately.
+     *
+     * @param ctx The channel context
+     */
+    void ensureRegistered(ChannelHandlerContext ctx) {
+        AssociationState state = AssociationState.of(ctx.channel());
+        if (state.member() != null) {
             return;
         }
-        synchronized (this) {
-            asso = associations.get(addr);
-            if (asso == null) {
-                asso = new Asso(addr, (NioSctpChannel) ctx.channel());
-                asso.future = ctx.channel().newSucceededFuture();
-                ctx.channel().closeFuture().addListener(asso);
-                associations.put(addr, asso);
-            }
+        Pool pool = pool(state.remoteAddress(ctx.channel()));
+        if (pool.isFull()) {
+            return;
         }
+        pool.adopt(ctx.channel());
     }
 
     public void register(Channel channel) {
-        getForKey(NEXT_OUT_STREAM, channel);
+        state(channel);
     }
 
-    private int getForKey(AttributeKey<AtomicRoundRobin> key, Channel channel) {
-        Attribute<AtomicRoundRobin> attr = channel.attr(key);
-        AtomicRoundRobin r = attr.get();
-        if (r == null && channel instanceof NioSctpChannel) {
-            synchronized (this) {
-                NioSctpChannel ch = (NioSctpChannel) channel;
-                Address address = new Address((InetSocketAddress) ch.remoteAddress());
-                Asso asso = new Asso(address, ch);
-                associations.put(address, asso);
-                attr = channel.attr(key);
-                r = attr.get();
-            }
+    private AssociationState state(Channel channel) {
+        AssociationState state = AssociationState.of(channel);
+        if (state.member() == null && Transport.of(channel) != null) {
+            pool(state.remoteAddress(channel)).adopt(channel);
         }
-        return r == null ? 0 : r.get();
+        return state;
     }
 
     public int nextInStream(Channel channel) {
-        return getForKey(NEXT_IN_STREAM, channel);
+        return state(channel).nextInStream();
     }
 
     public int nextOutStream(Channel channel) {
-        return getForKey(NEXT_OUT_STREAM, channel);
+        return state(channel).nextOutStream();
     }
 
-    public synchronized int nextInStream(Address addr) {
-        Asso asso = associations.get(addr);
+    /**
+     * Get the number of outbound streams recorded for a channel, or 0 if it
+     * is not one scamper opened or accepted.
+     */
+    int outStreams(Channel channel) {
+        return state(channel).outStreams();
+    }
+
+    /**
+     * Get an open channel for an address, if there is one and it has
+     * finished connecting.
+     *
+     * @param addr The address
+     * @return A channel or null
+     */
+    Channel channel(Address addr) {
+        Pool pool = associations.get(addr);
+        if (pool != null) {
+            for (int i = 0; i < poolSize; i++) {
+                Asso asso = pool.members.get(i);
+                Channel result = asso == null ? null : asso.channel();
+                if (result != null) {
+                    return result;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get every open channel for an address.
+     *
+     * @param addr The address
+     * @return A list of channels, possibly empty
+     */
+    List<Channel> channels(Address addr) {
+        List<Channel> result = new ArrayList<>(poolSize);
+        Pool pool = associations.get(addr);
+        if (pool != null) {
+            for (int i = 0; i < poolSize; i++) {
+                Asso asso = pool.members.get(i);
+                Channel channel = asso == null ? null : asso.channel();
+                if (channel != null) {
+                    result.add(channel);
+                }
+            }
+        }
+        return result;
+    }
+
+    public int nextInStream(Address addr) {
+        Asso asso = first(addr);
         return asso == null ? 0 : asso.nextInStream();
     }
 
-    public synchronized int nextOutStream(Address addr) {
-        Asso asso = associations.get(addr);
+    public int nextOutStream(Address addr) {
+        Asso asso = first(addr);
         return asso == null ? 0 : asso.nextOutStream();
     }
 
-    private final class Asso implements ChannelFutureListener {
+    private Asso first(Address addr) {
+        Pool pool = associations.get(addr);
+        if (pool != null) {
+            for (int i = 0; i < poolSize; i++) {
+                Asso asso = pool.members.get(i);
+                if (asso != null) {
+                    return asso;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Register stream counters for an address with no channel, for tests.
+     */
+    void registerForTest(Address address, int maxInStreams, int maxOutStreams) {
+        Pool pool = new Pool(address);
+        Asso asso = new Asso(pool, 0);
+        AssociationState state = new AssociationState();
+        state.acquired(asso, maxInStreams, maxOutStreams);
+        asso.state = state;
+        pool.members.set(0, asso);
+        associations.put(address, pool);
+    }
+
+    /**
+     * Get the slot of the pool member a send with the passed key would use,
+     * without connecting it, for tests.
+     */
+    int slotForTest(Address address, Object key) {
+        return pool(address).pick(key).index;
+    }
+
+    /**
+     * Record a failed connect to an address, as if an attempt had failed,
+     * for tests.
+     */
+    void failedForTest(Address address, ChannelFuture failure) {
+        pool(address).failed(failure);
+    }
+
+    /**
+     * Close a channel on its event loop once its outbound buffer is empty,
+     * polling until it is, or until the attempts run out. Closing an SCTP
+     * association delivers what the kernel already holds before shutting it
+     * down.
+     */
+    private static void closeWhenFlushed(Channel channel, int attemptsLeft) {
+        channel.eventLoop().execute(() -> {
+            ChannelOutboundBuffer buffer = channel.unsafe().outboundBuffer();
+            if (buffer == null || buffer.totalPendingWriteBytes() == 0 || attemptsLeft <= 0) {
+                channel.close();
+                return;
+            }
+            channel.flush();
+            channel.eventLoop().schedule(() -> closeWhenFlushed(channel, attemptsLeft - 1),
+                    CLOSE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    private static int spread(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Reconnect delays: exponential, from an initial delay up to a maximum,
+     * with "equal jitter" - a random amount up to half the delay is taken off
+     * - so that clients which lost a peer together do not all retry at the
+     * same instant.
+     */
+    static final class Backoff {
+
+        private final long initialMillis;
+        private final long maxMillis;
+
+        Backoff(long initialMillis, long maxMillis) {
+            if (initialMillis < 0 || maxMillis < initialMillis) {
+                throw new IllegalArgumentException("Reconnect backoff must satisfy 0 <= initial <= max: "
+                        + initialMillis + ", " + maxMillis);
+            }
+            this.initialMillis = initialMillis;
+            this.maxMillis = maxMillis;
+        }
+
+        /**
+         * Get the delay after some number of consecutive failures.
+         *
+         * @param failures The failure count, at least 1
+         * @return A delay in milliseconds
+         */
+        long delayMillis(int failures) {
+            long delay = initialMillis;
+            for (int i = 1; i < failures && delay < maxMillis; i++) {
+                delay *= 2;
+            }
+            delay = Math.min(delay, maxMillis);
+            long half = delay / 2;
+            return half == 0 ? delay : delay - ThreadLocalRandom.current().nextLong(half + 1);
+        }
+    }
+
+    /**
+     * The associations to one address, each in its own slot, and the state of
+     * reconnecting to it.
+     */
+    private final class Pool {
 
         private final Address address;
-        private ChannelFuture future;
-        private AtomicRoundRobin inStreams;
-        private AtomicRoundRobin outStreams;
+        private final AtomicReferenceArray<Asso> members;
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+        private volatile ChannelFuture lastFailure;
+        private volatile long retryAt;
+        private volatile long forgetAt;
+        private volatile boolean queued;
+        private volatile long lastUsed = System.currentTimeMillis();
+        private volatile boolean evicted;
 
-        Asso(Address address) {
+        Pool(Address address) {
             this.address = address;
+            this.members = new AtomicReferenceArray<>(poolSize);
         }
 
-        Asso(Address address, NioSctpChannel channel) {
-            this(address);
-            onChannelAcquired(channel);
+        /**
+         * Choose a member by key or, without one, the least loaded - an
+         * empty slot first, so the pool fills up, then the one with the most
+         * room in its outbound buffer.
+         */
+        Asso pick(Object key) {
+            if (poolSize == 1) {
+                return member(0);
+            }
+            if (key != null) {
+                return member(Math.floorMod(spread(key), poolSize));
+            }
+            int start = Math.floorMod(next.getAndIncrement(), poolSize);
+            int best = -1;
+            long bestRoom = -1;
+            for (int i = 0; i < poolSize; i++) {
+                int ix = (start + i) % poolSize;
+                Asso asso = members.get(ix);
+                if (asso == null) {
+                    return member(ix);
+                }
+                Channel channel = asso.channel();
+                // Still connecting - sends to it wait, so count it as full
+                long room = channel == null ? 0 : channel.bytesBeforeUnwritable();
+                if (room > bestRoom) {
+                    bestRoom = room;
+                    best = ix;
+                }
+            }
+            return member(best);
         }
 
-        public synchronized int nextInStream() {
-            return inStreams == null ? 0 : inStreams.next();
+        Asso member(int ix) {
+            Asso result = members.get(ix);
+            while (result == null) {
+                Asso created = new Asso(this, ix);
+                if (members.compareAndSet(ix, null, created)) {
+                    return created;
+                }
+                result = members.get(ix);
+            }
+            return result;
         }
 
-        public synchronized int nextOutStream() {
-            return outStreams == null ? 0 : outStreams.next();
+        boolean isEmpty() {
+            for (int i = 0; i < poolSize; i++) {
+                if (members.get(i) != null) {
+                    return false;
+                }
+            }
+            return true;
         }
 
-        public synchronized ChannelFuture connect() {
-            ChannelFuture result;
-            try {
-                if (future != null) {
-                    logger.log(Level.FINER, "Reuse connection {0}:{1}", new Object[]{address.host, address.port});
-                    return future;
+        boolean isFull() {
+            for (int i = 0; i < poolSize; i++) {
+                if (members.get(i) == null) {
+                    return false;
                 }
-                logger.log(Level.FINER, "Open connection {0}:{1}", new Object[]{address.host, address.port});
-                Bootstrap bootstrap = new Bootstrap();
-                config.init(bootstrap);
-                //need sync here?
-                result = bootstrap.connect(address.host, address.port);
-                future = result;
-                result.addListener(this);
-            } catch (Exception e) {
-                result = null; // XXX how to create a failed future with no channel?
-                handler.onError(null, e);
             }
-            return result;
+            return true;
+        }
+
+        /**
+         * Put a channel which is already open into a free slot, or if there
+         * is none, only set up its stream counters.
+         */
+        void adopt(Channel channel) {
+            for (int i = 0; i < poolSize; i++) {
+                Asso asso = new Asso(this, i, channel.newSucceededFuture());
+                if (members.compareAndSet(i, null, asso)) {
+                    asso.onChannelAcquired(channel);
+                    return;
+                }
+            }
+            new Asso(this, -1, channel.newSucceededFuture()).onChannelAcquired(channel);
+        }
+
+        /**
+         * Empty a member's slot, so the next send routed to it reconnects,
+         * and forget the pool once every slot is empty - unless it failed to
+         * connect and its retry window has not passed yet, in which case it
+         * is forgotten later, as other addresses are added.
+         */
+        void remove(int ix, Asso asso) {
+            if (ix < 0 || !members.compareAndSet(ix, asso, null) || !isEmpty()) {
+                return;
+            }
+            if (lastFailure == null || System.nanoTime() - forgetAt >= 0) {
+                associations.remove(address, this);
+            }
+        }
+
+        /**
+         * Get the failed connect future to return in place of connecting, if
+         * the address is backing off.
+         */
+        ChannelFuture backingOff() {
+            ChannelFuture failure = lastFailure;
+            return failure != null && System.nanoTime() - retryAt < 0 ? failure : null;
+        }
+
+        void failed(ChannelFuture failure) {
+            int count = failures.incrementAndGet();
+            // Try each host of a multi-homed address before backing off
+            int hosts = address.alternates.size() + 1;
+            long delay = count % hosts == 0 ? backoff.delayMillis(count / hosts) : 0;
+            long now = System.nanoTime();
+            retryAt = now + TimeUnit.MILLISECONDS.toNanos(delay);
+            // Between hosts there is no delay, but which host is next must
+            // survive until the next connect
+            forgetAt = now + TimeUnit.MILLISECONDS.toNanos(Math.max(delay, backoff.initialMillis));
+            lastFailure = failure;
+            if (!queued) {
+                queued = true;
+                failing.add(this);
+            }
+            logger.log(Level.FINE, "Back off connecting to {0} for {1}ms", new Object[]{address, delay});
+        }
+
+        void touch() {
+            lastUsed = System.currentTimeMillis();
+        }
+
+        void connected() {
+            if (lastFailure != null) {
+                lastFailure = null;
+                failures.set(0);
+            }
+        }
+    }
+
+    final class Asso implements ChannelFutureListener {
+
+        private final Pool pool;
+        private final int index;
+        private final Address address;
+        private volatile ChannelFuture future;
+        // The state of its channel, once connected
+        private volatile AssociationState state;
+
+        Asso(Pool pool, int index) {
+            this.pool = pool;
+            this.index = index;
+            this.address = pool.address;
+        }
+
+        Asso(Pool pool, int index, ChannelFuture future) {
+            this(pool, index);
+            this.future = future;
+        }
+
+        int nextInStream() {
+            AssociationState s = state;
+            return s == null ? 0 : s.nextInStream();
+        }
+
+        int nextOutStream() {
+            AssociationState s = state;
+            return s == null ? 0 : s.nextOutStream();
         }
 
-        public void close() {
-            ChannelFuture f;
+        Channel channel() {
+            ChannelFuture f = future;
+            return f != null && f.isSuccess() ? f.channel() : null;
+        }
+
+        ChannelFuture connect() {
+            ChannelFuture result = future;
+            if (result != null) {
+                logger.log(Level.FINER, "Reuse connection {0}:{1}", new Object[]{address.host, address.port});
+                return result;
+            }
+            if ((result = pool.backingOff()) != null) {
+                // Empty this slot again, so it is not mistaken for a member
+                pool.remove(index, this);
+                return result;
+            }
+            // Only the first connect to this slot gets here; the lock is
+            // this association's, so connects to other slots proceed
             synchronized (this) {
-                f = future;
+                if ((result = future) != null) {
+                    return result;
+                }
+                try {
+                    String host = address.hostForAttempt(pool.failures.get());
+                    logger.log(Level.FINER, "Open connection {0}:{1}", new Object[]{host, address.port});
+                    Bootstrap bootstrap = new Bootstrap();
+                    config.init(bootstrap);
+                    result = bootstrap.connect(config.transport.remoteAddress(host, address.port));
+                    future = result;
+                } catch (Exception e) {
+                    handler.onError(null, e);
+                    result = failedConnect(e);
+                    future = result;
+                }
             }
+            result.addListener(this);
+            return result;
+        }
+
+        /**
+         * Close this association once anything written to it has been
+         * flushed, or abandon its connect if that is still in progress.
+         */
+        void close() {
+            ChannelFuture f = future;
             if (f != null) {
-                f.cancel(true);
-                f.channel().close();
-                synchronized (Associations.this) {
-                    Asso c = associations.get(address);
-                    if (c == this) {
-                        associations.remove(address);
+                pool.remove(index, this);
+                if (f.isDone()) {
+                    if (f.isSuccess()) {
+                        closeWhenFlushed(f.channel(), CLOSE_POLL_ATTEMPTS);
                     }
+                } else {
+                    f.cancel(true);
+                    f.channel().close();
                 }
             }
         }
 
-        void onChannelAcquired(NioSctpChannel channel) {
-            synchronized (this) {
-                inStreams = new AtomicRoundRobin(channel.config().getInitMaxStreams().maxInStreams());
-                outStreams = new AtomicRoundRobin(channel.config().getInitMaxStreams().maxOutStreams());
-                channel.attr(NEXT_IN_STREAM).set(inStreams);
-                channel.attr(NEXT_OUT_STREAM).set(outStreams);
-            }
-            channel.closeFuture().addListener(new ChannelFutureListener() {
-
-                @Override
-                public void operationComplete(ChannelFuture future) throws Exception {
-                    logger.log(Level.FINER, "Closed connection {0}:{1}", new Object[]{address.host, address.port});
-                    synchronized (Associations.this) {
-                        if (Associations.this.associations.get(address) == Asso.this) {
-                            Associations.this.associations.remove(address);
-                        }
-                    }
+        void onChannelAcquired(Channel channel) {
+            AssociationState s = AssociationState.of(channel);
+            if (!(channel instanceof SctpChannel)) {
+                s.acquired(this, virtualStreams, virtualStreams);
+                state = s;
+                return;
+            }
+            SctpChannel sctp = (SctpChannel) channel;
+            SctpChannelConfig cfg = sctp.config();
+            s.acquired(this, cfg.getInitMaxStreams().maxInStreams(), cfg.getInitMaxStreams().maxOutStreams());
+            state = s;
+            if (address.isMultiHomed()) {
+                usePrimaryPath(sctp, s);
+            } else {
+                SctpPaths.of(sctp, s);
+            }
+        }
+
+        /**
+         * Make the primary host of a multi-homed address the association's
+         * primary path, in case it was connected through an alternate.
+         */
+        private void usePrimaryPath(SctpChannel channel, AssociationState s) {
+            Set<InetSocketAddress> remote = channel.allRemoteAddresses();
+            InetSocketAddress primary = null;
+            for (InetSocketAddress candidate : remote) {
+                if (address.equals(new Address(candidate))) {
+                    primary = candidate;
+                    break;
+                }
+            }
+            if (primary != null && !primary.equals(channel.remoteAddress())
+                    && channel instanceof PrimaryPathSctpChannel) {
+                try {
+                    ((PrimaryPathSctpChannel) channel).setPrimaryAddress(primary);
+                } catch (IOException ex) {
+                    logger.log(Level.FINE, "Could not make " + primary + " the primary path", ex);
+                    primary = null;
                 }
-            });
+            }
+            s.paths(new SctpPaths(remote, primary == null ? channel.remoteAddress() : primary));
+        }
+
+        /**
+         * Called by the channel's state when it closes.
+         */
+        void closed() {
+            logger.log(Level.FINER, "Closed connection {0}:{1}", new Object[]{address.host, address.port});
+            pool.remove(index, this);
         }
 
         @Override
         @SuppressWarnings("ThrowableResultIgnored")
         public void operationComplete(ChannelFuture future) throws Exception {
-            NioSctpChannel channel;
             if (future.cause() != null) {
-                synchronized (Associations.this) {
-                    if (associations.get(address) == Asso.this) {
-                        associations.remove(address);
-                    }
-                }
+                // Record the failure before emptying the slot, so the next
+                // connect backs off rather than trying again at once
+                pool.failed(future);
+                pool.remove(index, this);
                 Throwable c = future.cause();
                 while (c.getCause() != null) {
                     c = c.getCause();
                 }
                 logger.log(Level.FINER, "Failed connecting to " + address, c);
-                synchronized (Associations.this) {
-                    Asso a = associations.get(address);
-                    if (a == Asso.this) {
-                        associations.remove(address);
-                    }
-                }
                 return;
             } else {
                 logger.log(Level.FINER, "Opened connection {0}:{1}", new Object[]{address.host, address.port});
             }
-            synchronized (this) {
-                channel = (NioSctpChannel) future.channel();
-            }
+            pool.connected();
             try {
-                onChannelAcquired(channel);
+                onChannelAcquired(future.channel());
             } catch (ChannelException ex) {
                 logger.log(Level.FINE, "Failed to connect", ex);
                 if (ex.getCause() instanceof ClosedChannelException) {
-                    synchronized (Associations.this) {
-                        Asso a = associations.get(address);
-                        if (a == Asso.this) {
-                            associations.remove(address);
-                        }
-                    }
+                    pool.remove(index, this);
                 }
             }
         }
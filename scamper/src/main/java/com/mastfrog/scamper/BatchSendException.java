@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The cause of failure of the future returned by
+ * {@link Sender#sendAll(io.netty.channel.Channel, java.lang.Iterable)} if one
+ * or more messages in the batch could not be encoded or written. Messages not
+ * listed here were sent successfully.
+ *
+ * @author Tim Boudreau
+ */
+public final class BatchSendException extends IOException {
+
+    private final List<Failure> failures;
+
+    BatchSendException(List<Failure> failures) {
+        this(sorted(failures), failures.size());
+    }
+
+    private BatchSendException(List<Failure> sorted, int count) {
+        super(count + " message(s) in batch failed", sorted.get(0).cause);
+        this.failures = Collections.unmodifiableList(sorted);
+        for (int i = 1; i < sorted.size(); i++) {
+            addSuppressed(sorted.get(i).cause);
+        }
+    }
+
+    private static List<Failure> sorted(List<Failure> failures) {
+        List<Failure> result = new ArrayList<>(failures);
+        Collections.sort(result, Comparator.comparingInt(f -> f.index));
+        return result;
+    }
+
+    /**
+     * Get the messages which failed, in the order they appeared in the
+     * batch.
+     *
+     * @return The failures
+     */
+    public List<Failure> failures() {
+        return failures;
+    }
+
+    /**
+     * One message which could not be sent.
+     */
+    public static final class Failure {
+
+        /**
+         * The position of the message in the batch.
+         */
+        public final int index;
+        /**
+         * The message.
+         */
+        public final Message<?> message;
+        /**
+         * Why it failed.
+         */
+        public final Throwable cause;
+
+        Failure(int index, Message<?> message, Throwable cause) {
+            this.index = index;
+            this.message = message;
+            this.cause = cause;
+        }
+
+        @Override
+        public String toString() {
+            return index + ": " + message + " - " + cause;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of threads with a bounded queue which the {@link MessageHandler}s
+ * bound to it run on, instead of the event loop the message arrived on, so
+ * that slow or blocking handlers cannot stall other associations served by
+ * that loop, and handlers in different bulkheads cannot starve each other.
+ * Messages are decoded on the event loop; replies are sent through
+ * {@link Sender} from the bulkhead's thread.
+ * <p>
+ * Defined with <code>withBulkhead()</code> on {@link ProtocolModule} or
+ * {@link SctpServerAndClientBuilder}, and named when binding a handler.
+ * Obtain one from {@link Bulkheads} to read its gauges.
+ *
+ * @author Tim Boudreau
+ */
+public final class Bulkhead {
+
+    private static final Logger logger = Logger.getLogger(Bulkhead.class.getName());
+    private final String name;
+    private final RejectionPolicy policy;
+    private final ThreadPoolExecutor executor;
+    private final LongAdder rejected = new LongAdder();
+
+    Bulkhead(String name, int threads, int queueCapacity, RejectionPolicy policy) {
+        this.name = name;
+        this.policy = policy;
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                new DefaultThreadFactory("scamper-" + name, true));
+    }
+
+    /**
+     * Run a handler for a message on this bulkhead's threads, or apply the
+     * rejection policy if its queue is full. A reference-counted payload is
+     * retained until the handler has run.
+     *
+     * @param ctx The channel context
+     * @param message The message
+     * @param task Calls the handler and sends any reply
+     * @throws Exception If the policy is CALLER_RUNS and the task throws
+     */
+    void execute(ChannelHandlerContext ctx, Message<?> message, Task task) throws Exception {
+        Object body = ReferenceCountUtil.retain(message.body);
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    ctx.fireExceptionCaught(t);
+                } finally {
+                    ReferenceCountUtil.release(body);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            ReferenceCountUtil.release(body);
+            rejected.increment();
+            switch (policy) {
+                case CALLER_RUNS:
+                    task.run();
+                    break;
+                case FAIL:
+                    ctx.fireExceptionCaught(ex);
+                    break;
+                default:
+                    logger.log(Level.FINE, "Bulkhead {0} full, dropping {1} from {2}",
+                            new Object[]{name, message.type, ctx.channel().remoteAddress()});
+            }
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public RejectionPolicy policy() {
+        return policy;
+    }
+
+    /**
+     * Get the number of messages waiting for a thread.
+     *
+     * @return A count
+     */
+    public int queued() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Get the number of threads currently running a handler.
+     *
+     * @return A count
+     */
+    public int active() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Get the number of messages whose handlers have finished running.
+     *
+     * @return A count
+     */
+    public long completed() {
+        return executor.getCompletedTaskCount();
+    }
+
+    /**
+     * Get the number of messages which arrived while the queue was full.
+     *
+     * @return A count
+     */
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "Bulkhead{" + name + ", queued=" + queued() + ", active=" + active()
+                + ", rejected=" + rejected() + ", policy=" + policy + "}";
+    }
+
+    interface Task {
+
+        void run() throws Exception;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.mastfrog.giulius.ShutdownHookRegistry;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The {@link Bulkhead}s defined for this injector, by name. Inject this to
+ * read their gauges.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+public final class Bulkheads implements Runnable {
+
+    private final Map<String, Bulkhead> bulkheads;
+
+    @Inject
+    Bulkheads(MessageHandlerMapping mapping) {
+        Map<String, Bulkhead> all = new LinkedHashMap<>();
+        mapping.forEachBulkhead(spec -> {
+            all.put(spec.name, new Bulkhead(spec.name, spec.threads, spec.queueCapacity, spec.policy));
+        });
+        bulkheads = ImmutableMap.copyOf(all);
+    }
+
+    @Inject(optional = true)
+    void shutdownWith(ShutdownHookRegistry reg) {
+        reg.add(this);
+    }
+
+    /**
+     * Get a bulkhead by name.
+     *
+     * @param name The name
+     * @return A bulkhead, or null if none has that name
+     */
+    public Bulkhead get(String name) {
+        return bulkheads.get(name);
+    }
+
+    public Collection<Bulkhead> all() {
+        return bulkheads.values();
+    }
+
+    @Override
+    public void run() {
+        for (Bulkhead b : bulkheads.values()) {
+            b.shutdown();
+        }
+    }
+
+    /**
+     * The definition of a bulkhead.
+     */
+    static final class Spec {
+
+        final String name;
+        final int threads;
+        final int queueCapacity;
+        final RejectionPolicy policy;
+
+        Spec(String name, int threads, int queueCapacity, RejectionPolicy policy) {
+            this.name = name;
+            this.threads = threads;
+            this.queueCapacity = queueCapacity;
+            this.policy = policy;
+        }
+    }
+}
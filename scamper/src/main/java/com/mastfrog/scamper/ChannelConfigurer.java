@@ -29,16 +29,15 @@ import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.sctp.SctpChannelOption;
-import io.netty.channel.sctp.nio.NioSctpChannel;
-import io.netty.channel.sctp.nio.NioSctpServerChannel;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
 
 /**
  * Initializes new Bootstrap and ServerBoostrap instances with channel options.
  * By default, for servers, sets <code>ChannelOption.SO_BACKLOG</code> to 1000
- * and for clients, sets <code>SctpChannelOption.SCTP_NODELAY</code> to true.
+ * and for clients, sets <code>SctpChannelOption.SCTP_NODELAY</code> (or
+ * <code>TCP_NODELAY</code> over TCP) to true. The channel types are those of
+ * the {@link Transport}.
  * <p>
  * If you use {@link SctpServerAndClientBuilder}, it will provide its own
  * implementation of this which will configure things as you have set them in
@@ -54,13 +53,19 @@ public class ChannelConfigurer {
     protected final EventLoopGroup worker;
     protected final Init init;
     protected final ByteBufAllocator alloc;
+    protected final Transport transport;
+
+    protected ChannelConfigurer(EventLoopGroup boss, EventLoopGroup worker, Init init, ByteBufAllocator alloc) {
+        this(boss, worker, init, alloc, Transport.SCTP);
+    }
 
     @Inject
-    protected ChannelConfigurer(@Named(GUICE_BINDING_SCAMPER_BOSS_THREADS) EventLoopGroup boss, @Named(GUICE_BINDING_SCAMPER_WORKER_THREADS) EventLoopGroup worker, Init init, @Named(GUICE_BINDING_SCAMPER_CODEC) ByteBufAllocator alloc) {
+    protected ChannelConfigurer(@Named(GUICE_BINDING_SCAMPER_BOSS_THREADS) EventLoopGroup boss, @Named(GUICE_BINDING_SCAMPER_WORKER_THREADS) EventLoopGroup worker, Init init, @Named(GUICE_BINDING_SCAMPER_CODEC) ByteBufAllocator alloc, Transport transport) {
         this.group = boss;
         this.worker = worker;
         this.init = init;
         this.alloc = alloc;
+        this.transport = transport;
     }
 
     /**
@@ -71,7 +76,7 @@ public class ChannelConfigurer {
      */
     protected ServerBootstrap init(ServerBootstrap b) {
         b = b.group(group, worker)
-                .channel(NioSctpServerChannel.class)
+                .channel(transport.serverChannelType())
                 .option(ChannelOption.SO_BACKLOG, 1000)
                 .option(ChannelOption.ALLOCATOR, alloc)
                 .handler(new LoggingHandler(LogLevel.INFO))
@@ -86,11 +91,13 @@ public class ChannelConfigurer {
      * @return The bootstrap
      */
     protected Bootstrap init(Bootstrap b) {
-        b = b.group(group).channel(NioSctpChannel.class)
-                .option(SctpChannelOption.SCTP_NODELAY, true)
+        b = b.group(group).channelFactory(transport.clientChannelFactory())
                 .option(ChannelOption.ALLOCATOR, alloc)
                 .handler(new LoggingHandler(LogLevel.INFO))
                 .handler(init);
+        if (transport.noDelayOption() != null) {
+            b = b.option(transport.noDelayOption(), true);
+        }
         return b;
     }
 }
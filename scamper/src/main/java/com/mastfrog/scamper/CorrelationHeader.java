@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import com.google.inject.Inject;
+import com.mastfrog.scamper.codec.MessageCodec;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+
+/**
+ * Optional header extension carrying the correlation id of a request or
+ * reply. It is written ahead of whatever the codec produces - a magic byte
+ * distinct from any codec's, a flags byte saying whether the message is a
+ * request or a reply, and the id as a long - so it works with any
+ * MessageCodec, and messages without it are unchanged on the wire.
+ *
+ * @author Tim Boudreau
+ */
+final class CorrelationHeader {
+
+    static final int MAGIC = 122;
+    static final int LENGTH = 10;
+    private static final byte REQUEST = 1;
+    private static final byte REPLY = 2;
+
+    private CorrelationHeader() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Determine if a message starts with the extension - the magic byte,
+     * and a flags byte which is one of those written.
+     */
+    private static boolean isPresent(ByteBuf buf) {
+        if (buf.readableBytes() < LENGTH) {
+            return false;
+        }
+        int ix = buf.readerIndex();
+        if (buf.getByte(ix) != MAGIC) {
+            return false;
+        }
+        byte flags = buf.getByte(ix + 1);
+        return flags == REQUEST || flags == REPLY;
+    }
+
+    /**
+     * Decode an inbound message, stripping the extension if present and
+     * passing the rest to the codec.
+     *
+     * @param codec The codec
+     * @param buf The message bytes
+     * @param ctx The channel context
+     * @param sctpChannel The SCTP stream the message arrived on
+     * @return A message type and buffer, with the correlation id set if there
+     * was one
+     */
+    static MessageTypeAndBuffer decode(MessageCodec codec, ByteBuf buf, ChannelHandlerContext ctx, int sctpChannel) {
+        int ix = buf.readerIndex();
+        if (!isPresent(buf)) {
+            return codec.decode(buf, ctx, sctpChannel);
+        }
+        byte flags = buf.getByte(ix + 1);
+        long id = buf.getLong(ix + 2);
+        // Slice, so a codec which resets the reader index does not see
+        // the extension
+        ByteBuf rest = buf.slice(ix + LENGTH, buf.readableBytes() - LENGTH);
+        return codec.decode(rest, ctx, sctpChannel).withCorrelation(id, flags == REPLY);
+    }
+
+    /**
+     * Decode just the header of the first fragment of a message, skipping
+     * the extension if present, for streaming.
+     *
+     * @param codec The codec
+     * @param buf The first fragment
+     * @param ctx The channel context
+     * @param sctpChannel The SCTP stream the message arrived on
+     * @return A message type and the payload in this fragment, or null if
+     * the codec cannot decode a header alone
+     * @see MessageCodec#decodeHeader(io.netty.buffer.ByteBuf, io.netty.channel.ChannelHandlerContext, int)
+     */
+    static MessageTypeAndBuffer decodeHeader(MessageCodec codec, ByteBuf buf, ChannelHandlerContext ctx, int sctpChannel) {
+        int ix = buf.readerIndex();
+        if (isPresent(buf)) {
+            buf = buf.slice(ix + LENGTH, buf.readableBytes() - LENGTH);
+        } else {
+            buf = buf.slice();
+        }
+        return codec.decodeHeader(buf, ctx, sctpChannel);
+    }
+
+    /**
+     * Write the extension into space reserved for it.
+     *
+     * @param buf The buffer
+     * @param index The index of the reserved space
+     * @param id The correlation id
+     * @param reply Whether the message is a reply
+     */
+    static void set(ByteBuf buf, int index, long id, boolean reply) {
+        buf.setByte(index, MAGIC);
+        buf.setByte(index + 1, reply ? REPLY : REQUEST);
+        buf.setLong(index + 2, id);
+    }
+
+    /**
+     * Prepend the extension to an encoded message.
+     *
+     * @param alloc An allocator
+     * @param encoded The message as encoded by the codec
+     * @param id The correlation id
+     * @param reply Whether the message is a reply
+     * @return A composite buffer
+     */
+    static ByteBuf prepend(ByteBufAllocator alloc, ByteBuf encoded, long id, boolean reply) {
+        ByteBuf head = alloc.buffer(LENGTH).writeZero(LENGTH);
+        set(head, 0, id, reply);
+        CompositeByteBuf result = alloc.compositeBuffer(2);
+        result.addComponents(true, head, encoded);
+        return result;
+    }
+
+    /**
+     * Created with the injector, to refuse a codec which claims the
+     * extension's magic number - its messages would be mistaken for the
+     * extension whenever their second byte happened to be a valid flag.
+     */
+    static final class CodecCheck {
+
+        @Inject
+        CodecCheck(MessageCodec codec) {
+            ByteBuf probe = Unpooled.buffer(1).writeByte(MAGIC);
+            try {
+                if (codec.accept(probe)) {
+                    throw new IllegalStateException(codec.getClass().getName()
+                            + " uses the magic number " + MAGIC
+                            + ", which is reserved for correlation ids");
+                }
+            } finally {
+                probe.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.mastfrog.giulius.ShutdownHookRegistry;
+import static com.mastfrog.scamper.ProtocolModule.GUICE_BINDING_SCAMPER_WORKER_THREADS;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_EVENT_LOOP_LAG_SAMPLE_MILLIS;
+import com.mastfrog.settings.Settings;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how late the worker event loops run a task scheduled on each of
+ * them every <code>sctp.event.loop.lag.sample.millis</code> milliseconds.
+ * Sampling is off unless that is set, since it starts every worker thread
+ * as soon as the injector is created. A loop which is busy running slow
+ * handlers runs it late, so this shows whether handlers need a
+ * {@link Bulkhead}, and whether one has helped. Inject this to read it.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+public final class EventLoopLag implements Runnable {
+
+    static final long DEFAULT_SAMPLE_MILLIS = 0;
+    private final List<Sampler> samplers = new ArrayList<>();
+    private final long intervalNanos;
+    private volatile boolean stopped;
+
+    @Inject
+    EventLoopLag(@Named(GUICE_BINDING_SCAMPER_WORKER_THREADS) EventLoopGroup workers, Settings settings, ShutdownHookRegistry reg) {
+        intervalNanos = TimeUnit.MILLISECONDS.toNanos(settings.getLong(SETTINGS_KEY_EVENT_LOOP_LAG_SAMPLE_MILLIS, DEFAULT_SAMPLE_MILLIS));
+        if (intervalNanos > 0) {
+            for (EventExecutor loop : workers) {
+                Sampler sampler = new Sampler(loop);
+                samplers.add(sampler);
+                sampler.schedule();
+            }
+            reg.add(this);
+        }
+    }
+
+    /**
+     * Get the greatest lag seen on any loop since the last reset.
+     *
+     * @param unit The unit to return
+     * @return The lag
+     */
+    public long maxLag(TimeUnit unit) {
+        long result = 0;
+        for (Sampler s : samplers) {
+            result = Math.max(result, s.max.get());
+        }
+        return unit.convert(result, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Get the greatest of the most recent lag measured on each loop.
+     *
+     * @param unit The unit to return
+     * @return The lag
+     */
+    public long lastLag(TimeUnit unit) {
+        long result = 0;
+        for (Sampler s : samplers) {
+            result = Math.max(result, s.last);
+        }
+        return unit.convert(result, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Clear the maximum lag, for example to compare before and after moving
+     * a handler to a bulkhead.
+     */
+    public void reset() {
+        for (Sampler s : samplers) {
+            s.max.set(0);
+        }
+    }
+
+    @Override
+    public void run() {
+        stopped = true;
+    }
+
+    private final class Sampler implements Runnable {
+
+        private final EventExecutor loop;
+        private final AtomicLong max = new AtomicLong();
+        private volatile long last;
+        private long expected;
+
+        Sampler(EventExecutor loop) {
+            this.loop = loop;
+        }
+
+        void schedule() {
+            if (stopped || loop.isShuttingDown()) {
+                return;
+            }
+            expected = System.nanoTime() + intervalNanos;
+            try {
+                loop.schedule(this, intervalNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException ex) {
+                // Shut down
+            }
+        }
+
+        @Override
+        public void run() {
+            long lag = Math.max(0, System.nanoTime() - expected);
+            last = lag;
+            max.accumulateAndGet(lag, Math::max);
+            schedule();
+        }
+    }
+}
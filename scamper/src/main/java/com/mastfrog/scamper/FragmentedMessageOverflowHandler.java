@@ -10,6 +10,13 @@ import io.netty.channel.sctp.SctpMessage;
  * number of bytes we will cache - if we go over that amount, this class will be
  * called. The default behavior is to dump the queue and close the channel.
  * <p>
+ * If <code>sctp.fragment.spill.threshold</code> is set, once the fragments
+ * queued for a stream pass that many bytes they are moved to a temporary file
+ * in <code>sctp.fragment.spill.dir</code> (the system temp dir by default),
+ * as are any further fragments of the same message, and the message is passed
+ * on as a memory-mapped view of the file. In that case this class is called
+ * only if a message exceeds <code>sctp.fragment.spill.max.bytes</code>.
+ * <p>
  * Bind your subclass with Guice if you want different behavior (for example, to
  * send a failure message to the client).
  *
@@ -19,6 +26,10 @@ public class FragmentedMessageOverflowHandler {
 
     public static final String SETTINGS_KEY_MAX_AGGREGATED_BYTES = "sctp.max.aggregated.bytes";
     public static final int DEFAULT_MAX_AGGREGATED_BYTES = 32768 * 4;
+    public static final String SETTINGS_KEY_SPILL_THRESHOLD = "sctp.fragment.spill.threshold";
+    public static final String SETTINGS_KEY_SPILL_MAX_BYTES = "sctp.fragment.spill.max.bytes";
+    public static final String SETTINGS_KEY_SPILL_DIR = "sctp.fragment.spill.dir";
+    public static final int DEFAULT_SPILL_MAX_BYTES = Integer.MAX_VALUE;
 
     protected FragmentedMessageOverflowHandler() {
 
@@ -33,7 +44,8 @@ public class FragmentedMessageOverflowHandler {
      * @param totalBytes The number of bytes queued, including those in the
      * current message
      * @param currentMessage The current message
-     * @param buffers The buffers
+     * @param buffers The buffers still held in memory - empty if they have
+     * been spilled to disk
      * @return true if the buffers should be discarded.  If you return false,
      * the condition will be ignored and an abusive client could run you out
      * of memory.
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.mastfrog.scamper.codec.MessageCodec;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.sctp.SctpMessage;
+import java.io.IOException;
+import java.net.SocketAddress;
+
+/**
+ * Does the work of the four handlers Init normally installs - fragment
+ * reassembly, codec decoding, payload decoding and dispatch to the
+ * MessageHandler - in a single pipeline stage, passing the SCTP stream id
+ * directly rather than through a channel attribute. Used in place of them
+ * when the setting <code>sctp.fused.pipeline</code> is true.
+ * <p>
+ * Since nothing sits between the SctpMessage and the handler, codecs that
+ * need to see raw ByteBufs in the pipeline (such as SslHandler) cannot be
+ * used in this mode.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+@ChannelHandler.Sharable
+final class FusedInboundHandler extends Netty5Handler<SctpMessage> {
+
+    private final InboundSctpMessageToByteBufDecoder reassembler;
+    private final InboundBytesDecoder lifecycle;
+    private final MessageCodec codec;
+    private final MessageDispatch dispatch;
+    private final MessageFilter filter;
+    private final Sender sender;
+    private final RequestCorrelator correlator;
+    private final MemoryGovernor memory;
+    private final VirtualThreadDispatch virtualThreads;
+    private final StreamPartitions partitions;
+
+    @Inject
+    FusedInboundHandler(InboundSctpMessageToByteBufDecoder reassembler, InboundBytesDecoder lifecycle,
+            MessageCodec codec, MessageDispatch dispatch, MessageFilter filter, Sender sender,
+            RequestCorrelator correlator, MemoryGovernor memory, VirtualThreadDispatch virtualThreads,
+            StreamPartitions partitions) {
+        super(SctpMessage.class);
+        this.reassembler = reassembler;
+        this.lifecycle = lifecycle;
+        this.codec = codec;
+        this.dispatch = dispatch;
+        this.filter = filter;
+        this.sender = sender;
+        this.correlator = correlator;
+        this.memory = memory;
+        this.virtualThreads = virtualThreads;
+        this.partitions = partitions;
+    }
+
+    @Override
+    public boolean isSharable() {
+        return true;
+    }
+
+    @Override
+    protected void messageReceived(ChannelHandlerContext ctx, SctpMessage msg) throws Exception {
+        ByteBuf content = reassembler.reassemble(ctx, msg);
+        if (content == null) {
+            // Fragment queued, or message dropped
+            return;
+        }
+        int bytes = content.readableBytes();
+        memory.acquire(bytes);
+        try {
+            MessageTypeAndBuffer decoded = CorrelationHeader.decode(codec, content, ctx, msg.streamIdentifier());
+            if (decoded.reply) {
+                correlator.complete(decoded);
+                return;
+            }
+            if (dispatch.stream(decoded, ctx)) {
+                return;
+            }
+            MessageDispatch.Entry<?> entry = dispatch.entryFor(decoded.messageType);
+            if (partitions.isEnabled()) {
+                partitions.execute(ctx, decoded, () -> dispatch(entry, decoded, ctx));
+            } else {
+                dispatch(entry, decoded, ctx);
+            }
+        } finally {
+            memory.release(bytes);
+            // The SctpMessage's own content is released when we return;
+            // a composite of merged fragments is ours to release
+            if (content != msg.content()) {
+                content.release();
+            }
+        }
+    }
+
+    private <M> void dispatch(MessageDispatch.Entry<M> entry, MessageTypeAndBuffer decoded, ChannelHandlerContext ctx) throws Exception {
+        // Decoded here, so the bulkhead's thread never touches the
+        // buffer unless the payload is one
+        Message<M> message = entry.decode(decoded);
+        if (entry.bulkhead != null) {
+            entry.bulkhead.execute(ctx, message, () -> handle(entry, message, ctx));
+        } else if (virtualThreads.isEnabled()) {
+            virtualThreads.execute(ctx, decoded.streamIdentifier, message, () -> handle(entry, message, ctx));
+        } else {
+            handle(entry, message, ctx);
+        }
+    }
+
+    private <M> void handle(MessageDispatch.Entry<M> entry, Message<M> message, ChannelHandlerContext ctx) throws IOException {
+        Message<?> result = filter.handleMessage(message, entry.handler(), ctx);
+        if (result != null) {
+            sender.send(ctx.channel(), message.correlationId == 0 ? result
+                    : result.correlated(message.correlationId, true));
+        }
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        reassembler.write(ctx, msg, promise);
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        lifecycle.channelActive(ctx);
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        reassembler.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        lifecycle.channelReadComplete(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        lifecycle.exceptionCaught(ctx, cause);
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        lifecycle.close(ctx, promise);
+    }
+
+    @Override
+    public void connect(ChannelHandlerContext ctx, SocketAddress remoteAddress, SocketAddress localAddress, ChannelPromise promise) throws Exception {
+        lifecycle.connect(ctx, remoteAddress, localAddress, promise);
+    }
+
+    @Override
+    public void channelUnregistered(ChannelHandlerContext ctx) throws Exception {
+        lifecycle.channelUnregistered(ctx);
+    }
+
+    @Override
+    public void channelRegistered(ChannelHandlerContext ctx) throws Exception {
+        lifecycle.channelRegistered(ctx);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.mastfrog.giulius.ShutdownHookRegistry;
+import static com.mastfrog.scamper.ProtocolModule.GUICE_BINDING_SCAMPER_WORKER_THREADS;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_ASSOCIATION_IDLE_MILLIS;
+import com.mastfrog.settings.Settings;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Closes the associations to addresses which have gone unused for longer
+ * than <code>sctp.association.idle.millis</code>, checking every half of that
+ * time on one of the worker event loops. Does nothing if the setting is not
+ * positive.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class IdleAssociationReaper implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(IdleAssociationReaper.class.getName());
+    private final Associations associations;
+    private final long idleMillis;
+    private final ScheduledFuture<?> future;
+
+    @Inject
+    IdleAssociationReaper(Associations associations, @Named(GUICE_BINDING_SCAMPER_WORKER_THREADS) EventLoopGroup workers, Settings settings, ShutdownHookRegistry reg) {
+        this.associations = associations;
+        this.idleMillis = settings.getLong(SETTINGS_KEY_ASSOCIATION_IDLE_MILLIS, -1);
+        if (idleMillis > 0) {
+            long period = Math.max(1, idleMillis / 2);
+            future = workers.next().scheduleAtFixedRate(this::reap, period, period, TimeUnit.MILLISECONDS);
+            reg.add(this);
+        } else {
+            future = null;
+        }
+    }
+
+    private void reap() {
+        int evicted = associations.evictIdle(idleMillis);
+        if (evicted > 0) {
+            logger.log(Level.FINE, "Closed associations to {0} idle addresses, {1} remain",
+                    new Object[]{evicted, associations.size()});
+        }
+    }
+
+    @Override
+    public void run() {
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+}
@@ -54,19 +54,22 @@ final class InboundBytesDecoder extends Netty5Handler<ByteBuf> {
 
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        assoc.ensureRegistered(ctx);
         codec.onChannelActive(ctx);
     }
 
     @Override
     protected void messageReceived(ChannelHandlerContext ctx, ByteBuf sctpMsg) throws Exception {
-        assoc.ensureRegistered(ctx);
-        int sctpChannel = ctx.attr(InboundSctpMessageToByteBufDecoder.SCTP_CHANNEL_KEY).get();
-        MessageTypeAndBuffer decoded = codec.decode(sctpMsg, ctx, sctpChannel);
+        int sctpChannel = AssociationState.of(ctx.channel()).stream();
+        MessageTypeAndBuffer decoded = CorrelationHeader.decode(codec, sctpMsg, ctx, sctpChannel);
         ctx.fireChannelRead(decoded);
     }
 
     @Override
     public void channelReadComplete(ChannelHandlerContext ctx) {
+        // Once per read, not per message, so the association is not evicted
+        // as idle while its peer is still sending
+        assoc.touch(ctx.channel());
         ctx.flush();
     }
 
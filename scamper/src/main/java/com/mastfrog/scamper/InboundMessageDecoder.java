@@ -1,21 +1,14 @@
 package com.mastfrog.scamper;
 
-import com.fasterxml.jackson.core.JsonParseException;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
-import com.google.inject.name.Named;
-import com.mastfrog.giulius.Dependencies;
-import static com.mastfrog.scamper.ProtocolModule.GUICE_BINDING_SCAMPER_CODEC;
-import com.mastfrog.util.codec.Codec;
-import com.mastfrog.util.streams.Streams;
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufInputStream;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
-import java.io.IOException;
 
 /**
- * Takes incoming MessageTypeAndBuffer, looks up the handler and processes them.
+ * Takes incoming MessageTypeAndBuffer, looks up the handler and processes them;
+ * if {@link StreamPartitions} are enabled, on the partition for the stream the
+ * message arrived on.
  *
  * @author Tim Boudreau
  */
@@ -23,15 +16,18 @@ import java.io.IOException;
 @ChannelHandler.Sharable
 final class InboundMessageDecoder extends Netty5Handler<MessageTypeAndBuffer> {
 
-    private final MessageHandlerMapping mapping;
-    private final Dependencies deps;
-    private final Codec mapper;
+    private final MessageDispatch dispatch;
+    private final RequestCorrelator correlator;
+    private final StreamPartitions partitions;
+    private final InboundMessageProcessor processor;
 
     @Inject
-    InboundMessageDecoder(MessageHandlerMapping mapping, Dependencies deps, @Named(GUICE_BINDING_SCAMPER_CODEC) Codec mapper) {
-        this.mapping = mapping;
-        this.deps = deps;
-        this.mapper = mapper;
+    InboundMessageDecoder(MessageDispatch dispatch, RequestCorrelator correlator,
+            StreamPartitions partitions, InboundMessageProcessor processor) {
+        this.dispatch = dispatch;
+        this.correlator = correlator;
+        this.partitions = partitions;
+        this.processor = processor;
     }
 
     @Override
@@ -39,39 +35,29 @@ final class InboundMessageDecoder extends Netty5Handler<MessageTypeAndBuffer> {
         return true;
     }
 
-    private Message<?> handleMessage(MessageTypeAndBuffer typeAndPayload, ChannelHandlerContext ctx) throws IOException {
-        MessageType messageType = typeAndPayload.messageType;
-        MessageHandler<?, ?> result = deps.getInstance(mapping.get(messageType));
-        return decode(messageType, result.messageType(), typeAndPayload.buf, ctx);
-    }
-
-    private <T, M> Message<M> decode(MessageType messageType, Class<M> type, ByteBuf buf, ChannelHandlerContext ctx) throws IOException {
-        Message<M> theMessage;
-        if (type == ByteBuf.class) {
-            theMessage = messageType.newMessage(type.cast(buf));
-        } else if (type == Void.class) {
-            theMessage = messageType.newMessage(null);
-        } else {
-            try (ByteBufInputStream in = new ByteBufInputStream(buf)) {
-                M arg = mapper.readValue(in, type);
-                theMessage = messageType.newMessage(arg);
-            } catch (JsonParseException ex) {
-                buf.resetReaderIndex();
-                try (ByteBufInputStream in2 = new ByteBufInputStream(buf)) {
-                    throw new IOException("Invalid JSON: '" + Streams.readString(in2, 256) + "'", ex);
-                }
-            } finally {
-                buf.discardReadBytes();
-            }
-        }
-        return theMessage;
-    }
-
     @Override
     protected void messageReceived(ChannelHandlerContext ctx, MessageTypeAndBuffer decoded) throws Exception {
-        // PENDING: Give MessageHandler a way to be handed the ChannelFuture from the send,
-        // and or receive a reply
-        Message<?> message = handleMessage(decoded, ctx);
+        if (decoded.reply) {
+            // Replies go to whoever sent the request, not a MessageHandler
+            correlator.complete(decoded);
+            return;
+        }
+        if (dispatch.stream(decoded, ctx)) {
+            return;
+        }
+        if (partitions.isEnabled()) {
+            // Decode and handle on the stream's partition; the processor is
+            // called directly, since firing the message down the pipeline
+            // from there would only hop back onto the event loop
+            partitions.execute(ctx, decoded, () -> {
+                Message<?> message = dispatch.entryFor(decoded.messageType).decode(decoded);
+                if (message != null) {
+                    processor.process(ctx, message, decoded.streamIdentifier);
+                }
+            });
+            return;
+        }
+        Message<?> message = dispatch.entryFor(decoded.messageType).decode(decoded);
         if (message != null) {
             ctx.fireChannelRead(message);
         }
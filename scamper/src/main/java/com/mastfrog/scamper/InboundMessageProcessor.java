@@ -2,7 +2,6 @@ package com.mastfrog.scamper;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
-import com.mastfrog.giulius.Dependencies;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import java.io.IOException;
@@ -10,7 +9,8 @@ import java.io.IOException;
 /**
  * Takes the decoded inbound message and hands it off to a registered
  * MessageHandler to process it, and if that returns a message, sends that back
- * down the pipeline.
+ * down the pipeline - on the handler's {@link Bulkhead} if it has one, or on a
+ * virtual thread if VirtualThreadDispatch is enabled.
  *
  * @author Tim Boudreau
  */
@@ -18,18 +18,18 @@ import java.io.IOException;
 @ChannelHandler.Sharable
 class InboundMessageProcessor extends Netty5Handler<Message> {
 
-    private final MessageHandlerMapping mapping;
-    private final Dependencies deps;
+    private final MessageDispatch dispatch;
     private final Sender sender;
     private final MessageFilter filter;
+    private final VirtualThreadDispatch virtualThreads;
 
     @Inject
-    InboundMessageProcessor(MessageHandlerMapping mapping, Dependencies deps, Sender sender, MessageFilter filter) {
+    InboundMessageProcessor(MessageDispatch dispatch, Sender sender, MessageFilter filter, VirtualThreadDispatch virtualThreads) {
         super(Message.class);
-        this.mapping = mapping;
-        this.deps = deps;
+        this.dispatch = dispatch;
         this.sender = sender;
         this.filter = filter;
+        this.virtualThreads = virtualThreads;
     }
 
     @Override
@@ -44,10 +44,38 @@ class InboundMessageProcessor extends Netty5Handler<Message> {
     @Override
     @SuppressWarnings("unchecked")
     protected void messageReceived(ChannelHandlerContext ctx, Message msg) throws Exception {
-        Class<? extends MessageHandler> handlerClass = mapping.get(msg.type);
-        MessageHandler<?, ?> h = deps.getInstance(handlerClass);
-        Message<?> result = handleMessage(msg, h, ctx);
+        AssociationState state = AssociationState.peek(ctx.channel());
+        process(ctx, msg, state == null ? 0 : state.stream());
+    }
+
+    /**
+     * Run the handler for a message, on the event loop, a stream partition
+     * or whatever thread the handler's bulkhead or virtual threads dictate.
+     *
+     * @param ctx The channel context
+     * @param msg The message
+     * @param stream The SCTP stream it arrived on
+     * @throws Exception If the handler fails
+     */
+    void process(ChannelHandlerContext ctx, Message<?> msg, int stream) throws Exception {
+        MessageDispatch.Entry<?> entry = dispatch.entryFor(msg.type);
+        if (entry.bulkhead != null) {
+            entry.bulkhead.execute(ctx, msg, () -> handleAndReply(ctx, msg, entry.handler()));
+        } else if (virtualThreads.isEnabled()) {
+            virtualThreads.execute(ctx, stream, msg, () -> handleAndReply(ctx, msg, entry.handler()));
+        } else {
+            handleAndReply(ctx, msg, entry.handler());
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void handleAndReply(ChannelHandlerContext ctx, Message<?> msg, MessageHandler<?, ?> h) throws IOException {
+        // The dispatch table pairs each message type with a handler for it
+        Message<?> result = handleMessage((Message) msg, (MessageHandler) h, ctx);
         if (result != null) {
+            if (msg.correlationId != 0) {
+                result = result.correlated(msg.correlationId, true);
+            }
 //            ctx.write(result);
             sender.send(ctx.channel(), result);
         }
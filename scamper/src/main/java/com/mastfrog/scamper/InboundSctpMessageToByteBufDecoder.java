@@ -1,31 +1,35 @@
 package com.mastfrog.scamper;
 
-import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import static com.mastfrog.scamper.FragmentedMessageOverflowHandler.DEFAULT_MAX_AGGREGATED_BYTES;
+import static com.mastfrog.scamper.FragmentedMessageOverflowHandler.DEFAULT_SPILL_MAX_BYTES;
 import static com.mastfrog.scamper.FragmentedMessageOverflowHandler.SETTINGS_KEY_MAX_AGGREGATED_BYTES;
+import static com.mastfrog.scamper.FragmentedMessageOverflowHandler.SETTINGS_KEY_SPILL_DIR;
+import static com.mastfrog.scamper.FragmentedMessageOverflowHandler.SETTINGS_KEY_SPILL_MAX_BYTES;
+import static com.mastfrog.scamper.FragmentedMessageOverflowHandler.SETTINGS_KEY_SPILL_THRESHOLD;
+import com.mastfrog.scamper.codec.MessageCodec;
 import com.mastfrog.settings.Settings;
-import com.sun.nio.sctp.MessageInfo;
+import com.sun.nio.sctp.PeerAddressChangeNotification;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.CompositeByteBuf;
-import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
 import io.netty.channel.sctp.SctpMessage;
-import io.netty.channel.sctp.nio.NioSctpChannel;
-import io.netty.util.Attribute;
-import io.netty.util.AttributeKey;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Converts inbound SctpMessages into ByteBufs, and stores the inbound sctp
- * stream identifier as a channnel attribute keyed to SCTP_CHANNEL_KEY. This is
+ * stream identifier in the channel's {@link AssociationState}. This is
  * so that third-party codecs that operate on raw ByteBufs can be involved in
  * the pipeline (ideally SslHandler can be used off-the-shelf).
  *
@@ -35,20 +39,35 @@ import java.util.Map;
 @ChannelHandler.Sharable
 final class InboundSctpMessageToByteBufDecoder extends Netty5Handler<SctpMessage> {
 
-    public static final AttributeKey<Integer> SCTP_CHANNEL_KEY = AttributeKey.valueOf(InboundSctpMessageToByteBufDecoder.class, "sctpChannel");
     private final Associations assoc;
 
-    private static final AttributeKey<Fragments> QUEUE_KEY = AttributeKey.valueOf(InboundSctpMessageToByteBufDecoder.class, "queue");
-
     private final long maxBytes;
+    // Null unless spilling oversized messages to disk
+    private final Path spillDir;
+    private final long spillThreshold;
     private final FragmentedMessageOverflowHandler overflowHandler;
+    private final MessageCodec codec;
+    private final MessageDispatch dispatch;
+    private final MemoryGovernor memory;
 
     @Inject
-    InboundSctpMessageToByteBufDecoder(Associations assoc, Settings settings, FragmentedMessageOverflowHandler overflowHandler) {
+    InboundSctpMessageToByteBufDecoder(Associations assoc, Settings settings, FragmentedMessageOverflowHandler overflowHandler,
+            MessageCodec codec, MessageDispatch dispatch, MemoryGovernor memory) {
         super(SctpMessage.class);
-        maxBytes = settings.getLong(SETTINGS_KEY_MAX_AGGREGATED_BYTES, DEFAULT_MAX_AGGREGATED_BYTES);
+        spillThreshold = settings.getLong(SETTINGS_KEY_SPILL_THRESHOLD, -1);
+        if (spillThreshold >= 0) {
+            spillDir = Paths.get(settings.getString(SETTINGS_KEY_SPILL_DIR, System.getProperty("java.io.tmpdir")));
+            // A mapping larger than this cannot be wrapped in a ByteBuf
+            maxBytes = Math.min(DEFAULT_SPILL_MAX_BYTES, settings.getLong(SETTINGS_KEY_SPILL_MAX_BYTES, DEFAULT_SPILL_MAX_BYTES));
+        } else {
+            spillDir = null;
+            maxBytes = settings.getLong(SETTINGS_KEY_MAX_AGGREGATED_BYTES, DEFAULT_MAX_AGGREGATED_BYTES);
+        }
         this.assoc = assoc;
         this.overflowHandler = overflowHandler;
+        this.codec = codec;
+        this.dispatch = dispatch;
+        this.memory = memory;
     }
 
     @Override
@@ -58,114 +77,407 @@ final class InboundSctpMessageToByteBufDecoder extends Netty5Handler<SctpMessage
 
     @Override
     protected void messageReceived(ChannelHandlerContext ctx, SctpMessage msg) throws Exception {
-        ctx.channel().attr(SCTP_CHANNEL_KEY).set(msg.streamIdentifier());
-        Attribute<Fragments> fragmentsAttr = ctx.channel().attr(QUEUE_KEY);
-        Fragments fragments = fragmentsAttr.get();
-        if (fragments == null) {
-            fragmentsAttr.set(fragments = new Fragments());
-            ctx.channel().closeFuture().addListener(fragments);
-        }
-        ByteBuf aggregated = fragments.contentFor(ctx, msg);
+        AssociationState state = AssociationState.of(ctx.channel());
+        state.stream(msg.streamIdentifier());
+        ByteBuf aggregated = reassemble(ctx, state, msg);
         // aggregated will be null if !msg.isComplete() - the
         // messages will be queued.
         if (aggregated != null) {
-            aggregated.retain();
-            ctx.fireChannelRead(aggregated);
+            // Counted against the memory budget while handled
+            int bytes = aggregated.readableBytes();
+            memory.acquire(bytes);
+            try {
+                // The SctpMessage's own content is released when we return;
+                // a buffer of merged fragments has no other owner
+                if (aggregated == msg.content()) {
+                    aggregated.retain();
+                }
+                ctx.fireChannelRead(aggregated);
+            } finally {
+                memory.release(bytes);
+            }
         }
     }
 
+    /**
+     * Get the complete payload for an inbound message, merging it with any
+     * fragments previously queued for its stream. A complete message on a
+     * stream with nothing queued - the usual case - allocates nothing.
+     *
+     * @param ctx The context
+     * @param msg The message
+     * @return The message content, a composite buffer if fragments were
+     * merged, or null if the message is incomplete and has been queued, or
+     * has been dropped because the memory budget is exceeded
+     */
+    ByteBuf reassemble(ChannelHandlerContext ctx, SctpMessage msg) {
+        return reassemble(ctx, AssociationState.of(ctx.channel()), msg);
+    }
+
+    private ByteBuf reassemble(ChannelHandlerContext ctx, AssociationState state, SctpMessage msg) {
+        SctpPaths paths = state.paths();
+        if (paths != null && msg.messageInfo() != null) {
+            paths.received(msg.messageInfo().address(), msg.content().readableBytes());
+        }
+        Fragments fragments = state.fragments();
+        if (fragments == null) {
+            if (msg.isComplete()) {
+                return shed() ? null : msg.content();
+            }
+            // Released by the state when the channel closes
+            state.fragments(fragments = new Fragments());
+        }
+        return fragments.contentFor(ctx, msg);
+    }
+
+    private boolean shed() {
+        if (memory.isOverBudget()) {
+            memory.shed();
+            return true;
+        }
+        return false;
+    }
+
     @Override
     public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
         if (msg instanceof ByteBuf) {
             ByteBuf buf = (ByteBuf) msg;
             int sctpStream = assoc.nextInStream(ctx.channel());
-            NioSctpChannel ch = (NioSctpChannel) ctx.channel();
-            MessageInfo info = MessageInfo.createOutgoing(ch.association(), ch.remoteAddress(), sctpStream);
-            info.unordered(true);
-            msg = new SctpMessage(info, buf);
+            msg = new SctpMessage(0, sctpStream, true, buf);
+        }
+        if (msg instanceof SctpMessage) {
+            AssociationState state = AssociationState.peek(ctx.channel());
+            SctpPaths paths = state == null ? null : state.paths();
+            if (paths != null) {
+                paths.sent(((SctpMessage) msg).content().readableBytes());
+            }
         }
         super.write(ctx, msg, promise);
     }
 
-    private final class Fragments implements ChannelFutureListener {
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof PeerAddressChangeNotification) {
+            SctpPaths.changed(ctx.channel(), (PeerAddressChangeNotification) evt);
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    /**
+     * Fragments queued for each stream of one association, in an array
+     * indexed by stream id which is allocated on the first incomplete
+     * message and grown as needed, and the bodies of any messages being
+     * streamed to a StreamingMessageHandler. Only touched on the channel's
+     * event loop.
+     */
+    final class Fragments {
 
-        private final Map<Integer, BufferQueue> buffers = Maps.newConcurrentMap();
+        private BufferQueue[] queues = new BufferQueue[16];
+        private StreamingMessageHandler.Body[] bodies;
 
         public ByteBuf contentFor(ChannelHandlerContext ctx, SctpMessage msg) {
             // In theory, the protocol stack is supposed to be de-fragmenting
             // messages before they ever get to the application.
             // In reality, that's not happpening.
-            BufferQueue queue = buffers.get(msg.streamIdentifier());
-            if (queue == null) {
-                queue = new BufferQueue();
-                buffers.put(msg.streamIdentifier(), queue);
+            int stream = msg.streamIdentifier();
+            if (bodies != null && stream < bodies.length && bodies[stream] != null) {
+                deliver(ctx, stream, bodies[stream], msg.content(), msg.isComplete());
+                return null;
             }
+            BufferQueue queue = stream < queues.length ? queues[stream] : null;
             if (!msg.isComplete()) {
+                if ((queue == null || queue.isEmpty()) && startStreaming(ctx, msg)) {
+                    return null;
+                }
+                if ((queue == null || !queue.isSpilled()) && shed()) {
+                    // Drop the rest of the message
+                    if (queue != null) {
+                        queue.release();
+                    }
+                    setBody(stream, DISCARD);
+                    return null;
+                }
+                if (queue == null) {
+                    queue = queueFor(stream);
+                }
                 // Add it to the queue, getting back the total bytes we are
                 // retaining
-                long byteCount = queue.add(msg.content().retain());
+                long byteCount;
+                try {
+                    byteCount = queue.add(msg.content().retain());
+                    if (spillDir != null && byteCount > spillThreshold && !queue.isSpilled()) {
+                        queue.spillTo(SpillFile.create(spillDir));
+                    }
+                } catch (IOException ex) {
+                    // Can't reassemble this message
+                    queue.release();
+                    ctx.fireExceptionCaught(ex);
+                    ctx.close();
+                    return null;
+                }
                 if (byteCount > maxBytes) {
                     // Don't pass the queue, but the buffers, so the overflow
                     // handler can iterate them without clearing them
-                    boolean dump = overflowHandler.onTooManyFragmentedBytes(ctx, byteCount, msg, queue.bufs);
+                    boolean dump = overflowHandler.onTooManyFragmentedBytes(ctx, byteCount, msg, queue.buffers());
                     if (dump) {
-                        for (ByteBuf buf : queue) { // iterating clears the queue
-                            buf.release();
-                        }
+                        queue.release();
                     }
                 }
                 return null;
             }
             // No queued messages - we got a complete message, so just send it on
-            if (queue.isEmpty()) {
-                return msg.content();
+            if (queue == null || queue.isEmpty()) {
+                return shed() ? null : msg.content();
+            }
+            if (queue.isSpilled()) {
+                try {
+                    return queue.drainSpilled(msg.content());
+                } catch (IOException ex) {
+                    queue.release();
+                    ctx.fireExceptionCaught(ex);
+                    return null;
+                }
             }
             // Merge the queued byte buffers into a composite buffer
             CompositeByteBuf buf = ctx.alloc().compositeBuffer(queue.size() + 1);
-            int ix = 0;
-            for (ByteBuf component : queue) { // iterating clears the queue
-                ix += component.readableBytes();
-                buf.addComponent(component);
-            }
-            msg.content().retain();
-            ix += msg.content().readableBytes();
-            buf.addComponent(msg.content());
-            buf.writerIndex(ix);
+            queue.drainTo(buf);
+            buf.addComponent(true, msg.content().retain());
             return buf;
         }
 
-        @Override
-        public void operationComplete(ChannelFuture future) throws Exception {
-            buffers.clear();
+        /**
+         * If a streaming handler is bound to the type of the message this
+         * first fragment begins, and the codec can decode its header alone,
+         * start streaming it rather than queueing it.
+         */
+        private boolean startStreaming(ChannelHandlerContext ctx, SctpMessage msg) {
+            if (!dispatch.hasStreamingHandlers()) {
+                return false;
+            }
+            int stream = msg.streamIdentifier();
+            MessageTypeAndBuffer decoded = CorrelationHeader.decodeHeader(codec, msg.content(), ctx, stream);
+            StreamingMessageHandler handler = decoded == null ? null
+                    : dispatch.streamingHandlerFor(decoded.messageType);
+            if (handler == null) {
+                return false;
+            }
+            StreamingMessageHandler.Body body;
+            try {
+                body = handler.onMessageStart(decoded.messageType, ctx);
+            } catch (Exception ex) {
+                body = null;
+                ctx.fireExceptionCaught(ex);
+            }
+            setBody(stream, body == null ? DISCARD : body);
+            deliver(ctx, stream, bodies[stream], decoded.buf, false);
+            return true;
+        }
+
+        private void setBody(int stream, StreamingMessageHandler.Body body) {
+            if (bodies == null) {
+                bodies = new StreamingMessageHandler.Body[Math.max(16, stream + 1)];
+            } else if (stream >= bodies.length) {
+                bodies = Arrays.copyOf(bodies, Math.max(stream + 1, bodies.length * 2));
+            }
+            bodies[stream] = body;
+        }
+
+        private void deliver(ChannelHandlerContext ctx, int stream, StreamingMessageHandler.Body body, ByteBuf chunk, boolean last) {
+            if (last) {
+                bodies[stream] = null;
+            }
+            try {
+                body.onChunk(chunk, ctx);
+                if (last) {
+                    body.onComplete(ctx);
+                }
+            } catch (Exception ex) {
+                // Skip the rest of the message
+                if (!last) {
+                    bodies[stream] = DISCARD;
+                }
+                body.onAbort(ex);
+                ctx.fireExceptionCaught(ex);
+            }
+        }
+
+        private BufferQueue queueFor(int stream) {
+            if (stream >= queues.length) {
+                queues = Arrays.copyOf(queues, Math.max(stream + 1, queues.length * 2));
+            }
+            BufferQueue result = queues[stream];
+            if (result == null) {
+                queues[stream] = result = new BufferQueue(memory);
+            }
+            return result;
+        }
+
+        void release() {
+            for (BufferQueue queue : queues) {
+                if (queue != null) {
+                    queue.release();
+                }
+            }
+            if (bodies != null) {
+                for (int i = 0; i < bodies.length; i++) {
+                    if (bodies[i] != null) {
+                        bodies[i].onAbort(new ClosedChannelException());
+                        bodies[i] = null;
+                    }
+                }
+            }
         }
     }
 
+    /**
+     * Swallows the rest of a message whose streaming handler did not want it
+     * or failed, or which was dropped to stay within the memory budget.
+     */
+    private static final StreamingMessageHandler.Body DISCARD = new StreamingMessageHandler.Body() {
+        @Override
+        public void onChunk(ByteBuf chunk, ChannelHandlerContext ctx) {
+        }
+
+        @Override
+        public void onComplete(ChannelHandlerContext ctx) {
+        }
+    };
+
+    /**
+     * The fragments queued for one stream. The list is reused once its
+     * contents have been merged into a message. Once spilled, fragments
+     * are appended to a file and released as they arrive. Bytes held in
+     * memory are counted against the memory budget.
+     */
     static class BufferQueue implements Iterable<ByteBuf> {
 
-        private List<ByteBuf> bufs = Lists.newCopyOnWriteArrayList();
+        private final List<ByteBuf> bufs = new ArrayList<>(4);
+        private final MemoryGovernor memory;
         private long byteCount;
+        private long heldBytes;
+        private SpillFile spill;
 
-        long add(ByteBuf buf) {
-            byteCount += buf.readableBytes();
-            bufs.add(buf);
+        BufferQueue(MemoryGovernor memory) {
+            this.memory = memory;
+        }
+
+        long add(ByteBuf buf) throws IOException {
+            int bytes = buf.readableBytes();
+            byteCount += bytes;
+            if (spill != null) {
+                try {
+                    spill.append(buf);
+                } finally {
+                    buf.release();
+                }
+            } else {
+                bufs.add(buf);
+                heldBytes += bytes;
+                memory.acquire(bytes);
+            }
             return byteCount;
         }
 
         boolean isEmpty() {
-            return bufs == null || bufs.isEmpty();
+            return bufs.isEmpty() && spill == null;
+        }
+
+        boolean isSpilled() {
+            return spill != null;
+        }
+
+        /**
+         * Move the queued buffers into a file, to which subsequent ones
+         * will be appended.
+         *
+         * @param file The file
+         * @throws IOException If writing fails
+         */
+        void spillTo(SpillFile file) throws IOException {
+            spill = file;
+            try {
+                for (ByteBuf buf : bufs) {
+                    file.append(buf);
+                }
+            } finally {
+                for (ByteBuf buf : bufs) {
+                    buf.release();
+                }
+                bufs.clear();
+                releaseHeld();
+            }
+        }
+
+        private void releaseHeld() {
+            if (heldBytes > 0) {
+                memory.release(heldBytes);
+                heldBytes = 0;
+            }
+        }
+
+        /**
+         * Append the last fragment of a spilled message, which is not
+         * released, and map the file, emptying the queue.
+         *
+         * @param last The last fragment
+         * @return A buffer over the whole message
+         * @throws IOException If writing or mapping fails
+         */
+        ByteBuf drainSpilled(ByteBuf last) throws IOException {
+            SpillFile file = spill;
+            spill = null;
+            byteCount = 0;
+            try {
+                file.append(last);
+            } catch (IOException ex) {
+                file.close();
+                throw ex;
+            }
+            return file.map();
         }
 
         int size() {
             return bufs.size();
         }
 
+        Iterable<ByteBuf> buffers() {
+            return Collections.unmodifiableList(bufs);
+        }
+
+        /**
+         * Move the queued buffers into a composite, which takes ownership
+         * of them, and empty the queue.
+         *
+         * @param into The composite
+         */
+        void drainTo(CompositeByteBuf into) {
+            into.addComponents(true, bufs);
+            clear();
+        }
+
+        /**
+         * Release the queued buffers and empty the queue.
+         */
+        void release() {
+            for (ByteBuf buf : bufs) {
+                buf.release();
+            }
+            clear();
+        }
+
+        private void clear() {
+            bufs.clear();
+            byteCount = 0;
+            releaseHeld();
+            if (spill != null) {
+                spill.close();
+                spill = null;
+            }
+        }
+
         @Override
         public Iterator<ByteBuf> iterator() {
-            // If you want to iterate, then you're using the bytes and we
-            // don't need to keep them
-            List<ByteBuf> old = bufs;
-            bufs = Lists.newCopyOnWriteArrayList();
-            return old.iterator();
+            return buffers().iterator();
         }
     }
 }
@@ -18,37 +18,90 @@
  */
 package com.mastfrog.scamper;
 
+import com.google.inject.Binding;
 import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Key;
 import com.google.inject.Provider;
 import com.google.inject.name.Named;
+import com.google.inject.name.Names;
+import com.google.inject.spi.LinkedKeyBinding;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_FUSED_PIPELINE;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_MAX_FRAME_BYTES;
+import com.mastfrog.settings.Settings;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
-import io.netty.channel.sctp.SctpChannel;
 
 /**
  * Just initializes the channel, getting the adapter from the provider so that,
  * if it's to be created on every request, a new one is created by Guice.
+ * Over a transport other than SCTP, the pipeline starts with the codec for
+ * {@link LengthPrefixedFraming}, and is otherwise the same.
+ * <p>
+ * With the fused pipeline, the handlers bound as
+ * <code>@Named("dispatcher")</code> and <code>@Named("processor")</code> are
+ * not used, so replacing either of them with the fused pipeline on is
+ * refused.
  *
  * @author Tim Boudreau
  */
-final class Init extends ChannelInitializer<SctpChannel> {
+final class Init extends ChannelInitializer<Channel> {
 
     private final Provider<Netty5Handler> handler;
     private final Provider<Netty5Handler> processor;
     private final Provider<InboundSctpMessageToByteBufDecoder> sctpMessageToBytes;
     private final Provider<InboundMessageProcessor> proc;
+    private final Provider<FusedInboundHandler> fused;
+    private final boolean useFused;
+    private final WriteBackpressure backpressure;
+    private final MemoryGovernor memory;
+    private final boolean framed;
+    private final int maxFrameBytes;
 
     @Inject
-    public Init(@Named("dispatcher") Provider<Netty5Handler> handler, @Named("processor") Provider<Netty5Handler> processor, Provider<InboundSctpMessageToByteBufDecoder> inbound, Provider<InboundMessageProcessor> proc) {
+    public Init(@Named("dispatcher") Provider<Netty5Handler> handler, @Named("processor") Provider<Netty5Handler> processor, Provider<InboundSctpMessageToByteBufDecoder> inbound, Provider<InboundMessageProcessor> proc, Provider<FusedInboundHandler> fused, WriteBackpressure backpressure, MemoryGovernor memory, Settings settings, Transport transport, Injector injector) {
         this.handler = handler;
         this.processor = processor;
         sctpMessageToBytes = inbound;
         this.proc = proc;
+        this.fused = fused;
+        this.backpressure = backpressure;
+        this.memory = memory;
+        this.useFused = settings.getBoolean(SETTINGS_KEY_FUSED_PIPELINE, false);
+        // The fused handler does the work of the default dispatcher and
+        // processor itself, so would silently bypass replacements for them
+        if (useFused && !(isBoundTo(injector, "dispatcher", InboundBytesDecoder.class)
+                && isBoundTo(injector, "processor", InboundMessageDecoder.class))) {
+            throw new IllegalStateException("The fused pipeline cannot be used "
+                    + "with custom @Named(\"dispatcher\") or @Named(\"processor\") "
+                    + "bindings");
+        }
+        this.framed = transport.isFramed();
+        this.maxFrameBytes = settings.getInt(SETTINGS_KEY_MAX_FRAME_BYTES, LengthPrefixedFraming.DEFAULT_MAX_FRAME_BYTES);
+    }
+
+    private static boolean isBoundTo(Injector injector, String name, Class<?> type) {
+        // Inspected rather than instantiated - the handlers depend on
+        // Associations, which depends on this
+        Binding<Netty5Handler> binding = injector.getBinding(Key.get(Netty5Handler.class, Names.named(name)));
+        return binding instanceof LinkedKeyBinding<?>
+                && ((LinkedKeyBinding<?>) binding).getLinkedKey().equals(Key.get(type));
     }
 
     @Override
-    protected void initChannel(SctpChannel ch) throws Exception {
+    protected void initChannel(Channel ch) throws Exception {
+        memory.register(ch);
         ChannelPipeline pipeline = ch.pipeline();
+        if (framed) {
+            pipeline.addLast(new LengthPrefixedFraming.Decoder(maxFrameBytes));
+            pipeline.addLast(LengthPrefixedFraming.Encoder.INSTANCE);
+        }
+        pipeline.addLast(backpressure);
+        if (useFused) {
+            pipeline.addLast(fused.get());
+            return;
+        }
         pipeline.addLast(sctpMessageToBytes.get());
         pipeline.addLast(handler.get());
         pipeline.addLast(processor.get());
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.sctp.SctpMessage;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import java.util.List;
+
+/**
+ * Carries SctpMessages over a transport which is a stream of bytes, so that
+ * the rest of the pipeline is the same whatever the transport. Each message
+ * is one frame: a four byte length of the rest of the frame, a two byte
+ * stream id, then the message content.
+ * <p>
+ * A frame is always a whole message, so the messages the decoder produces
+ * are complete; whether a message was sent unordered is not carried, since
+ * the socket delivers everything in order anyway.
+ *
+ * @author Tim Boudreau
+ */
+final class LengthPrefixedFraming {
+
+    static final int LENGTH_BYTES = 4;
+    static final int STREAM_ID_BYTES = 2;
+    static final int DEFAULT_MAX_FRAME_BYTES = 16 * 1024 * 1024;
+
+    private LengthPrefixedFraming() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Splits the inbound bytes into frames, and each frame into a stream id
+     * and an SctpMessage whose content is a slice of the inbound buffer. One
+     * instance per channel.
+     */
+    static final class Decoder extends LengthFieldBasedFrameDecoder {
+
+        Decoder(int maxFrameBytes) {
+            super(maxFrameBytes, 0, LENGTH_BYTES, 0, LENGTH_BYTES);
+        }
+
+        @Override
+        protected Object decode(ChannelHandlerContext ctx, ByteBuf in) throws Exception {
+            ByteBuf frame = (ByteBuf) super.decode(ctx, in);
+            if (frame == null) {
+                return null;
+            }
+            if (frame.readableBytes() < STREAM_ID_BYTES) {
+                int length = frame.readableBytes();
+                frame.release();
+                throw new CorruptedFrameException("Frame of " + length + " bytes has no stream id");
+            }
+            int stream = frame.readUnsignedShort();
+            return new SctpMessage(0, stream, false, frame);
+        }
+    }
+
+    /**
+     * Writes the header of each outbound message as a buffer of its own,
+     * followed by the content itself, so the content is never copied; the
+     * two go out in one gathering write.
+     */
+    @Sharable
+    static final class Encoder extends MessageToMessageEncoder<SctpMessage> {
+
+        static final Encoder INSTANCE = new Encoder();
+
+        private Encoder() {
+            super(SctpMessage.class);
+        }
+
+        @Override
+        protected void encode(ChannelHandlerContext ctx, SctpMessage msg, List<Object> out) throws Exception {
+            ByteBuf content = msg.content();
+            ByteBuf header = ctx.alloc().buffer(LENGTH_BYTES + STREAM_ID_BYTES);
+            header.writeInt(STREAM_ID_BYTES + content.readableBytes());
+            header.writeShort(msg.streamIdentifier());
+            out.add(header);
+            // The message is released once this returns
+            out.add(content.retain());
+        }
+    }
+}
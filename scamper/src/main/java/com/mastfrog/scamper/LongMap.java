@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import java.util.function.Consumer;
+
+/**
+ * Open-addressed map from primitive longs to objects, so lookups box nothing
+ * and each entry costs two array slots rather than a node object. Zero is
+ * used to mark empty slots and cannot be a key. Not thread-safe.
+ *
+ * @author Tim Boudreau
+ */
+final class LongMap<T> {
+
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+
+    LongMap() {
+        this(16);
+    }
+
+    LongMap(int initialCapacity) {
+        int cap = Integer.highestOneBit(Math.max(8, initialCapacity - 1)) << 1;
+        keys = new long[cap];
+        values = new Object[cap];
+        mask = cap - 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(long key) {
+        for (int ix = slot(key);; ix = (ix + 1) & mask) {
+            long k = keys[ix];
+            if (k == key) {
+                return (T) values[ix];
+            } else if (k == 0) {
+                return null;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    T put(long key, T value) {
+        if (key == 0) {
+            throw new IllegalArgumentException("Zero is reserved");
+        }
+        int ix = slot(key);
+        for (;; ix = (ix + 1) & mask) {
+            long k = keys[ix];
+            if (k == key) {
+                T old = (T) values[ix];
+                values[ix] = value;
+                return old;
+            } else if (k == 0) {
+                break;
+            }
+        }
+        keys[ix] = key;
+        values[ix] = value;
+        // Keep the table at most half full, so probe sequences stay short
+        if (++size > (mask + 1) >> 1) {
+            grow();
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    T remove(long key) {
+        int ix = slot(key);
+        for (;; ix = (ix + 1) & mask) {
+            long k = keys[ix];
+            if (k == key) {
+                break;
+            } else if (k == 0) {
+                return null;
+            }
+        }
+        T result = (T) values[ix];
+        size--;
+        // Shift back any entries in the same probe run that belong at or
+        // before the freed slot, rather than leaving a tombstone
+        int free = ix;
+        for (int next = (free + 1) & mask; keys[next] != 0; next = (next + 1) & mask) {
+            int home = slot(keys[next]);
+            if (((next - home) & mask) >= ((next - free) & mask)) {
+                keys[free] = keys[next];
+                values[free] = values[next];
+                free = next;
+            }
+        }
+        keys[free] = 0;
+        values[free] = null;
+        return result;
+    }
+
+    /**
+     * Remove every entry, passing each value to the consumer.
+     *
+     * @param c A consumer
+     */
+    @SuppressWarnings("unchecked")
+    void drain(Consumer<? super T> c) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[oldKeys.length];
+        values = new Object[oldValues.length];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                c.accept((T) oldValues[i]);
+            }
+        }
+    }
+
+    private int slot(long key) {
+        // Request ids are sequential; mix the bits so they spread
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[oldKeys.length << 1];
+        values = new Object[oldValues.length << 1];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            long k = oldKeys[i];
+            if (k != 0) {
+                int ix = slot(k);
+                while (keys[ix] != 0) {
+                    ix = (ix + 1) & mask;
+                }
+                keys[ix] = k;
+                values[ix] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_MEMORY_BUDGET;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_MEMORY_HIGH_WATER_MARK;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_MEMORY_LOW_WATER_MARK;
+import com.mastfrog.settings.Settings;
+import io.netty.channel.Channel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One memory budget shared by every association: counts the bytes of
+ * fragments queued for reassembly, of inbound messages being decoded and
+ * handled, and of messages sent but not yet written. When the total passes
+ * the high water mark, reading is paused on every channel (auto-read is
+ * turned off) until it drops back to the low water mark; once it passes the
+ * budget itself, inbound messages are dropped and sends fail with a
+ * {@link MemoryBudgetExceededException}.
+ * <p>
+ * Configured with the settings <code>sctp.memory.budget</code>,
+ * <code>sctp.memory.high.water.mark</code> (three quarters of the budget by
+ * default) and <code>sctp.memory.low.water.mark</code> (half of it). With no
+ * budget set, nothing is counted or limited. Inject this to read its gauges.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+public final class MemoryGovernor {
+
+    private final long budget;
+    private final long highWaterMark;
+    private final long lowWaterMark;
+    private final boolean enabled;
+    private final AtomicLong used = new AtomicLong();
+    private final AtomicLong peak = new AtomicLong();
+    private final LongAdder shed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder pauses = new LongAdder();
+    private final ChannelGroup channels = new DefaultChannelGroup("scamper", GlobalEventExecutor.INSTANCE);
+    private volatile boolean paused;
+
+    @Inject
+    MemoryGovernor(Settings settings) {
+        long budget = settings.getLong(SETTINGS_KEY_MEMORY_BUDGET, -1);
+        enabled = budget > 0;
+        if (enabled) {
+            this.budget = budget;
+            highWaterMark = settings.getLong(SETTINGS_KEY_MEMORY_HIGH_WATER_MARK, budget / 4 * 3);
+            lowWaterMark = settings.getLong(SETTINGS_KEY_MEMORY_LOW_WATER_MARK, budget / 2);
+            if (lowWaterMark > highWaterMark || highWaterMark > budget) {
+                throw new IllegalArgumentException("Memory water marks must satisfy low <= high <= budget: "
+                        + lowWaterMark + ", " + highWaterMark + ", " + budget);
+            }
+        } else {
+            this.budget = Long.MAX_VALUE;
+            highWaterMark = Long.MAX_VALUE;
+            lowWaterMark = Long.MAX_VALUE;
+        }
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Track a new channel, so reading on it can be paused; called by Init.
+     *
+     * @param channel The channel
+     */
+    void register(Channel channel) {
+        if (enabled) {
+            channels.add(channel);
+            if (paused) {
+                channel.config().setAutoRead(false);
+            }
+        }
+    }
+
+    /**
+     * Count bytes against the budget, whether or not it is exceeded; sends
+     * and inbound messages check {@link #isOverBudget()} first.
+     *
+     * @param bytes A byte count
+     */
+    void acquire(long bytes) {
+        if (!enabled) {
+            return;
+        }
+        long now = used.addAndGet(bytes);
+        if (now > peak.get()) {
+            peak.accumulateAndGet(now, Math::max);
+        }
+        if (now >= highWaterMark && !paused) {
+            updateReading();
+        }
+    }
+
+    void release(long bytes) {
+        if (!enabled) {
+            return;
+        }
+        long now = used.addAndGet(-bytes);
+        if (now <= lowWaterMark && paused) {
+            updateReading();
+        }
+    }
+
+    boolean isOverBudget() {
+        return used.get() > budget;
+    }
+
+    void shed() {
+        shed.increment();
+    }
+
+    void rejected() {
+        rejected.increment();
+    }
+
+    private synchronized void updateReading() {
+        // Re-check under the lock, so racing acquires and releases
+        // leave the channels in the state matching the current count
+        long now = used.get();
+        if (!paused && now >= highWaterMark) {
+            paused = true;
+            pauses.increment();
+            setAutoRead(false);
+        } else if (paused && now <= lowWaterMark) {
+            paused = false;
+            setAutoRead(true);
+        }
+    }
+
+    private void setAutoRead(boolean autoRead) {
+        for (Channel channel : channels) {
+            channel.config().setAutoRead(autoRead);
+        }
+    }
+
+    /**
+     * Get the number of bytes currently counted against the budget.
+     *
+     * @return A byte count
+     */
+    public long used() {
+        return used.get();
+    }
+
+    /**
+     * Get the highest number of bytes ever counted against the budget.
+     *
+     * @return A byte count
+     */
+    public long peak() {
+        return peak.get();
+    }
+
+    /**
+     * Get the budget, or Long.MAX_VALUE if none is set.
+     *
+     * @return A byte count
+     */
+    public long budget() {
+        return budget;
+    }
+
+    public long highWaterMark() {
+        return highWaterMark;
+    }
+
+    public long lowWaterMark() {
+        return lowWaterMark;
+    }
+
+    /**
+     * Determine if reading is currently paused on all channels.
+     *
+     * @return true if paused
+     */
+    public boolean isReadingPaused() {
+        return paused;
+    }
+
+    /**
+     * Get the number of times reading has been paused.
+     *
+     * @return A count
+     */
+    public long pauseCount() {
+        return pauses.sum();
+    }
+
+    /**
+     * Get the number of inbound messages dropped because the budget was
+     * exceeded.
+     *
+     * @return A count
+     */
+    public long shedMessages() {
+        return shed.sum();
+    }
+
+    /**
+     * Get the number of sends refused because the budget was exceeded.
+     *
+     * @return A count
+     */
+    public long rejectedSends() {
+        return rejected.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryGovernor{used=" + used() + ", budget=" + budget
+                + ", paused=" + paused + ", shed=" + shedMessages()
+                + ", rejected=" + rejectedSends() + "}";
+    }
+}
@@ -43,11 +43,54 @@ public final class Message<T> {
      * The message payload. May be null in the case that no payload is needed.
      */
     public final T body;
+    /**
+     * Id matching a request to its reply, or zero if the message is neither.
+     */
+    final long correlationId;
+    final boolean reply;
+    private final Object key;
 
     Message(MessageType type, T obj) {
+        this(type, obj, 0, false, null);
+    }
+
+    private Message(MessageType type, T obj, long correlationId, boolean reply, Object key) {
         Checks.notNull("type", type);
         this.body = obj;
         this.type = type;
+        this.correlationId = correlationId;
+        this.reply = reply;
+        this.key = key;
+    }
+
+    /**
+     * Create a copy of this message which is a request or reply with the
+     * passed correlation id.
+     */
+    Message<T> correlated(long correlationId, boolean reply) {
+        return new Message<>(type, body, correlationId, reply, key);
+    }
+
+    /**
+     * Create a copy of this message with a key - such as the id of the
+     * entity it concerns - which a {@link StreamSelector} may use to choose
+     * the stream it is sent on. The key is not sent.
+     *
+     * @param key The key
+     * @return A new message
+     */
+    public Message<T> withKey(Object key) {
+        Checks.notNull("key", key);
+        return new Message<>(type, body, correlationId, reply, key);
+    }
+
+    /**
+     * Get the key set by {@link #withKey}, if any.
+     *
+     * @return The key, or null
+     */
+    public Object key() {
+        return key;
     }
 
     public String toString() {
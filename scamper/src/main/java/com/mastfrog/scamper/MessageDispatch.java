@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Provider;
+import com.google.inject.Scopes;
+import com.google.inject.Singleton;
+import com.google.inject.TypeLiteral;
+import com.google.inject.name.Named;
+import static com.mastfrog.scamper.ProtocolModule.GUICE_BINDING_SCAMPER_CODEC;
+import com.mastfrog.util.codec.Codec;
+import com.mastfrog.util.streams.Streams;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.channel.ChannelHandlerContext;
+import java.io.IOException;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+
+/**
+ * The {@link MessageHandlerMapping} compiled into a table indexed by message
+ * type, so that finding the handler for an inbound message, and the decoder
+ * for its payload, involves no map lookups and no calls into the injector.
+ * Handlers are not created with the injector: singletons are resolved once,
+ * the first time a message for them arrives, and handlers in other scopes
+ * keep a provider. The payload type comes from the handler's type
+ * arguments, or if they do not say, from the first handler created.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class MessageDispatch {
+
+    private static final int TABLE_SIZE = 1 << 16;
+    private final Entry<?>[] table = new Entry<?>[TABLE_SIZE];
+    private final Entry<?> fallback;
+    // Only allocated if any streaming handlers are bound
+    private final StreamingEntry[] streaming;
+
+    @Inject
+    MessageDispatch(MessageHandlerMapping mapping, Injector injector, @Named(GUICE_BINDING_SCAMPER_CODEC) Codec codec, Bulkheads bulkheads) {
+        mapping.forEach((type, handlerType) -> {
+            String bulkhead = mapping.bulkheadFor(type);
+            table[type.index()] = entry(injector, handlerType, codec, bulkhead == null ? null : bulkheads.get(bulkhead));
+        });
+        fallback = entry(injector, mapping.defaultHandler(), codec, null);
+        streaming = mapping.hasStreamingHandlers() ? new StreamingEntry[TABLE_SIZE] : null;
+        mapping.forEachStreaming((type, handlerType) -> {
+            Provider<? extends StreamingMessageHandler> provider = injector.getProvider(handlerType);
+            boolean singleton = Scopes.isSingleton(injector.getBinding(handlerType));
+            streaming[type.index()] = new StreamingEntry(singleton, provider);
+        });
+    }
+
+    boolean hasStreamingHandlers() {
+        return streaming != null;
+    }
+
+    /**
+     * Get the streaming handler bound to a message type, if any.
+     *
+     * @param type The message type
+     * @return A handler or null
+     */
+    StreamingMessageHandler streamingHandlerFor(MessageType type) {
+        if (streaming == null || type.isUnknown()) {
+            return null;
+        }
+        StreamingEntry entry = streaming[type.index()];
+        return entry == null ? null : entry.handler();
+    }
+
+    /**
+     * If a streaming handler is bound to the type of a complete inbound
+     * message, deliver the message to it as a single chunk.
+     *
+     * @param decoded The message type and payload
+     * @param ctx The channel context
+     * @return true if the message was delivered to a streaming handler
+     * @throws Exception If the handler throws one
+     */
+    boolean stream(MessageTypeAndBuffer decoded, ChannelHandlerContext ctx) throws Exception {
+        StreamingMessageHandler handler = streamingHandlerFor(decoded.messageType);
+        if (handler == null) {
+            return false;
+        }
+        StreamingMessageHandler.Body body = handler.onMessageStart(decoded.messageType, ctx);
+        if (body != null) {
+            try {
+                body.onChunk(decoded.buf, ctx);
+                body.onComplete(ctx);
+            } catch (Exception ex) {
+                body.onAbort(ex);
+                throw ex;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the dispatch entry for a message type; unknown types get an entry
+     * for a handler which logs and discards them.
+     *
+     * @param type The message type
+     * @return An entry
+     */
+    Entry<?> entryFor(MessageType type) {
+        if (type.isUnknown()) {
+            return fallback;
+        }
+        Entry<?> result = table[type.index()];
+        return result == null ? fallback : result;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Entry<?> entry(Injector injector, Class<? extends MessageHandler<?, ?>> type, Codec codec, Bulkhead bulkhead) {
+        Provider<? extends MessageHandler<?, ?>> provider = injector.getProvider(type);
+        boolean singleton = Scopes.isSingleton(injector.getBinding(type));
+        return new Entry(singleton, provider, payloadType(type), codec, bulkhead);
+    }
+
+    /**
+     * Find the payload type of a handler class from the type arguments it
+     * gives MessageHandler, without creating one.
+     *
+     * @param type The handler class
+     * @return The payload type, or null if the type arguments do not name
+     * a class more specific than Object
+     */
+    static Class<?> payloadType(Class<? extends MessageHandler<?, ?>> type) {
+        Type supertype = TypeLiteral.get(type).getSupertype(MessageHandler.class).getType();
+        if (!(supertype instanceof ParameterizedType)) {
+            return null;
+        }
+        Type arg = ((ParameterizedType) supertype).getActualTypeArguments()[1];
+        if (arg instanceof ParameterizedType) {
+            arg = ((ParameterizedType) arg).getRawType();
+        }
+        return arg instanceof Class<?> && arg != Object.class ? (Class<?>) arg : null;
+    }
+
+    static final class Entry<M> {
+
+        private final boolean singleton;
+        private final Provider<? extends MessageHandler<?, M>> provider;
+        private final Codec codec;
+        private volatile MessageHandler<?, M> instance;
+        private volatile PayloadDecoder<M> decoder;
+        // Null if the handler runs on the event loop
+        final Bulkhead bulkhead;
+
+        Entry(boolean singleton, Provider<? extends MessageHandler<?, M>> provider, Class<M> payloadType, Codec codec, Bulkhead bulkhead) {
+            this.singleton = singleton;
+            this.provider = provider;
+            this.codec = codec;
+            this.decoder = payloadType == null ? null : decoderFor(payloadType, codec);
+            this.bulkhead = bulkhead;
+        }
+
+        /**
+         * Get the handler - the singleton instance if there is one, or a new
+         * one from the injector.
+         *
+         * @return A handler
+         */
+        MessageHandler<?, M> handler() {
+            MessageHandler<?, M> result = instance;
+            if (result == null) {
+                result = provider.get();
+                if (singleton) {
+                    // Racing threads get the same instance from Guice
+                    instance = result;
+                }
+            }
+            return result;
+        }
+
+        private PayloadDecoder<M> decoder() {
+            PayloadDecoder<M> result = decoder;
+            if (result == null) {
+                decoder = result = decoderFor(handler().messageType(), codec);
+            }
+            return result;
+        }
+
+        /**
+         * Decode the payload of an inbound message into the type the handler
+         * expects.
+         *
+         * @param type The message type
+         * @param buf The payload
+         * @return A message
+         * @throws IOException If the payload cannot be decoded
+         */
+        Message<M> decode(MessageType type, ByteBuf buf) throws IOException {
+            return type.newMessage(decoder().decode(buf));
+        }
+
+        /**
+         * Decode an inbound message, keeping its correlation id if it is a
+         * request.
+         *
+         * @param decoded The message type and payload
+         * @return A message
+         * @throws IOException If the payload cannot be decoded
+         */
+        Message<M> decode(MessageTypeAndBuffer decoded) throws IOException {
+            Message<M> result = decode(decoded.messageType, decoded.buf);
+            return decoded.correlationId == 0 ? result
+                    : result.correlated(decoded.correlationId, false);
+        }
+
+        private static <M> PayloadDecoder<M> decoderFor(Class<M> type, Codec codec) {
+            if (type == ByteBuf.class) {
+                return type::cast;
+            } else if (type == Void.class) {
+                return buf -> null;
+            }
+            return buf -> {
+                int start = buf.readerIndex();
+                try (ByteBufInputStream in = new ByteBufInputStream(buf)) {
+                    return codec.readValue(in, type);
+                } catch (JsonParseException ex) {
+                    buf.readerIndex(start);
+                    try (ByteBufInputStream in2 = new ByteBufInputStream(buf)) {
+                        throw new IOException("Invalid JSON: '" + Streams.readString(in2, 256) + "'", ex);
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Decode a payload into a type no handler is bound for, such as the
+     * expected type of a reply.
+     *
+     * @param type The type
+     * @param buf The payload
+     * @param codec The codec
+     * @return The payload object
+     * @throws IOException If the payload cannot be decoded
+     */
+    static <M> M decodePayload(Class<M> type, ByteBuf buf, Codec codec) throws IOException {
+        return Entry.decoderFor(type, codec).decode(buf);
+    }
+
+    private static final class StreamingEntry {
+
+        private final boolean singleton;
+        private final Provider<? extends StreamingMessageHandler> provider;
+        private volatile StreamingMessageHandler instance;
+
+        StreamingEntry(boolean singleton, Provider<? extends StreamingMessageHandler> provider) {
+            this.singleton = singleton;
+            this.provider = provider;
+        }
+
+        StreamingMessageHandler handler() {
+            StreamingMessageHandler result = instance;
+            if (result == null) {
+                result = provider.get();
+                if (singleton) {
+                    instance = result;
+                }
+            }
+            return result;
+        }
+    }
+
+    interface PayloadDecoder<M> {
+
+        M decode(ByteBuf buf) throws IOException;
+    }
+}
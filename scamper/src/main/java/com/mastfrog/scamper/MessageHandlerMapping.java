@@ -25,7 +25,10 @@ import com.mastfrog.util.preconditions.ConfigurationError;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /**
  * Maps message types to handlers
@@ -35,9 +38,17 @@ import java.util.Map;
 final class MessageHandlerMapping {
 
     private final Map<MessageType, Class<? extends MessageHandler<?, ?>>> map;
+    private final Map<MessageType, Class<? extends StreamingMessageHandler>> streaming;
+    private final Map<MessageType, String> bulkheadNames;
+    private final Map<String, Bulkheads.Spec> bulkheads;
 
-    private MessageHandlerMapping(Map<MessageType, Class<? extends MessageHandler<?, ?>>> map) {
+    private MessageHandlerMapping(Map<MessageType, Class<? extends MessageHandler<?, ?>>> map,
+            Map<MessageType, Class<? extends StreamingMessageHandler>> streaming,
+            Map<MessageType, String> bulkheadNames, Map<String, Bulkheads.Spec> bulkheads) {
         this.map = ImmutableMap.copyOf(map);
+        this.streaming = ImmutableMap.copyOf(streaming);
+        this.bulkheadNames = ImmutableMap.copyOf(bulkheadNames);
+        this.bulkheads = ImmutableMap.copyOf(bulkheads);
     }
 
     public Class<? extends MessageHandler<?, ?>> get(MessageType type) {
@@ -45,6 +56,41 @@ final class MessageHandlerMapping {
         return handler == null ? NullHandler.class : handler;
     }
 
+    /**
+     * The handler used for message types nothing is registered for.
+     *
+     * @return The handler type
+     */
+    Class<? extends MessageHandler<?, ?>> defaultHandler() {
+        return NullHandler.class;
+    }
+
+    void forEach(BiConsumer<MessageType, Class<? extends MessageHandler<?, ?>>> consumer) {
+        map.forEach(consumer);
+    }
+
+    boolean hasStreamingHandlers() {
+        return !streaming.isEmpty();
+    }
+
+    void forEachStreaming(BiConsumer<MessageType, Class<? extends StreamingMessageHandler>> consumer) {
+        streaming.forEach(consumer);
+    }
+
+    /**
+     * Get the name of the bulkhead the handler for a type runs in.
+     *
+     * @param type The message type
+     * @return A name, or null to run on the event loop
+     */
+    String bulkheadFor(MessageType type) {
+        return bulkheadNames.get(type);
+    }
+
+    void forEachBulkhead(Consumer<Bulkheads.Spec> consumer) {
+        bulkheads.values().forEach(consumer);
+    }
+
     @Singleton
     private static final class NullHandler extends MessageHandler<Void, ByteBuf> {
 
@@ -66,19 +112,55 @@ final class MessageHandlerMapping {
     static class Builder {
 
         private final Map<MessageType, Class<? extends MessageHandler<?, ?>>> map = new HashMap<>();
+        private final Map<MessageType, Class<? extends StreamingMessageHandler>> streaming = new HashMap<>();
+        private final Map<MessageType, String> bulkheadNames = new HashMap<>();
+        private final Map<String, Bulkheads.Spec> bulkheads = new LinkedHashMap<>();
+
+        public Builder add(MessageType type, Class<? extends MessageHandler<?, ?>> handler, String bulkhead) {
+            add(type, handler);
+            if (bulkhead != null) {
+                bulkheadNames.put(type, bulkhead);
+            }
+            return this;
+        }
+
+        public Builder addBulkhead(Bulkheads.Spec spec) {
+            Checks.notNull("spec", spec);
+            if (bulkheads.containsKey(spec.name)) {
+                throw new ConfigurationError("Already contains bulkhead " + spec.name);
+            }
+            bulkheads.put(spec.name, spec);
+            return this;
+        }
 
         public Builder add(MessageType type, Class<? extends MessageHandler<?, ?>> handler) {
             Checks.notNull("type", type);
             Checks.notNull("handler", handler);
-            if (map.containsKey(type)) {
+            if (map.containsKey(type) || streaming.containsKey(type)) {
                 throw new ConfigurationError("Already contains " + type);
             }
             map.put(type, handler);
             return this;
         }
 
+        public Builder addStreaming(MessageType type, Class<? extends StreamingMessageHandler> handler) {
+            Checks.notNull("type", type);
+            Checks.notNull("handler", handler);
+            if (map.containsKey(type) || streaming.containsKey(type)) {
+                throw new ConfigurationError("Already contains " + type);
+            }
+            streaming.put(type, handler);
+            return this;
+        }
+
         public MessageHandlerMapping build() {
-            return new MessageHandlerMapping(map);
+            bulkheadNames.forEach((type, name) -> {
+                if (!bulkheads.containsKey(name)) {
+                    throw new ConfigurationError("No bulkhead named " + name
+                            + " for " + type);
+                }
+            });
+            return new MessageHandlerMapping(map, streaming, bulkheadNames, bulkheads);
         }
     }
 }
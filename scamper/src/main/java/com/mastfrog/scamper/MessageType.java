@@ -36,7 +36,7 @@ public final class MessageType {
     private final String name;
     private final byte byteOne;
     private final byte byteTwo;
-    private boolean unknown;
+    private final boolean unknown;
     public static final int HEADER_SIZE = 2;
 
     public MessageType(String name, int byteOne, int byteTwo) {
@@ -82,6 +82,16 @@ public final class MessageType {
         return byteOne == one && byteTwo == two;
     }
 
+    /**
+     * The two header bytes as an unsigned 16-bit value, used as the index of
+     * this type in {@link MessageTypeRegistry}'s lookup table.
+     *
+     * @return The index
+     */
+    int index() {
+        return ((byteOne & 0xFF) << 8) | (byteTwo & 0xFF);
+    }
+
     /**
      * Returns true if this MessageType is not a registered one - it contains a
      * byte sequence the application doesn't recognize.
@@ -120,6 +130,18 @@ public final class MessageType {
         return buf.writeByte(byteOne).writeByte(byteTwo);
     }
 
+    /**
+     * Write this message type into a ByteBuf at a specific index, without
+     * altering its reader or writer index.
+     *
+     * @param buf The buffer
+     * @param index The index of the first byte of the header
+     * @return the buffer
+     */
+    public ByteBuf setHeader(ByteBuf buf, int index) {
+        return buf.setByte(index, byteOne).setByte(index + 1, byteTwo);
+    }
+
     public static MessageType createUnknown(int one, int two) {
         if (one > Byte.MAX_VALUE || one < Byte.MIN_VALUE) {
             throw new IllegalArgumentException("Illegal byte value " + one);
@@ -136,7 +158,7 @@ public final class MessageType {
 
     @Override
     public int hashCode() {
-        return ((byteOne & 0xFF) << 8) | (byteTwo & 0xFF);
+        return index();
     }
 
     @Override
@@ -11,10 +11,22 @@ public class MessageTypeAndBuffer {
     public final MessageType messageType;
     public final ByteBuf buf;
     public final int streamIdentifier;
+    final long correlationId;
+    final boolean reply;
 
     public MessageTypeAndBuffer(MessageType message, ByteBuf buf, int streamIdentifier) {
+        this(message, buf, streamIdentifier, 0, false);
+    }
+
+    MessageTypeAndBuffer(MessageType message, ByteBuf buf, int streamIdentifier, long correlationId, boolean reply) {
         this.messageType = message;
         this.buf = buf;
         this.streamIdentifier = streamIdentifier;
+        this.correlationId = correlationId;
+        this.reply = reply;
+    }
+
+    MessageTypeAndBuffer withCorrelation(long correlationId, boolean reply) {
+        return new MessageTypeAndBuffer(messageType, buf, streamIdentifier, correlationId, reply);
     }
 }
@@ -18,45 +18,55 @@
  */
 package com.mastfrog.scamper;
 
-import com.google.common.collect.ImmutableSet;
 import io.netty.buffer.ByteBuf;
 import java.util.Set;
 
 /**
+ * Looks up message types from the two header bytes that follow the codec's
+ * magic number. Types are held in a table indexed by the two header bytes, so
+ * decoding a header is a single array load; unrecognized headers get an
+ * unknown-type sentinel which is created once and cached in the same table.
  *
  * @author Tim Boudreau
  */
 public final class MessageTypeRegistry {
 
-    private final Set<MessageType> types;
+    private static final int TABLE_SIZE = 1 << 16;
+    private static final MessageType EMPTY = MessageType.createUnknown((byte) 0, (byte) 0);
+    private final MessageType[] table = new MessageType[TABLE_SIZE];
 
     MessageTypeRegistry(Set<MessageType> types) {
-        this.types = ImmutableSet.copyOf(types);
+        for (MessageType type : types) {
+            table[type.index()] = type;
+        }
     }
 
     void register(MessageType type) {
-        types.add(type);
+        table[type.index()] = type;
     }
 
     /**
      * Decode a message type from the <i>current position</i> of the
-     * passed ByteBuf.
+     * passed ByteBuf.  On return, the reader index of the buffer is
+     * positioned at the start of the payload;  no bytes are copied, and
+     * the buffer's marked reader index is left alone.  If fewer bytes than
+     * a header are readable, the reader index is reset to the mark.
+     *
      * @param buf
      * @return 
      */
     public MessageType forByteBuf(ByteBuf buf) {
-        if (buf.readableBytes() >= 2) {
-            byte one = buf.readByte();
-            byte two = buf.readByte();
-            for (MessageType mt : types) {
-                if (mt.match(one, two)) {
-                    buf.discardReadBytes();
-                    return mt;
-                }
+        if (buf.readableBytes() >= MessageType.HEADER_SIZE) {
+            int ix = buf.readUnsignedShort();
+            MessageType result = table[ix];
+            if (result == null) {
+                // Racy but benign - MessageType's fields are final, and
+                // the worst case is two equal sentinels for the same bytes
+                table[ix] = result = MessageType.createUnknown((byte) (ix >> 8), (byte) ix);
             }
-            return MessageType.createUnknown(one, two);
+            return result;
         }
         buf.resetReaderIndex();
-        return MessageType.createUnknown((byte) 0, (byte) 0);
+        return EMPTY;
     }
 }
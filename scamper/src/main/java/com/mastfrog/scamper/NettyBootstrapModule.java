@@ -21,18 +21,20 @@ package com.mastfrog.scamper;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.inject.AbstractModule;
 import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Scopes;
 import com.google.inject.name.Named;
 import com.google.inject.name.Names;
 import com.mastfrog.giulius.ShutdownHookRegistry;
 import static com.mastfrog.scamper.ProtocolModule.GUICE_BINDING_SCAMPER_BOSS_THREADS;
 import static com.mastfrog.scamper.ProtocolModule.GUICE_BINDING_SCAMPER_CODEC;
 import static com.mastfrog.scamper.ProtocolModule.GUICE_BINDING_SCAMPER_WORKER_THREADS;
+import com.mastfrog.settings.Settings;
 import com.mastfrog.util.codec.Codec;
 import de.undercouch.bson4jackson.BsonFactory;
 import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -41,7 +43,8 @@ import java.util.List;
 /**
  * Does the basics of initializing various Netty classes, and ensures that if
  * Dependencies.shutdown() is called, all Netty-related thread-pools and
- * connections are shut down cleanly.
+ * connections are shut down cleanly. The event loop groups are those of the
+ * {@link Transport} set in <code>sctp.transport</code>.
  * <p>
  * If you are using ProtocolModule, it will take care of installing one of these
  * on its own.
@@ -94,12 +97,52 @@ final class NettyBootstrapModule extends AbstractModule {
         }
         bind(Netty5Handler.class).annotatedWith(Names.named("dispatcher")).to(adap);
         bind(Netty5Handler.class).annotatedWith(Names.named("processor")).to(InboundMessageDecoder.class);
-        bind(EventLoopGroup.class).annotatedWith(Names.named(GUICE_BINDING_SCAMPER_BOSS_THREADS)).toInstance(new NioEventLoopGroup(bossThreads));
-        bind(EventLoopGroup.class).annotatedWith(Names.named(GUICE_BINDING_SCAMPER_WORKER_THREADS)).toInstance(workerThreads == -1 ? new NioEventLoopGroup() : new NioEventLoopGroup(workerThreads));
+        bind(Transport.class).toProvider(TransportProvider.class).in(Scopes.SINGLETON);
+        bind(EventLoopGroup.class).annotatedWith(Names.named(GUICE_BINDING_SCAMPER_BOSS_THREADS)).toProvider(new EventLoopGroupProvider(bossThreads)).in(Scopes.SINGLETON);
+        bind(EventLoopGroup.class).annotatedWith(Names.named(GUICE_BINDING_SCAMPER_WORKER_THREADS)).toProvider(new EventLoopGroupProvider(workerThreads)).in(Scopes.SINGLETON);
         bind(ByteBufAllocator.class).annotatedWith(Names.named(GUICE_BINDING_SCAMPER_CODEC)).toInstance(new PooledByteBufAllocator(true));
         bind(ShutdownHandler.class).asEagerSingleton();
     }
 
+    static final class TransportProvider implements Provider<Transport> {
+
+        private final Transport transport;
+
+        @Inject
+        TransportProvider(Settings settings) {
+            transport = Transport.of(settings);
+        }
+
+        @Override
+        public Transport get() {
+            return transport;
+        }
+    }
+
+    /**
+     * Creates an event loop group of the transport's kind; Guice injects the
+     * transport before the first call.
+     */
+    static final class EventLoopGroupProvider implements Provider<EventLoopGroup> {
+
+        private final int threads;
+        private Transport transport;
+
+        EventLoopGroupProvider(int threads) {
+            this.threads = threads;
+        }
+
+        @Inject
+        void setTransport(Transport transport) {
+            this.transport = transport;
+        }
+
+        @Override
+        public EventLoopGroup get() {
+            return transport.newEventLoopGroup(threads);
+        }
+    }
+
     static class ShutdownHandler implements Runnable {
 
         private final EventLoopGroup boss;
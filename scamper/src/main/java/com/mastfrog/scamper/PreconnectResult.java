@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The outcome of {@link Sender#preconnect}: which addresses every
+ * association could be opened to, and why the rest could not.
+ *
+ * @author Tim Boudreau
+ */
+public final class PreconnectResult {
+
+    private final Set<Address> connected;
+    private final Map<Address, Throwable> failures;
+
+    PreconnectResult(Set<Address> connected, Map<Address, Throwable> failures) {
+        this.connected = Collections.unmodifiableSet(connected);
+        this.failures = Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * Get the addresses connected to.
+     *
+     * @return A set of addresses
+     */
+    public Set<Address> connected() {
+        return connected;
+    }
+
+    /**
+     * Get the addresses which could not be connected to, with the cause of
+     * the first failed connect to each.
+     *
+     * @return A map of addresses to failures
+     */
+    public Map<Address, Throwable> failures() {
+        return failures;
+    }
+
+    /**
+     * Determine if every address was connected to.
+     *
+     * @return true if there were no failures
+     */
+    public boolean isSuccess() {
+        return failures.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "PreconnectResult{connected=" + connected.size() + ", failures=" + failures + "}";
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import com.sun.nio.sctp.SctpStandardSocketOptions;
+import io.netty.channel.ChannelFactory;
+import io.netty.channel.sctp.nio.NioSctpChannel;
+import java.io.IOException;
+import java.net.SocketAddress;
+
+/**
+ * A client SCTP channel whose primary path can be set, which Netty does not
+ * expose as a channel option - used to steer a multi-homed association back
+ * to the primary host of its Address after connecting through an alternate.
+ *
+ * @author Tim Boudreau
+ */
+final class PrimaryPathSctpChannel extends NioSctpChannel {
+
+    // Typed, since Bootstrap.channelFactory() is overloaded
+    static final ChannelFactory<PrimaryPathSctpChannel> FACTORY = PrimaryPathSctpChannel::new;
+
+    /**
+     * Make one of the peer's addresses the path the kernel sends on while
+     * it is reachable.
+     *
+     * @param address One of the peer's addresses
+     * @throws IOException If it is not one of them, or the channel is closed
+     */
+    void setPrimaryAddress(SocketAddress address) throws IOException {
+        javaChannel().setOption(SctpStandardSocketOptions.SCTP_PRIMARY_ADDR, address);
+    }
+}
@@ -19,6 +19,7 @@
 package com.mastfrog.scamper;
 
 import com.google.inject.AbstractModule;
+import com.mastfrog.util.preconditions.Checks;
 import com.mastfrog.util.preconditions.ConfigurationError;
 import java.security.SecureRandom;
 import java.util.HashSet;
@@ -47,6 +48,146 @@ public class ProtocolModule extends AbstractModule {
     public static final String GUICE_BINDING_SCAMPER_BOSS_THREADS = "scamper-boss";
     public static final String GUICE_BINDING_SCAMPER_WORKER_THREADS = "scamper-worker";
     public static final String SETTINGS_KEY_SCTP_PORT = "sctp.port";
+    /**
+     * Settings key which, if true, replaces the four-stage inbound pipeline
+     * with a single handler that reassembles, decodes and dispatches each
+     * message in one pass. Codecs which rely on seeing raw ByteBufs in the
+     * pipeline cannot be used with it, and neither can replacements for the
+     * handlers bound as <code>@Named("dispatcher")</code> and
+     * <code>@Named("processor")</code>, which it does the work of; creating
+     * the channel initializer fails if either is replaced.
+     */
+    public static final String SETTINGS_KEY_FUSED_PIPELINE = "sctp.fused.pipeline";
+    /**
+     * Settings key for coalescing writes which Sender is asked to make from
+     * threads other than the channel's event loop. If zero or greater, such
+     * writes are queued per channel and written and flushed in batches, and
+     * the value is the maximum number of microseconds the first write in a
+     * batch waits for others to join it. Negative (the default) disables
+     * coalescing.
+     */
+    public static final String SETTINGS_KEY_COALESCE_MICROS = "sctp.write.coalesce.micros";
+    /**
+     * Settings key for the maximum number of coalesced writes between
+     * flushes; the default is 256.
+     */
+    public static final String SETTINGS_KEY_COALESCE_MAX_BATCH = "sctp.write.coalesce.max.batch";
+    /**
+     * Settings key for the {@link WritePolicy} Sender applies when a channel
+     * is not writable, if none is passed explicitly; the default is
+     * <code>IGNORE</code>.
+     */
+    public static final String SETTINGS_KEY_WRITE_POLICY = "sctp.write.policy";
+    /**
+     * Settings key for the number of bytes pending in a channel's outbound
+     * buffer below which it becomes writable again.
+     */
+    public static final String SETTINGS_KEY_WRITE_BUFFER_LOW_WATER_MARK = "sctp.write.buffer.low.water.mark";
+    /**
+     * Settings key for the number of bytes pending in a channel's outbound
+     * buffer above which it is no longer writable.
+     */
+    public static final String SETTINGS_KEY_WRITE_BUFFER_HIGH_WATER_MARK = "sctp.write.buffer.high.water.mark";
+    /**
+     * Settings key for the number of bytes all associations together may
+     * hold in queued fragments, inbound messages being handled and pending
+     * sends, enforced by {@link MemoryGovernor}. Unlimited by default.
+     */
+    public static final String SETTINGS_KEY_MEMORY_BUDGET = "sctp.memory.budget";
+    /**
+     * Settings key for the memory use above which reading is paused on all
+     * associations; three quarters of the budget by default.
+     */
+    public static final String SETTINGS_KEY_MEMORY_HIGH_WATER_MARK = "sctp.memory.high.water.mark";
+    /**
+     * Settings key for the memory use below which paused reading resumes;
+     * half of the budget by default.
+     */
+    public static final String SETTINGS_KEY_MEMORY_LOW_WATER_MARK = "sctp.memory.low.water.mark";
+    /**
+     * Settings key for how often, in milliseconds, {@link EventLoopLag}
+     * measures how late the event loops are running; unset, zero or less
+     * leaves it off.
+     */
+    public static final String SETTINGS_KEY_EVENT_LOOP_LAG_SAMPLE_MILLIS = "sctp.event.loop.lag.sample.millis";
+    /**
+     * Settings key which, if greater than zero, runs each inbound message's
+     * handler on a virtual thread, keeping messages on the same SCTP stream
+     * in order, with at most this many handlers of each message type running
+     * at once.
+     */
+    public static final String SETTINGS_KEY_VIRTUAL_THREADS_PER_TYPE = "sctp.virtual.threads.per.type";
+    /**
+     * Settings key which, if greater than zero, decodes and handles inbound
+     * messages on this many worker threads, chosen by association and SCTP
+     * stream, rather than on the association's event loop.
+     */
+    public static final String SETTINGS_KEY_STREAM_PARTITIONS = "sctp.stream.partitions";
+    /**
+     * Settings key for the number of associations to open to each remote
+     * address, so that heavy traffic to one peer is spread over several
+     * event loops; default 1.
+     */
+    public static final String SETTINGS_KEY_ASSOCIATIONS_PER_ADDRESS = "sctp.associations.per.address";
+    /**
+     * Settings key for the delay, in milliseconds, before reconnecting to an
+     * address after the first failed connect; it doubles, with jitter, after
+     * each further failure. Until it passes, connects to the address fail at
+     * once with the cached failure. Default 100.
+     */
+    public static final String SETTINGS_KEY_RECONNECT_BACKOFF_MILLIS = "sctp.reconnect.backoff.millis";
+    /**
+     * Settings key for the most the reconnect delay grows to, in
+     * milliseconds. Default 30000.
+     */
+    public static final String SETTINGS_KEY_RECONNECT_BACKOFF_MAX_MILLIS = "sctp.reconnect.backoff.max.millis";
+    /**
+     * Settings key for the number of messages which may wait for an
+     * association to an address to finish connecting; they are written in
+     * one batch once it has. Default 1024.
+     */
+    public static final String SETTINGS_KEY_CONNECT_QUEUE_SIZE = "sctp.connect.queue.size";
+    /**
+     * Settings key for how long, in milliseconds, an address may go without
+     * messages sent to or received from it before its associations are
+     * closed; zero or less (the default) never closes them.
+     */
+    public static final String SETTINGS_KEY_ASSOCIATION_IDLE_MILLIS = "sctp.association.idle.millis";
+    /**
+     * Settings key for the most addresses to keep associations to; past it,
+     * those of the least recently used address are closed. Zero or less (the
+     * default) means no limit.
+     */
+    public static final String SETTINGS_KEY_MAX_ASSOCIATIONS = "sctp.max.associations";
+    /**
+     * Settings key for a comma-separated list of local addresses for the
+     * server to bind, so that peers can reach it over several paths; by
+     * default it binds the wildcard address.
+     */
+    public static final String SETTINGS_KEY_BIND_ADDRESSES = "sctp.bind.addresses";
+    /**
+     * Settings key for the {@link Transport} to use - <code>SCTP</code> (the
+     * default), <code>TCP</code> or <code>UNIX_DOMAIN_SOCKET</code>.
+     */
+    public static final String SETTINGS_KEY_TRANSPORT = "sctp.transport";
+    /**
+     * Settings key for the number of stream ids messages are spread over
+     * when the transport is not SCTP, which has its own; default 16, at most
+     * 65535.
+     */
+    public static final String SETTINGS_KEY_VIRTUAL_STREAMS = "sctp.virtual.streams";
+    /**
+     * Settings key for the largest message, in bytes, accepted over a
+     * transport other than SCTP; a larger frame is discarded and the error
+     * handler called. Default 16Mb.
+     */
+    public static final String SETTINGS_KEY_MAX_FRAME_BYTES = "sctp.max.frame.bytes";
+    /**
+     * Settings key for the path of the socket a server listens on when the
+     * transport is Unix domain sockets; by default, a file named for the
+     * port in the temporary directory.
+     */
+    public static final String SETTINGS_KEY_SOCKET_PATH = "sctp.socket.path";
 
     public ProtocolModule() {
         this(1, 8, DataEncoding.BSON);
@@ -68,10 +209,15 @@ public class ProtocolModule extends AbstractModule {
     }
 
     void addEntry(Entry entry) {
-        bind(entry.message, entry.type);
+        if (entry.streamingType != null) {
+            bindStreaming(entry.message, entry.streamingType);
+        } else {
+            bind(entry.message, entry.type, entry.bulkhead);
+        }
     }
 
     private final List<Entry> entries = new LinkedList<>();
+    private final List<Bulkheads.Spec> bulkheads = new LinkedList<>();
 
     private final List<com.fasterxml.jackson.databind.Module> jacksonModules = new LinkedList<>();
 
@@ -89,17 +235,80 @@ public class ProtocolModule extends AbstractModule {
      * @return this
      */
     public ProtocolModule bind(MessageType type, Class<? extends MessageHandler<?, ?>> handlerType) {
+        return bind(type, handlerType, null);
+    }
+
+    /**
+     * Add a handler type which will receive messages that match the passed
+     * message type, running on the threads of the named {@link Bulkhead}
+     * rather than on the event loop.
+     *
+     * @param type The message type
+     * @param handlerType The handler that should be instantiated to handle them
+     * @param bulkhead The name of a bulkhead defined with
+     * <code>withBulkhead()</code>, or null to run on the event loop
+     * @return this
+     */
+    public ProtocolModule bind(MessageType type, Class<? extends MessageHandler<?, ?>> handlerType, String bulkhead) {
+        checkUnbound(type);
+        entries.add(new Entry(type, handlerType, null, bulkhead));
+        return this;
+    }
+
+    /**
+     * Define a bulkhead - a pool of threads with a bounded queue - which
+     * handlers can be bound to, to keep slow handlers off the event loop.
+     *
+     * @param name The name
+     * @param threads The number of threads
+     * @param queueCapacity The number of messages which may wait for a thread
+     * @param policy What to do with a message when the queue is full
+     * @return this
+     */
+    public ProtocolModule withBulkhead(String name, int threads, int queueCapacity, RejectionPolicy policy) {
+        Checks.notNull("name", name);
+        Checks.nonZero("threads", threads);
+        Checks.nonNegative("threads", threads);
+        Checks.nonZero("queueCapacity", queueCapacity);
+        Checks.nonNegative("queueCapacity", queueCapacity);
+        Checks.notNull("policy", policy);
+        if (configureRan) {
+            throw new IllegalStateException("Cannot add bulkheads after injector creation");
+        }
+        for (Bulkheads.Spec spec : bulkheads) {
+            if (spec.name.equals(name)) {
+                throw new ConfigurationError("Bulkhead " + name + " already defined");
+            }
+        }
+        bulkheads.add(new Bulkheads.Spec(name, threads, queueCapacity, policy));
+        return this;
+    }
+
+    /**
+     * Add a handler type which will receive messages that match the passed
+     * message type as a stream of chunks, as their fragments arrive, rather
+     * than once they have been reassembled and decoded.
+     *
+     * @param type The message type
+     * @param handlerType The handler that should be instantiated to handle them
+     * @return this
+     */
+    public ProtocolModule bindStreaming(MessageType type, Class<? extends StreamingMessageHandler> handlerType) {
+        checkUnbound(type);
+        entries.add(new Entry(type, null, handlerType, null));
+        return this;
+    }
+
+    private void checkUnbound(MessageType type) {
         if (configureRan) {
             throw new IllegalStateException("Cannot bind after injector creation");
         }
         for (Entry entry : entries) {
             if (entry.message.equals(type)) {
-                throw new ConfigurationError(entry.type + " was already "
+                throw new ConfigurationError(entry.handlerName() + " was already "
                         + "registered for " + type);
             }
         }
-        entries.add(new Entry(type, handlerType));
-        return this;
     }
 
     @Override
@@ -115,22 +324,46 @@ public class ProtocolModule extends AbstractModule {
         // Collect all the types registered
         Set<MessageType> allTypes = new HashSet<>();
         MessageHandlerMapping.Builder bldr = new MessageHandlerMapping.Builder();
+        for (Bulkheads.Spec spec : bulkheads) {
+            bldr.addBulkhead(spec);
+        }
         for (Entry e : entries) {
             allTypes.add(e.message);
-            bldr.add(e.message, e.type);
+            if (e.streamingType != null) {
+                bldr.addStreaming(e.message, e.streamingType);
+            } else {
+                bldr.add(e.message, e.type, e.bulkhead);
+            }
         }
         bind(MessageHandlerMapping.class).toInstance(bldr.build());
         bind(MessageTypeRegistry.class).toInstance(new MessageTypeRegistry(allTypes));
+        // Compile the dispatch table up front; handlers are created on first use
+        bind(MessageDispatch.class).asEagerSingleton();
+        bind(CorrelationHeader.CodecCheck.class).asEagerSingleton();
+        bind(EventLoopLag.class).asEagerSingleton();
+        bind(IdleAssociationReaper.class).asEagerSingleton();
     }
 
     static final class Entry {
 
         final MessageType message;
         final Class<? extends MessageHandler<?, ?>> type;
+        final Class<? extends StreamingMessageHandler> streamingType;
+        final String bulkhead;
 
         public Entry(MessageType message, Class<? extends MessageHandler<?, ?>> type) {
+            this(message, type, null, null);
+        }
+
+        Entry(MessageType message, Class<? extends MessageHandler<?, ?>> type, Class<? extends StreamingMessageHandler> streamingType, String bulkhead) {
             this.message = message;
             this.type = type;
+            this.streamingType = streamingType;
+            this.bulkhead = bulkhead;
+        }
+
+        Class<?> handlerName() {
+            return streamingType != null ? streamingType : type;
         }
     }
 }
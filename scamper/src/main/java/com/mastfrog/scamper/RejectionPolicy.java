@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+/**
+ * What a {@link Bulkhead} does with a message when its queue is full.
+ *
+ * @author Tim Boudreau
+ */
+public enum RejectionPolicy {
+    /**
+     * Discard the message; a request sent with <code>Sender.request()</code>
+     * will time out.
+     */
+    DROP,
+    /**
+     * Pass a RejectedExecutionException to the {@link ErrorHandler}, which
+     * by default closes the association.
+     */
+    FAIL,
+    /**
+     * Run the handler on the event loop the message arrived on, as if it had
+     * no bulkhead, slowing that loop down until the queue drains.
+     */
+    CALLER_RUNS
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.mastfrog.giulius.ShutdownHookRegistry;
+import static com.mastfrog.scamper.ProtocolModule.GUICE_BINDING_SCAMPER_CODEC;
+import com.mastfrog.util.codec.Codec;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks requests sent with <code>Sender.request()</code> until their reply
+ * arrives or they time out. Outstanding requests are kept in long-keyed maps,
+ * striped to keep lock contention down, and timeouts are scheduled on a
+ * single HashedWheelTimer, so very large numbers of requests can be in flight
+ * at little cost each.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class RequestCorrelator implements Runnable {
+
+    private static final int STRIPES = 32;
+    private static final long TICK_MILLIS = 10;
+    private static final Logger logger = Logger.getLogger(RequestCorrelator.class.getName());
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final LongMap<Pending<?>>[] stripes = new LongMap[STRIPES];
+    private final AtomicLong ids = new AtomicLong();
+    private final Timer timer = new HashedWheelTimer(new DefaultThreadFactory("scamper-request-timeouts", true),
+            TICK_MILLIS, TimeUnit.MILLISECONDS);
+    private final Codec codec;
+
+    @Inject
+    RequestCorrelator(@Named(GUICE_BINDING_SCAMPER_CODEC) Codec codec, ShutdownHookRegistry reg) {
+        this(codec);
+        reg.add(this);
+    }
+
+    RequestCorrelator(Codec codec) {
+        this.codec = codec;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new LongMap<>();
+        }
+    }
+
+    private LongMap<Pending<?>> stripe(long id) {
+        return stripes[(int) (id & (STRIPES - 1))];
+    }
+
+    /**
+     * Register a request about to be sent.
+     *
+     * @param type The type the reply's payload should be decoded as
+     * @param timeout How long to wait for the reply
+     * @return A pending request, whose id should be sent with it
+     */
+    <R> Pending<R> register(Class<R> type, Duration timeout) {
+        long id = ids.incrementAndGet();
+        Pending<R> result = new Pending<>(id, type);
+        LongMap<Pending<?>> stripe = stripe(id);
+        synchronized (stripe) {
+            stripe.put(id, result);
+        }
+        // However the future completes - reply, timeout, failed send or
+        // cancellation by the caller - stop tracking it
+        result.future.whenComplete((msg, thrown) -> {
+            remove(id);
+            Timeout t = result.timeout;
+            if (t != null) {
+                t.cancel();
+            }
+        });
+        result.timeout = timer.newTimeout(result, timeout.toNanos(), TimeUnit.NANOSECONDS);
+        if (result.future.isDone()) {
+            result.timeout.cancel();
+        }
+        return result;
+    }
+
+    private Pending<?> remove(long id) {
+        LongMap<Pending<?>> stripe = stripe(id);
+        synchronized (stripe) {
+            return stripe.remove(id);
+        }
+    }
+
+    int outstanding() {
+        int result = 0;
+        for (LongMap<Pending<?>> stripe : stripes) {
+            synchronized (stripe) {
+                result += stripe.size();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Complete the request an inbound reply answers. Replies to requests
+     * which have already timed out are discarded.
+     *
+     * @param reply The reply
+     */
+    void complete(MessageTypeAndBuffer reply) {
+        Pending<?> pending = remove(reply.correlationId);
+        if (pending == null) {
+            logger.log(Level.FINE, "Discarding reply to unknown or timed out request {0} of type {1}",
+                    new Object[]{reply.correlationId, reply.messageType});
+            return;
+        }
+        pending.complete(reply, codec);
+    }
+
+    @Override
+    public void run() {
+        timer.stop();
+        IOException ex = new IOException("Shut down");
+        for (LongMap<Pending<?>> stripe : stripes) {
+            synchronized (stripe) {
+                stripe.drain(p -> p.future.completeExceptionally(ex));
+            }
+        }
+    }
+
+    static final class Pending<R> implements TimerTask {
+
+        final long id;
+        final CompletableFuture<Message<R>> future = new CompletableFuture<>();
+        private final Class<R> type;
+        volatile Timeout timeout;
+
+        Pending(long id, Class<R> type) {
+            this.id = id;
+            this.type = type;
+        }
+
+        void complete(MessageTypeAndBuffer reply, Codec codec) {
+            try {
+                // The inbound buffer is released once the pipeline is done
+                // with it, and the future's callbacks may run later
+                R body = type == ByteBuf.class
+                        ? type.cast(Unpooled.copiedBuffer(reply.buf))
+                        : MessageDispatch.decodePayload(type, reply.buf, codec);
+                future.complete(reply.messageType.newMessage(body));
+            } catch (IOException | RuntimeException ex) {
+                future.completeExceptionally(ex);
+            }
+        }
+
+        @Override
+        public void run(Timeout timeout) {
+            future.completeExceptionally(new TimeoutException("No reply to request " + id));
+        }
+    }
+}
@@ -22,6 +22,7 @@ import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.name.Named;
 import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_SCTP_PORT;
+import com.mastfrog.settings.Settings;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
@@ -31,20 +32,23 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * An SCTP client which will send and receive SCTP messages.
+ * An SCTP client which will send and receive SCTP messages. Over Unix domain
+ * sockets, it connects to <code>sctp.socket.path</code> rather than the host.
  */
 public final class SctpClient {
 
     private final String host;
     private final int port;
     private final ChannelConfigurer configurer;
+    private final String socketPath;
     private static final Logger logger = Logger.getLogger(SctpClient.class.getName());
 
     @Inject
-    SctpClient(@Named("host") String host, @Named(SETTINGS_KEY_SCTP_PORT) int port, Provider<Netty5Handler> handler, ChannelConfigurer configurer) {
+    SctpClient(@Named("host") String host, @Named(SETTINGS_KEY_SCTP_PORT) int port, Provider<Netty5Handler> handler, ChannelConfigurer configurer, Settings settings) {
         this.host = host;
         this.port = port;
         this.configurer = configurer;
+        this.socketPath = Transport.socketPath(settings, port);
     }
 
     /**
@@ -65,7 +69,9 @@ public final class SctpClient {
 
         logger.log(Level.INFO, "Start for {0} on {1}", new Object[]{host, port});
         // Start the client.
-        ChannelFuture f = b.connect(host, port);
+        ChannelFuture f = configurer.transport == Transport.UNIX_DOMAIN_SOCKET
+                ? b.connect(configurer.transport.remoteAddress(socketPath, port))
+                : b.connect(host, port);
         if (logger.isLoggable(Level.FINE)) {
             f.addListener(new ChannelFutureListener() {
 
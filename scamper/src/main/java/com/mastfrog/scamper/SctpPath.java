@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import java.net.InetSocketAddress;
+
+/**
+ * The status of, and traffic over, one path of a multi-homed association -
+ * one of the peer's addresses - as returned by {@link Sender#paths}.
+ * <p>
+ * Inbound counts are exact, by the address each message arrived from. The
+ * kernel does not say which path an outbound message leaves on, so outbound
+ * counts go to the primary path while it is reachable, otherwise to the
+ * first reachable path, which is where the kernel sends new data;
+ * retransmissions are not seen at all.
+ *
+ * @author Tim Boudreau
+ */
+public final class SctpPath {
+
+    /**
+     * The state of a path, as last reported by the kernel.
+     */
+    public enum State {
+        /**
+         * Reachable, or not yet reported otherwise.
+         */
+        ACTIVE,
+        /**
+         * Heartbeats or retransmissions to it have failed.
+         */
+        UNREACHABLE,
+        /**
+         * The peer no longer uses this address.
+         */
+        REMOVED
+    }
+
+    private final InetSocketAddress address;
+    private final State state;
+    private final boolean primary;
+    private final long messagesIn;
+    private final long bytesIn;
+    private final long messagesOut;
+    private final long bytesOut;
+
+    SctpPath(InetSocketAddress address, State state, boolean primary, long messagesIn,
+            long bytesIn, long messagesOut, long bytesOut) {
+        this.address = address;
+        this.state = state;
+        this.primary = primary;
+        this.messagesIn = messagesIn;
+        this.bytesIn = bytesIn;
+        this.messagesOut = messagesOut;
+        this.bytesOut = bytesOut;
+    }
+
+    public InetSocketAddress address() {
+        return address;
+    }
+
+    public State state() {
+        return state;
+    }
+
+    /**
+     * Determine if this is the association's primary path.
+     *
+     * @return true if it is
+     */
+    public boolean isPrimary() {
+        return primary;
+    }
+
+    public long messagesIn() {
+        return messagesIn;
+    }
+
+    public long bytesIn() {
+        return bytesIn;
+    }
+
+    public long messagesOut() {
+        return messagesOut;
+    }
+
+    public long bytesOut() {
+        return bytesOut;
+    }
+
+    @Override
+    public String toString() {
+        return "SctpPath{" + address + (primary ? " primary " : " ") + state
+                + ", in=" + messagesIn + "/" + bytesIn + "b, out="
+                + messagesOut + "/" + bytesOut + "b}";
+    }
+}
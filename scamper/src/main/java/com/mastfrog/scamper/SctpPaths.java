@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import com.sun.nio.sctp.PeerAddressChangeNotification;
+import io.netty.channel.Channel;
+import io.netty.channel.sctp.SctpChannel;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The paths of one multi-homed association, with the state the kernel last
+ * reported for each in a peer address change notification, and traffic
+ * counters. Only created for associations whose peer has more than one
+ * address, so single-homed associations count nothing.
+ *
+ * @author Tim Boudreau
+ */
+final class SctpPaths {
+
+    private final ConcurrentMap<InetSocketAddress, Counters> paths = new ConcurrentHashMap<>(4);
+    private volatile InetSocketAddress primary;
+
+    SctpPaths(Collection<InetSocketAddress> remote, InetSocketAddress primary) {
+        for (InetSocketAddress address : remote) {
+            paths.put(address, new Counters());
+        }
+        primary(primary);
+    }
+
+    /**
+     * Create the paths of a channel the first time its peer is seen to be
+     * multi-homed.
+     *
+     * @param channel The channel
+     * @param state Its state
+     * @return The paths, or null if the peer has a single address
+     */
+    static SctpPaths of(SctpChannel channel, AssociationState state) {
+        SctpPaths result = state.paths();
+        if (result == null) {
+            Set<InetSocketAddress> remote = channel.allRemoteAddresses();
+            if (remote.size() > 1) {
+                state.paths(result = new SctpPaths(remote, channel.remoteAddress()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Record a peer address change notification, which Netty fires as a user
+     * event; called on the channel's event loop.
+     *
+     * @param channel The channel
+     * @param notification The notification
+     */
+    static void changed(Channel channel, PeerAddressChangeNotification notification) {
+        if (!(channel instanceof SctpChannel) || !(notification.address() instanceof InetSocketAddress)) {
+            return;
+        }
+        SctpPaths paths = of((SctpChannel) channel, AssociationState.of(channel));
+        if (paths != null) {
+            paths.changed((InetSocketAddress) notification.address(), notification.event());
+        }
+    }
+
+    void changed(InetSocketAddress address, PeerAddressChangeNotification.AddressChangeEvent event) {
+        Counters counters = counters(address);
+        switch (event) {
+            case ADDR_MADE_PRIMARY:
+                primary = address;
+                counters.state = SctpPath.State.ACTIVE;
+                break;
+            case ADDR_ADDED:
+            case ADDR_AVAILABLE:
+            case ADDR_CONFIRMED:
+                counters.state = SctpPath.State.ACTIVE;
+                break;
+            case ADDR_UNREACHABLE:
+                counters.state = SctpPath.State.UNREACHABLE;
+                break;
+            case ADDR_REMOVED:
+                counters.state = SctpPath.State.REMOVED;
+                break;
+            default:
+                break;
+        }
+    }
+
+    void primary(InetSocketAddress address) {
+        if (address != null) {
+            counters(address);
+            primary = address;
+        }
+    }
+
+    void received(SocketAddress from, int bytes) {
+        if (from instanceof InetSocketAddress) {
+            Counters counters = counters((InetSocketAddress) from);
+            counters.messagesIn.incrementAndGet();
+            counters.bytesIn.addAndGet(bytes);
+        }
+    }
+
+    void sent(int bytes) {
+        Counters counters = outbound();
+        if (counters != null) {
+            counters.messagesOut.incrementAndGet();
+            counters.bytesOut.addAndGet(bytes);
+        }
+    }
+
+    /**
+     * Get the path new data goes out on: the primary while it is reachable,
+     * otherwise the first path which is.
+     */
+    private Counters outbound() {
+        InetSocketAddress p = primary;
+        Counters result = p == null ? null : paths.get(p);
+        if (result != null && result.state == SctpPath.State.ACTIVE) {
+            return result;
+        }
+        for (Counters counters : paths.values()) {
+            if (counters.state == SctpPath.State.ACTIVE) {
+                return counters;
+            }
+        }
+        return result;
+    }
+
+    private Counters counters(InetSocketAddress address) {
+        return paths.computeIfAbsent(address, a -> new Counters());
+    }
+
+    /**
+     * Get the status of each path, the primary first.
+     *
+     * @return A list of paths
+     */
+    List<SctpPath> snapshot() {
+        InetSocketAddress p = primary;
+        List<SctpPath> result = new ArrayList<>(paths.size());
+        for (Map.Entry<InetSocketAddress, Counters> e : paths.entrySet()) {
+            boolean isPrimary = e.getKey().equals(p);
+            SctpPath path = e.getValue().snapshot(e.getKey(), isPrimary);
+            if (isPrimary) {
+                result.add(0, path);
+            } else {
+                result.add(path);
+            }
+        }
+        return result;
+    }
+
+    private static final class Counters {
+
+        private final AtomicLong messagesIn = new AtomicLong();
+        private final AtomicLong bytesIn = new AtomicLong();
+        private final AtomicLong messagesOut = new AtomicLong();
+        private final AtomicLong bytesOut = new AtomicLong();
+        private volatile SctpPath.State state = SctpPath.State.ACTIVE;
+
+        SctpPath snapshot(InetSocketAddress address, boolean primary) {
+            return new SctpPath(address, state, primary, messagesIn.get(), bytesIn.get(),
+                    messagesOut.get(), bytesOut.get());
+        }
+    }
+}
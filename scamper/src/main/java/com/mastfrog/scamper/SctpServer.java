@@ -21,12 +21,22 @@ package com.mastfrog.scamper;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import com.mastfrog.giulius.ShutdownHookRegistry;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_BIND_ADDRESSES;
 import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_SCTP_PORT;
+import com.mastfrog.settings.Settings;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.sctp.SctpServerChannel;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -34,18 +44,30 @@ import java.util.logging.Logger;
 /**
  * An SCTP server which will listen on the specified port and decode and pass
  * received messages to the bound MessageHandlers.
+ * <p>
+ * If <code>sctp.bind.addresses</code> lists several local addresses, the
+ * server binds the first and adds the rest to the same socket, so each
+ * association to it is multi-homed.
+ * <p>
+ * Over TCP it listens on the port, and only the first bind address is used;
+ * over Unix domain sockets, it listens on <code>sctp.socket.path</code>
+ * instead.
  */
 public final class SctpServer {
 
     private final int port;
     private final ChannelConfigurer config;
+    private final List<InetAddress> bindAddresses;
+    private final String socketPath;
     private ChannelFuture future;
     private static final Logger logger = Logger.getLogger(SctpServer.class.getName());
 
     @Inject
-    SctpServer(@Named(SETTINGS_KEY_SCTP_PORT) int port, ChannelConfigurer config, ShutdownHookRegistry reg) {
+    SctpServer(@Named(SETTINGS_KEY_SCTP_PORT) int port, ChannelConfigurer config, ShutdownHookRegistry reg, Settings settings) {
         this.port = port;
         this.config = config;
+        this.bindAddresses = bindAddresses(settings.getString(SETTINGS_KEY_BIND_ADDRESSES));
+        this.socketPath = Transport.socketPath(settings, port);
         reg.add(new Runnable() {
 
             @Override
@@ -62,6 +84,24 @@ public final class SctpServer {
         });
     }
 
+    private static List<InetAddress> bindAddresses(String setting) {
+        if (setting == null || setting.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<InetAddress> result = new ArrayList<>();
+        for (String host : setting.split(",")) {
+            host = host.trim();
+            if (!host.isEmpty()) {
+                try {
+                    result.add(InetAddress.getByName(host));
+                } catch (UnknownHostException ex) {
+                    throw new IllegalArgumentException("Bad " + SETTINGS_KEY_BIND_ADDRESSES + ": " + host, ex);
+                }
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
     /**
      * Start the server, returning a ChannelFuture which can be waited on to
      * keep the server running (the returned future is the server socket's
@@ -82,9 +122,14 @@ public final class SctpServer {
         config.init(b);
         b.handler(new LoggingHandler(LogLevel.INFO));
 
-        logger.log(Level.FINE, "Start server on {0}", port);
+        logger.log(Level.FINE, "Start {0} server on {1}", new Object[]{config.transport, port});
         // Start the server.
-        ChannelFuture f = b.bind(port);
+        ChannelFuture f;
+        if (config.transport == Transport.UNIX_DOMAIN_SOCKET) {
+            f = b.bind(config.transport.remoteAddress(socketPath, 0));
+        } else {
+            f = bindAddresses.isEmpty() ? b.bind(port) : b.bind(bindAddresses.get(0), port);
+        }
         if (logger.isLoggable(Level.FINE)) {
             f.addListener(new ChannelFutureListener() {
 
@@ -96,6 +141,13 @@ public final class SctpServer {
             });
         }
         f.sync();
+        if (f.channel() instanceof SctpServerChannel) {
+            SctpServerChannel channel = (SctpServerChannel) f.channel();
+            for (InetAddress extra : bindAddresses.subList(Math.min(1, bindAddresses.size()), bindAddresses.size())) {
+                logger.log(Level.FINE, "Also bind {0}", extra);
+                channel.bindAddress(extra).sync();
+            }
+        }
         logger.log(Level.FINER, "Thread proceeding", Thread.currentThread());
         // For tests and things that need to delay execution until a connection
         // has been opened
@@ -107,6 +159,29 @@ public final class SctpServer {
         }
     }
 
+    /**
+     * Get the local addresses the server is bound to, once started.
+     *
+     * @return A list of addresses, empty if the server is not running or
+     * listens on a Unix domain socket
+     */
+    public List<InetSocketAddress> localAddresses() {
+        ChannelFuture theFuture;
+        synchronized (this) {
+            theFuture = future;
+        }
+        if (theFuture == null || !theFuture.channel().isActive()) {
+            return Collections.emptyList();
+        }
+        if (theFuture.channel() instanceof SctpServerChannel) {
+            return new ArrayList<>(((SctpServerChannel) theFuture.channel()).allLocalAddresses());
+        }
+        SocketAddress local = theFuture.channel().localAddress();
+        return local instanceof InetSocketAddress
+                ? Collections.singletonList((InetSocketAddress) local)
+                : Collections.emptyList();
+    }
+
     public ChannelFuture stop() {
         ChannelFuture theFuture;
         synchronized (this) {
@@ -29,10 +29,32 @@ import com.google.inject.name.Names;
 import com.mastfrog.giulius.Dependencies;
 import com.mastfrog.giulius.DependenciesBuilder;
 import com.mastfrog.giulius.annotations.Namespace;
+import static com.mastfrog.scamper.FragmentedMessageOverflowHandler.SETTINGS_KEY_SPILL_MAX_BYTES;
+import static com.mastfrog.scamper.FragmentedMessageOverflowHandler.SETTINGS_KEY_SPILL_THRESHOLD;
 import static com.mastfrog.scamper.ProtocolModule.GUICE_BINDING_SCAMPER_BOSS_THREADS;
 import static com.mastfrog.scamper.ProtocolModule.GUICE_BINDING_SCAMPER_CODEC;
 import static com.mastfrog.scamper.ProtocolModule.GUICE_BINDING_SCAMPER_WORKER_THREADS;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_COALESCE_MICROS;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_FUSED_PIPELINE;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_MEMORY_BUDGET;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_MEMORY_HIGH_WATER_MARK;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_MEMORY_LOW_WATER_MARK;
 import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_SCTP_PORT;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_SOCKET_PATH;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_ASSOCIATIONS_PER_ADDRESS;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_ASSOCIATION_IDLE_MILLIS;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_BIND_ADDRESSES;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_MAX_ASSOCIATIONS;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_CONNECT_QUEUE_SIZE;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_RECONNECT_BACKOFF_MAX_MILLIS;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_RECONNECT_BACKOFF_MILLIS;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_STREAM_PARTITIONS;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_TRANSPORT;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_VIRTUAL_STREAMS;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_VIRTUAL_THREADS_PER_TYPE;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_WRITE_BUFFER_HIGH_WATER_MARK;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_WRITE_BUFFER_LOW_WATER_MARK;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_WRITE_POLICY;
 import com.mastfrog.settings.Settings;
 import com.mastfrog.settings.SettingsBuilder;
 import com.mastfrog.util.preconditions.Checks;
@@ -42,9 +64,6 @@ import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.sctp.SctpChannelOption;
-import io.netty.channel.sctp.nio.NioSctpChannel;
-import io.netty.channel.sctp.nio.NioSctpServerChannel;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
 import java.io.IOException;
@@ -53,6 +72,7 @@ import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Builder for SCTP servers and clients. To use, simply configure the settings
@@ -73,13 +93,37 @@ public class SctpServerAndClientBuilder {
     private int eventThreads = 1;
     private int workerThreads = -1;
     private final List<ProtocolModule.Entry> bindings = new LinkedList<>();
+    private final List<Bulkheads.Spec> bulkheads = new LinkedList<>();
     private final List<Module> modules = new LinkedList<>();
     private final List<Settings> settings = new LinkedList<>();
     private boolean built;
     private final String settingsName;
     private DataEncoding dataEncoding = DataEncoding.BSON;
     private ErrorHandler errors;
+    private StreamSelector streamSelector;
     private boolean useLoggingHandler = true;
+    private boolean fusedPipeline;
+    private long coalesceMicros = -1;
+    private WritePolicy writePolicy;
+    private int lowWaterMark = -1;
+    private int highWaterMark = -1;
+    private int spillThreshold = -1;
+    private int spillMaxBytes = -1;
+    private long memoryBudget = -1;
+    private int virtualThreadsPerType = -1;
+    private int streamPartitions = -1;
+    private int associationsPerAddress = -1;
+    private long reconnectBackoffMillis = -1;
+    private long reconnectBackoffMaxMillis = -1;
+    private int connectQueueSize = -1;
+    private long associationIdleMillis = -1;
+    private int maxAssociations = -1;
+    private String bindAddresses;
+    private Transport transport;
+    private int virtualStreams = -1;
+    private String socketPath;
+    private long memoryLowWaterMark = -1;
+    private long memoryHighWaterMark = -1;
     private final List<com.fasterxml.jackson.databind.Module> jacksonModules = new LinkedList<>();
 
     public SctpServerAndClientBuilder() {
@@ -103,7 +147,6 @@ public class SctpServerAndClientBuilder {
     public SctpServerAndClientBuilder(String settingsName) {
         Checks.notNull("settingsName", settingsName);
         this.settingsName = settingsName;
-        option(SctpChannelOption.SCTP_NODELAY, true);
     }
 
     /**
@@ -211,6 +254,9 @@ public class SctpServerAndClientBuilder {
 
     private ProtocolModule protoModule() {
         ProtocolModule m = new ProtocolModule(eventThreads, workerThreads, dataEncoding);
+        for (Bulkheads.Spec spec : this.bulkheads) {
+            m.withBulkhead(spec.name, spec.threads, spec.queueCapacity, spec.policy);
+        }
         for (ProtocolModule.Entry e : this.bindings) {
             m.addEntry(e);
         }
@@ -226,13 +272,13 @@ public class SctpServerAndClientBuilder {
             builder.add(m);
         }
         builder.add(protoModule());
-        builder.add(new Mod(options, serverOptions, clientOptions, errors, useLoggingHandler));
+        builder.add(new Mod(options, serverOptions, clientOptions, errors, streamSelector, useLoggingHandler));
         return builder;
     }
 
     public Module buildModule() {
         return new CombinedModule(modules, protoModule(), 
-                new Mod(options, serverOptions, clientOptions, errors, useLoggingHandler));
+                new Mod(options, serverOptions, clientOptions, errors, streamSelector, useLoggingHandler));
     }
 
     /**
@@ -248,6 +294,20 @@ public class SctpServerAndClientBuilder {
         return this;
     }
 
+    /**
+     * Set how the SCTP stream each outbound message is sent on is chosen,
+     * and whether it is delivered in order. If not set, every message is
+     * sent unordered, on the next stream in rotation.
+     *
+     * @param selector The selector - see {@link StreamSelectors}
+     * @return This
+     */
+    public SctpServerAndClientBuilder withStreamSelector(StreamSelector selector) {
+        Checks.notNull("selector", selector);
+        this.streamSelector = selector;
+        return this;
+    }
+
     /**
      * Bind a Netty logging handler which will log events (connect, active,
      * read, write)
@@ -270,6 +330,318 @@ public class SctpServerAndClientBuilder {
         return this;
     }
 
+    /**
+     * Process inbound messages in a single pipeline stage which reassembles
+     * fragments, decodes and dispatches each message in one pass, rather than
+     * passing it through four handlers. Do not use this if you bind a codec
+     * that relies on seeing raw ByteBufs in the pipeline; it is refused if
+     * the <code>@Named("dispatcher")</code> or <code>@Named("processor")</code>
+     * handler is replaced.
+     *
+     * @return this
+     */
+    public SctpServerAndClientBuilder useFusedPipeline() {
+        this.fusedPipeline = true;
+        return this;
+    }
+
+    /**
+     * Coalesce messages sent from threads other than a channel's event loop:
+     * rather than each send scheduling its own write-and-flush on the event
+     * loop, sends to the same association are queued and written in batches
+     * with a single flush.
+     *
+     * @param maxDelay The longest the first message in a batch should wait
+     * for others to join it - zero means only until the event loop gets to it
+     * @param unit The time unit
+     * @return this
+     */
+    public SctpServerAndClientBuilder coalesceWrites(long maxDelay, TimeUnit unit) {
+        Checks.nonNegative("maxDelay", maxDelay);
+        Checks.notNull("unit", unit);
+        this.coalesceMicros = unit.toMicros(maxDelay);
+        return this;
+    }
+
+    /**
+     * Set the number of bytes which may be pending in the outbound buffer of
+     * each association before it stops being writable, and the number it
+     * must drain to before it becomes writable again.
+     *
+     * @param low The low water mark
+     * @param high The high water mark
+     * @return this
+     */
+    public SctpServerAndClientBuilder withWriteBufferWaterMarks(int low, int high) {
+        Checks.nonNegative("low", low);
+        Checks.nonNegative("high", high);
+        if (low > high) {
+            throw new IllegalArgumentException("Low water mark " + low
+                    + " is greater than high water mark " + high);
+        }
+        this.lowWaterMark = low;
+        this.highWaterMark = high;
+        return this;
+    }
+
+    /**
+     * Set what Sender does with a message when the association it is sent to
+     * is not writable, for sends which do not pass a policy explicitly. The
+     * default is {@link WritePolicy#IGNORE}.
+     *
+     * @param policy The policy
+     * @return this
+     */
+    public SctpServerAndClientBuilder withWritePolicy(WritePolicy policy) {
+        Checks.notNull("policy", policy);
+        this.writePolicy = policy;
+        return this;
+    }
+
+    /**
+     * Rather than holding the fragments of a large message in memory until
+     * its last fragment arrives, write them to a temporary file once more
+     * than <code>threshold</code> bytes of it are queued, and pass the
+     * message on as a memory-mapped view of that file.
+     *
+     * @param threshold The number of bytes of a message to hold in memory
+     * @param maxBytes The largest message to accept, beyond which the
+     * {@link FragmentedMessageOverflowHandler} is called
+     * @return this
+     */
+    public SctpServerAndClientBuilder spillFragmentsToDisk(int threshold, int maxBytes) {
+        Checks.nonNegative("threshold", threshold);
+        Checks.nonNegative("maxBytes", maxBytes);
+        this.spillThreshold = threshold;
+        this.spillMaxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * Run each inbound message's handler on its own virtual thread rather
+     * than on the event loop, so handlers may block - for example on JDBC or
+     * on <code>Sender.request()</code>. Messages arriving on the same SCTP
+     * stream are still handled one at a time, in order. Handlers bound to a
+     * bulkhead run there instead. Needs JDK 21 or later; on older JDKs,
+     * platform threads are used.
+     *
+     * @param maxConcurrentPerType The most handlers for any one message type
+     * which may run at once
+     * @return this
+     */
+    public SctpServerAndClientBuilder useVirtualThreads(int maxConcurrentPerType) {
+        Checks.nonZero("maxConcurrentPerType", maxConcurrentPerType);
+        Checks.nonNegative("maxConcurrentPerType", maxConcurrentPerType);
+        this.virtualThreadsPerType = maxConcurrentPerType;
+        return this;
+    }
+
+    /**
+     * Decode and handle inbound messages on a pool of worker threads rather
+     * than on the event loop, so that one association using many SCTP
+     * streams can use more than one core. Each stream of an association is
+     * assigned to one worker, so messages on it are still handled in order;
+     * there is no ordering between streams. Fragment reassembly, replies and
+     * streaming handlers stay on the event loop.
+     *
+     * @param threads The number of worker threads
+     * @return this
+     */
+    public SctpServerAndClientBuilder partitionByStream(int threads) {
+        Checks.nonZero("threads", threads);
+        Checks.nonNegative("threads", threads);
+        this.streamPartitions = threads;
+        return this;
+    }
+
+    /**
+     * Open several associations to each remote address rather than one, so
+     * heavy traffic to a single peer is spread over several event loops on
+     * both ends. A message with a key is always sent over the same member;
+     * others go over the least loaded one. A member which fails is
+     * reconnected on its own, the next time a message is routed to it.
+     *
+     * @param count The number of associations per address
+     * @return this
+     */
+    public SctpServerAndClientBuilder associationsPerAddress(int count) {
+        Checks.nonZero("count", count);
+        Checks.nonNegative("count", count);
+        this.associationsPerAddress = count;
+        return this;
+    }
+
+    /**
+     * Set how long to wait before reconnecting to an address after a failed
+     * connect. The delay doubles, with jitter, after each consecutive
+     * failure, up to the maximum; until it passes, sends to the address fail
+     * at once with the cause of the last failure. The defaults are 100ms and
+     * 30 seconds.
+     *
+     * @param initial The delay after the first failure
+     * @param max The longest delay
+     * @param unit The time unit
+     * @return this
+     */
+    public SctpServerAndClientBuilder reconnectBackoff(long initial, long max, TimeUnit unit) {
+        Checks.nonNegative("initial", initial);
+        Checks.notNull("unit", unit);
+        if (max < initial) {
+            throw new IllegalArgumentException("Maximum backoff " + max + " less than initial " + initial);
+        }
+        this.reconnectBackoffMillis = unit.toMillis(initial);
+        this.reconnectBackoffMaxMillis = unit.toMillis(max);
+        return this;
+    }
+
+    /**
+     * Set how many messages sent to an address may wait for its association
+     * to connect; they are written in one batch once it has, and sends beyond
+     * this many fail. The default is 1024.
+     *
+     * @param size The queue size
+     * @return this
+     */
+    public SctpServerAndClientBuilder connectQueueSize(int size) {
+        Checks.nonNegative("size", size);
+        this.connectQueueSize = size;
+        return this;
+    }
+
+    /**
+     * Close the associations to an address once no message has been sent to
+     * or received from it for this long. Anything already written to them is
+     * flushed first.
+     *
+     * @param idle The idle time
+     * @param unit The time unit
+     * @return this
+     */
+    public SctpServerAndClientBuilder evictIdleAssociations(long idle, TimeUnit unit) {
+        Checks.nonZero("idle", idle);
+        Checks.nonNegative("idle", idle);
+        Checks.notNull("unit", unit);
+        this.associationIdleMillis = Math.max(1, unit.toMillis(idle));
+        return this;
+    }
+
+    /**
+     * Limit the number of addresses associations are kept open to; opening
+     * one to a new address past the limit closes those to the least recently
+     * used address.
+     *
+     * @param max The maximum number of addresses
+     * @return this
+     */
+    public SctpServerAndClientBuilder maxAssociations(int max) {
+        Checks.nonZero("max", max);
+        Checks.nonNegative("max", max);
+        this.maxAssociations = max;
+        return this;
+    }
+
+    /**
+     * Bind the server to several local addresses rather than the wildcard
+     * address, making it a multi-homed SCTP endpoint: peers learn every
+     * address when they connect, and the kernel fails over between them if
+     * one path goes down. To connect to a multi-homed peer through any of
+     * its addresses, use {@link Address#withAlternates}.
+     *
+     * @param hosts The local addresses, the first being the primary one
+     * @return this
+     */
+    public SctpServerAndClientBuilder bindAddresses(String... hosts) {
+        Checks.notNull("hosts", hosts);
+        Checks.nonZero("hosts.length", hosts.length);
+        this.bindAddresses = String.join(",", hosts);
+        return this;
+    }
+
+    /**
+     * Use a transport other than SCTP. Over TCP and Unix domain sockets,
+     * messages are framed with a length and a stream id, so stream selectors
+     * and partitions work as they do over SCTP.
+     *
+     * @param transport The transport
+     * @return this
+     */
+    public SctpServerAndClientBuilder withTransport(Transport transport) {
+        Checks.notNull("transport", transport);
+        this.transport = transport;
+        return this;
+    }
+
+    /**
+     * Set the number of stream ids to spread messages over when the
+     * transport is not SCTP; the default is 16.
+     *
+     * @param count The number of streams, between 1 and 65535
+     * @return this
+     */
+    public SctpServerAndClientBuilder virtualStreams(int count) {
+        Checks.nonZero("count", count);
+        Checks.nonNegative("count", count);
+        if (count > 65535) {
+            throw new IllegalArgumentException("At most 65535 streams: " + count);
+        }
+        this.virtualStreams = count;
+        return this;
+    }
+
+    /**
+     * Set the path of the socket a server listens on, when the transport is
+     * Unix domain sockets.
+     *
+     * @param path A file path
+     * @return this
+     */
+    public SctpServerAndClientBuilder withSocketPath(String path) {
+        Checks.notNull("path", path);
+        this.socketPath = path;
+        return this;
+    }
+
+    /**
+     * Limit the memory used by all associations together for queued
+     * fragments, inbound messages being handled and sends not yet written.
+     * Reading is paused on all associations above three quarters of the
+     * budget and resumed below half of it; over the budget, inbound messages
+     * are dropped and sends fail.
+     *
+     * @param budget The budget in bytes
+     * @return this
+     * @see MemoryGovernor
+     */
+    public SctpServerAndClientBuilder withMemoryBudget(long budget) {
+        return withMemoryBudget(budget, budget / 2, budget / 4 * 3);
+    }
+
+    /**
+     * Limit the memory used by all associations together, pausing reading
+     * on all of them above the high water mark until usage drops to the low
+     * water mark.
+     *
+     * @param budget The budget in bytes
+     * @param low The low water mark
+     * @param high The high water mark
+     * @return this
+     * @see MemoryGovernor
+     */
+    public SctpServerAndClientBuilder withMemoryBudget(long budget, long low, long high) {
+        Checks.nonZero("budget", budget);
+        Checks.nonNegative("budget", budget);
+        Checks.nonNegative("low", low);
+        Checks.nonNegative("high", high);
+        if (low > high || high > budget) {
+            throw new IllegalArgumentException("Memory water marks must satisfy low <= high <= budget: "
+                    + low + ", " + high + ", " + budget);
+        }
+        this.memoryBudget = budget;
+        this.memoryLowWaterMark = low;
+        this.memoryHighWaterMark = high;
+        return this;
+    }
+
     private static class ControlImpl<T> extends Control<T> {
 
         private final T object;
@@ -305,13 +677,15 @@ public class SctpServerAndClientBuilder {
         private final Set<OptionEntry<?>> serverOptions;
         private final Set<OptionEntry<?>> clientOptions;
         private final ErrorHandler errors;
+        private final StreamSelector streamSelector;
         private final boolean useLoggingHandler;
 
-        public Mod(Set<OptionEntry<?>> entries, Set<OptionEntry<?>> serverOptions, Set<OptionEntry<?>> clientOptions, ErrorHandler errors, boolean useLoggingHandler) {
+        public Mod(Set<OptionEntry<?>> entries, Set<OptionEntry<?>> serverOptions, Set<OptionEntry<?>> clientOptions, ErrorHandler errors, StreamSelector streamSelector, boolean useLoggingHandler) {
             this.bothOptions = entries;
             this.serverOptions = serverOptions;
             this.clientOptions = clientOptions;
             this.errors = errors;
+            this.streamSelector = streamSelector;
             this.useLoggingHandler = useLoggingHandler;
         }
 
@@ -325,6 +699,9 @@ public class SctpServerAndClientBuilder {
             if (errors != null) {
                 bind(ErrorHandler.class).toInstance(errors);
             }
+            if (streamSelector != null) {
+                bind(StreamSelector.class).toInstance(streamSelector);
+            }
         }
 
         @Singleton
@@ -343,9 +720,10 @@ public class SctpServerAndClientBuilder {
                     @Named("server") Set<OptionEntry<?>> severOptions,
                     @Named("client") Set<OptionEntry<?>> clientOptions,
                     @Named("_log") boolean useLoggingHandler,
-                    @Named(GUICE_BINDING_SCAMPER_CODEC) ByteBufAllocator alloc
+                    @Named(GUICE_BINDING_SCAMPER_CODEC) ByteBufAllocator alloc,
+                    Transport transport
             ) {
-                super(boss, worker, init, alloc);
+                super(boss, worker, init, alloc, transport);
                 this.bothOptions = ImmutableSet.copyOf(bothOptions);
                 this.serverOptions = ImmutableSet.copyOf(severOptions);
                 this.clientOptions = ImmutableSet.copyOf(clientOptions);
@@ -356,10 +734,13 @@ public class SctpServerAndClientBuilder {
             public ServerBootstrap init(ServerBootstrap b) {
                 // Set default options - the builder can override them
                 b = b.group(group, worker)
-                        .channel(NioSctpServerChannel.class)
-                        .option(SctpChannelOption.SCTP_NODELAY, true)
+                        .channel(transport.serverChannelType())
                         .option(ChannelOption.SO_BACKLOG, 1000)
                         .option(ChannelOption.ALLOCATOR, alloc);
+                if (transport.noDelayOption() != null) {
+                    // Accepted channels send; the listening one does not
+                    b = b.childOption(transport.noDelayOption(), true);
+                }
                 if (useLoggingHandler) {
                     b = b.handler(new LoggingHandler(LogLevel.INFO));
                 }
@@ -377,9 +758,11 @@ public class SctpServerAndClientBuilder {
             @Override
             public Bootstrap init(Bootstrap b) {
                 // Set default options - the builder can override them
-                b = b.group(group).channel(NioSctpChannel.class)
-                        .option(SctpChannelOption.SCTP_NODELAY, true)
+                b = b.group(group).channelFactory(transport.clientChannelFactory())
                         .option(ChannelOption.ALLOCATOR, alloc);
+                if (transport.noDelayOption() != null) {
+                    b = b.option(transport.noDelayOption(), true);
+                }
                 if (useLoggingHandler) {
                     b = b.handler(new LoggingHandler(LogLevel.INFO));
                 }
@@ -413,6 +796,62 @@ public class SctpServerAndClientBuilder {
         if (this.port != -1) {
             b.add(SETTINGS_KEY_SCTP_PORT, this.port + "");
         }
+        if (this.fusedPipeline) {
+            b.add(SETTINGS_KEY_FUSED_PIPELINE, "true");
+        }
+        if (this.coalesceMicros >= 0) {
+            b.add(SETTINGS_KEY_COALESCE_MICROS, Long.toString(coalesceMicros));
+        }
+        if (this.writePolicy != null) {
+            b.add(SETTINGS_KEY_WRITE_POLICY, writePolicy.name());
+        }
+        if (this.lowWaterMark >= 0) {
+            b.add(SETTINGS_KEY_WRITE_BUFFER_LOW_WATER_MARK, Integer.toString(lowWaterMark));
+            b.add(SETTINGS_KEY_WRITE_BUFFER_HIGH_WATER_MARK, Integer.toString(highWaterMark));
+        }
+        if (this.virtualThreadsPerType > 0) {
+            b.add(SETTINGS_KEY_VIRTUAL_THREADS_PER_TYPE, Integer.toString(virtualThreadsPerType));
+        }
+        if (this.streamPartitions > 0) {
+            b.add(SETTINGS_KEY_STREAM_PARTITIONS, Integer.toString(streamPartitions));
+        }
+        if (this.associationsPerAddress > 0) {
+            b.add(SETTINGS_KEY_ASSOCIATIONS_PER_ADDRESS, Integer.toString(associationsPerAddress));
+        }
+        if (this.reconnectBackoffMillis >= 0) {
+            b.add(SETTINGS_KEY_RECONNECT_BACKOFF_MILLIS, Long.toString(reconnectBackoffMillis));
+            b.add(SETTINGS_KEY_RECONNECT_BACKOFF_MAX_MILLIS, Long.toString(reconnectBackoffMaxMillis));
+        }
+        if (this.connectQueueSize >= 0) {
+            b.add(SETTINGS_KEY_CONNECT_QUEUE_SIZE, Integer.toString(connectQueueSize));
+        }
+        if (this.associationIdleMillis > 0) {
+            b.add(SETTINGS_KEY_ASSOCIATION_IDLE_MILLIS, Long.toString(associationIdleMillis));
+        }
+        if (this.maxAssociations > 0) {
+            b.add(SETTINGS_KEY_MAX_ASSOCIATIONS, Integer.toString(maxAssociations));
+        }
+        if (this.bindAddresses != null) {
+            b.add(SETTINGS_KEY_BIND_ADDRESSES, bindAddresses);
+        }
+        if (this.transport != null) {
+            b.add(SETTINGS_KEY_TRANSPORT, transport.name());
+        }
+        if (this.virtualStreams > 0) {
+            b.add(SETTINGS_KEY_VIRTUAL_STREAMS, Integer.toString(virtualStreams));
+        }
+        if (this.socketPath != null) {
+            b.add(SETTINGS_KEY_SOCKET_PATH, socketPath);
+        }
+        if (this.memoryBudget > 0) {
+            b.add(SETTINGS_KEY_MEMORY_BUDGET, Long.toString(memoryBudget));
+            b.add(SETTINGS_KEY_MEMORY_LOW_WATER_MARK, Long.toString(memoryLowWaterMark));
+            b.add(SETTINGS_KEY_MEMORY_HIGH_WATER_MARK, Long.toString(memoryHighWaterMark));
+        }
+        if (this.spillThreshold >= 0) {
+            b.add(SETTINGS_KEY_SPILL_THRESHOLD, Integer.toString(spillThreshold));
+            b.add(SETTINGS_KEY_SPILL_MAX_BYTES, Integer.toString(spillMaxBytes));
+        }
         b.addDefaultLocations();
         for (Settings s : this.settings) {
             b.add(s);
@@ -429,6 +868,21 @@ public class SctpServerAndClientBuilder {
      * @return this
      */
     public SctpServerAndClientBuilder bind(MessageType type, Class<? extends MessageHandler<?, ?>> handlerType) {
+        return bind(type, handlerType, null);
+    }
+
+    /**
+     * Map a message type to a handler which will receive messages of that
+     * type on the threads of the named {@link Bulkhead}, rather than on the
+     * event loop.
+     *
+     * @param type The type
+     * @param handlerType The handler type (will be instantiated by Guice)
+     * @param bulkhead The name of a bulkhead defined with
+     * <code>withBulkhead()</code>, or null to run on the event loop
+     * @return this
+     */
+    public SctpServerAndClientBuilder bind(MessageType type, Class<? extends MessageHandler<?, ?>> handlerType, String bulkhead) {
         Checks.notNull("type", type);
         Checks.notNull("handlerType", handlerType);
         if (!MessageHandler.class.isAssignableFrom(handlerType)) {
@@ -436,16 +890,66 @@ public class SctpServerAndClientBuilder {
         }
         for (ProtocolModule.Entry entry : bindings) {
             if (entry.message.equals(type)) {
-                throw new ConfigurationError(entry.type + " was already "
+                throw new ConfigurationError(entry.handlerName() + " was already "
+                        + "registered for " + type);
+            }
+        }
+        bindings.add(new ProtocolModule.Entry(type, handlerType, null, bulkhead));
+        return this;
+    }
+
+    /**
+     * Define a bulkhead - a pool of threads with a bounded queue - which
+     * handlers can be bound to, so slow or blocking handlers do not stall
+     * the event loops, and handlers bound to different bulkheads do not
+     * delay each other.
+     *
+     * @param name The name
+     * @param threads The number of threads
+     * @param queueCapacity The number of messages which may wait for a thread
+     * @param policy What to do with a message when the queue is full
+     * @return this
+     */
+    public SctpServerAndClientBuilder withBulkhead(String name, int threads, int queueCapacity, RejectionPolicy policy) {
+        Checks.notNull("name", name);
+        Checks.nonZero("threads", threads);
+        Checks.nonNegative("threads", threads);
+        Checks.nonZero("queueCapacity", queueCapacity);
+        Checks.nonNegative("queueCapacity", queueCapacity);
+        Checks.notNull("policy", policy);
+        for (Bulkheads.Spec spec : bulkheads) {
+            if (spec.name.equals(name)) {
+                throw new ConfigurationError("Bulkhead " + name + " already defined");
+            }
+        }
+        bulkheads.add(new Bulkheads.Spec(name, threads, queueCapacity, policy));
+        return this;
+    }
+
+    /**
+     * Map a message type to a handler which will receive messages of that
+     * type as a stream of chunks, as their fragments arrive, rather than once
+     * they have been reassembled and decoded.
+     *
+     * @param type The type
+     * @param handlerType The handler type (will be instantiated by Guice)
+     * @return this
+     */
+    public SctpServerAndClientBuilder bindStreaming(MessageType type, Class<? extends StreamingMessageHandler> handlerType) {
+        Checks.notNull("type", type);
+        Checks.notNull("handlerType", handlerType);
+        for (ProtocolModule.Entry entry : bindings) {
+            if (entry.message.equals(type)) {
+                throw new ConfigurationError(entry.handlerName() + " was already "
                         + "registered for " + type);
             }
         }
-        bindings.add(new ProtocolModule.Entry(type, handlerType));
+        bindings.add(new ProtocolModule.Entry(type, null, handlerType, null));
         return this;
     }
 
     /**
-     * Set a channel option for the NioSctpChannel to be used on all client and
+     * Set a channel option for the channels to be used on all client and
      * server connections.
      *
      * @param <T> The option type
@@ -463,7 +967,7 @@ public class SctpServerAndClientBuilder {
     }
 
     /**
-     * Set a channel option for NioSctpChannels created for server connections
+     * Set a channel option for channels created for server connections
      * (Netty's ServerBootstrap) but not to be used for client connections. Use
      * in the case you will create a server that will also make client
      * connections to other servers if you want independent settings for server
@@ -484,7 +988,7 @@ public class SctpServerAndClientBuilder {
     }
 
     /**
-     * Set a channel option for NioSctpChannels created for client connections
+     * Set a channel option for channels created for client connections
      * (Netty's Bootstrap) but not to be used for server connections. Use in the
      * case you will create a server that will also make client connections to
      * other servers if you want independent settings for server and client.
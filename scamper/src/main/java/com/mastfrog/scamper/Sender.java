@@ -23,19 +23,34 @@ import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 import static com.mastfrog.scamper.ProtocolModule.GUICE_BINDING_SCAMPER_CODEC;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_CONNECT_QUEUE_SIZE;
+import com.mastfrog.settings.Settings;
 import com.mastfrog.util.preconditions.Checks;
 import com.mastfrog.util.codec.Codec;
-import com.sun.nio.sctp.MessageInfo;
+import com.sun.nio.sctp.Association;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.ByteBufOutputStream;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.sctp.SctpChannel;
 import io.netty.channel.sctp.SctpMessage;
-import io.netty.channel.sctp.nio.NioSctpChannel;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.PromiseNotifier;
 import java.io.IOException;
 import java.nio.channels.ClosedChannelException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -50,17 +65,32 @@ public final class Sender {
     private final Associations associations;
     private final Codec mapper;
     private final MessageCodec encoder;
+    private final WriteCoalescer coalescer;
+    private final WriteBackpressure backpressure;
+    private final RequestCorrelator correlator;
+    private final MemoryGovernor memory;
+    private final StreamSelector selector;
+    private final int connectQueueSize;
+    private static final AttributeKey<PendingSends> PENDING_SENDS
+            = AttributeKey.valueOf(Sender.class, "pending");
     private static final Logger logger = Logger.getLogger(Sender.class.getName());
 
     @Inject
-    public Sender(Associations associations, @Named(GUICE_BINDING_SCAMPER_CODEC) Codec bsonJson, MessageCodec codec) {
+    public Sender(Associations associations, @Named(GUICE_BINDING_SCAMPER_CODEC) Codec bsonJson, MessageCodec codec, WriteCoalescer coalescer, WriteBackpressure backpressure, RequestCorrelator correlator, MemoryGovernor memory, StreamSelector selector, Settings settings) {
         this.associations = associations;
         this.mapper = bsonJson;
         this.encoder = codec;
+        this.coalescer = coalescer;
+        this.backpressure = backpressure;
+        this.correlator = correlator;
+        this.memory = memory;
+        this.selector = selector;
+        this.connectQueueSize = settings.getInt(SETTINGS_KEY_CONNECT_QUEUE_SIZE, 1024);
     }
 
     /**
-     * Send a message using the passed channel.
+     * Send a message using the passed channel, on the stream the bound
+     * {@link StreamSelector} chooses.
      *
      * @param channel A channel
      * @param message A message
@@ -69,7 +99,7 @@ public final class Sender {
      * @throws IOException if something goes wrong
      */
     public ChannelFuture send(Channel channel, final Message<?> message) throws IOException {
-        return send(channel, message, associations.nextOutStream(channel));
+        return send(channel, message, selectStream(channel, message));
     }
 
     /**
@@ -83,47 +113,95 @@ public final class Sender {
      * completed
      * @throws IOException if something goes wrong
      */
-    @SuppressWarnings("unchecked")
     public ChannelFuture send(Channel channel, final Message<?> message, int sctpChannel) throws IOException {
+        return send(channel, message, sctpChannel, backpressure.defaultPolicy());
+    }
+
+    /**
+     * Send a message using the passed channel, applying the passed policy if
+     * the channel's outbound buffer is over its high water mark.
+     *
+     * @param channel A channel
+     * @param message A message
+     * @param policy What to do if the channel is not writable
+     * @return a future that will be notified when the message write is
+     * completed
+     * @throws IOException if something goes wrong
+     */
+    public ChannelFuture send(Channel channel, final Message<?> message, WritePolicy policy) throws IOException {
+        return send(channel, message, selectStream(channel, message), policy);
+    }
+
+    /**
+     * Send a message using the passed channel, applying the passed policy if
+     * the channel's outbound buffer is over its high water mark.
+     *
+     * @param channel The channel
+     * @param message A message
+     * @param sctpChannel The ordinal of the sctp channel
+     * @param policy What to do if the channel is not writable
+     * @return a future that will be notified when the message write is
+     * completed; with {@link WritePolicy#FAIL} it fails with a
+     * {@link WriteBufferFullException}, and with {@link WritePolicy#DROP} it is
+     * cancelled, if the channel was not writable; whatever the policy, it fails
+     * with a {@link MemoryBudgetExceededException} if the
+     * {@link MemoryGovernor}'s budget is exceeded
+     * @throws IOException if something goes wrong
+     */
+    @SuppressWarnings("unchecked")
+    public ChannelFuture send(Channel channel, final Message<?> message, int sctpChannel, WritePolicy policy) throws IOException {
         Checks.notNull("channel", channel);
         Checks.notNull("message", message);
         Checks.nonNegative("sctpChannel", sctpChannel);
-        ByteBufAllocator alloc = channel.alloc();
-        ByteBuf outbound = alloc.buffer();
-        if (message.body != null) {
-            if (message.body instanceof ByteBuf) {
-                outbound = (ByteBuf) message.body;
-            } else {
-                outbound = alloc.buffer();
-                try (ByteBufOutputStream out = new ByteBufOutputStream(outbound)) {
-                    mapper.writeValue(message.body, out);
-                }
-            }
-        }
-        ByteBuf encodedBuffer = encoder.encode(message.type, outbound, channel);
-        NioSctpChannel ch = (NioSctpChannel) channel;
-        if (!ch.isOpen()) {
-            return ch.newFailedFuture(new ClosedChannelException());
+        Checks.notNull("policy", policy);
+        ChannelFuture unusable = checkUsable(channel);
+        if (unusable != null) {
+            return unusable;
         }
-        if (ch.association() == null) {
-            return channel.newFailedFuture(new IOException("Association closed - client has disconnected"));
+        // Check before encoding, so a refused message costs nothing
+        if (!channel.isWritable()) {
+            switch (policy) {
+                case FAIL:
+                    return channel.newFailedFuture(new WriteBufferFullException(channel.remoteAddress()));
+                case DROP:
+                    logger.log(Level.FINE, "Drop message to unwritable {0} type {1}",
+                            new Object[]{channel.remoteAddress(), message.type});
+                    ChannelPromise dropped = channel.newPromise();
+                    dropped.cancel(false);
+                    return dropped;
+                default:
+                    break;
+            }
         }
-        MessageInfo info = MessageInfo.createOutgoing(ch.association(), ch.remoteAddress(), sctpChannel);
-        info.unordered(true);
-
-        SctpMessage sctpMessage = new SctpMessage(info, encodedBuffer);
+        SctpMessage sctpMessage = toSctpMessage(channel, message, sctpChannel);
         logger.log(Level.FINE, "Send message to {0} type {1}", new Object[]{channel.remoteAddress(),
             message.type});
-        ChannelFuture result = channel.writeAndFlush(sctpMessage);
+        // Counted before the write starts, so it cannot be released first
+        int bytes = sctpMessage.content().readableBytes();
+        int pending = countPending(sctpMessage);
+        ChannelFuture result;
+        if (policy == WritePolicy.WAIT) {
+            // Always go through the held queue, so a message sent after the
+            // channel becomes writable cannot overtake ones still held
+            result = backpressure.writeWhenWritable(channel, sctpMessage);
+        } else if (coalescer.isEnabled() && !channel.eventLoop().inEventLoop()) {
+            result = coalescer.write(channel, sctpMessage);
+        } else {
+            result = channel.writeAndFlush(sctpMessage);
+        }
+        if (pending >= 0) {
+            result.addListener(f -> memory.release(pending));
+        }
+        selector.onWrite(channel, sctpChannel, bytes, result);
         if (logger.isLoggable(Level.FINER)) {
             result.addListener(new ChannelFutureListener() {
 
                 @Override
                 public void operationComplete(ChannelFuture future) throws Exception {
                     if (future.cause() != null) {
-                        logger.log(Level.SEVERE, "Send to " + ch.remoteAddress() + " failed", future.cause());
+                        logger.log(Level.SEVERE, "Send to " + channel.remoteAddress() + " failed", future.cause());
                     } else {
-                        logger.log(Level.FINER, "Send completed to {0}", ch.remoteAddress());
+                        logger.log(Level.FINER, "Send completed to {0}", channel.remoteAddress());
                     }
                 }
 
@@ -132,16 +210,423 @@ public final class Sender {
         return result;
     }
 
+    /**
+     * Send a batch of messages using the passed channel, writing all of them
+     * and flushing once, so the batch costs one syscall rather than one per
+     * message. Messages are encoded on the calling thread; the writes are
+     * performed in a single task on the channel's event loop.
+     * <p>
+     * The returned future succeeds if every message was written. If any
+     * message could not be encoded or written, it fails with a
+     * {@link BatchSendException} which lists each failed message, its
+     * position in the batch and the cause; the other messages are still
+     * sent. No {@link WritePolicy} is applied to batches.
+     *
+     * @param channel The channel
+     * @param messages The messages
+     * @return A future that will be notified when every write has completed
+     */
+    public ChannelFuture sendAll(Channel channel, Iterable<Message<?>> messages) {
+        Checks.notNull("channel", channel);
+        Checks.notNull("messages", messages);
+        ChannelPromise aggregate = channel.newPromise();
+        BatchListener batch = new BatchListener(aggregate);
+        ChannelFuture unusable = checkUsable(channel);
+        List<SctpMessage> encoded = new ArrayList<>();
+        List<ChannelPromise> promises = new ArrayList<>();
+        int index = 0;
+        for (Message<?> message : messages) {
+            Checks.notNull("message", message);
+            ChannelPromise promise = channel.newPromise();
+            batch.add(promise, index++, message);
+            if (unusable != null) {
+                promise.setFailure(unusable.cause());
+                continue;
+            }
+            try {
+                encoded.add(toSctpMessage(channel, message, selectStream(channel, message)));
+                promises.add(promise);
+            } catch (IOException | RuntimeException ex) {
+                promise.setFailure(ex);
+            }
+        }
+        batch.sealed();
+        if (!encoded.isEmpty()) {
+            logger.log(Level.FINE, "Send batch of {0} to {1}", new Object[]{encoded.size(), channel.remoteAddress()});
+            if (channel.eventLoop().inEventLoop()) {
+                writeBatch(channel, encoded, promises);
+            } else {
+                channel.eventLoop().execute(() -> writeBatch(channel, encoded, promises));
+            }
+        }
+        return aggregate;
+    }
+
+    private void writeBatch(Channel channel, List<SctpMessage> encoded, List<ChannelPromise> promises) {
+        for (int i = 0; i < encoded.size(); i++) {
+            SctpMessage msg = encoded.get(i);
+            int bytes = msg.content().readableBytes();
+            int pending = countPending(msg);
+            if (pending >= 0) {
+                promises.get(i).addListener(f -> memory.release(pending));
+            }
+            int stream = msg.streamIdentifier();
+            channel.write(msg, promises.get(i));
+            selector.onWrite(channel, stream, bytes, promises.get(i));
+        }
+        channel.flush();
+    }
+
+    /**
+     * Send a batch of messages to an ad-hoc address, opening a connection
+     * if necessary, writing all of them and flushing once.
+     *
+     * @param address The address
+     * @param messages The messages
+     * @return A future that will be notified when every write has completed,
+     * which fails with a {@link BatchSendException} if any did not
+     * @see #sendAll(io.netty.channel.Channel, java.lang.Iterable)
+     */
+    public ChannelFuture sendAll(final Address address, final Iterable<Message<?>> messages) {
+        Checks.notNull("address", address);
+        Checks.notNull("messages", messages);
+        ChannelFuture connect = associations.connect(address);
+        if (failedAlready(connect)) {
+            return connect;
+        }
+        ChannelPromise result = connect.channel().newPromise();
+        connect.addListener((ChannelFutureListener) future -> {
+            if (future.cause() != null) {
+                result.setFailure(future.cause());
+                return;
+            }
+            sendAll(future.channel(), messages).addListener(new PromiseNotifier<>(result));
+        });
+        return result;
+    }
+
+    /**
+     * Open associations to a set of addresses in parallel - every member of
+     * each address's pool - so that the first message to each peer does not
+     * wait for the SCTP handshake; for example to warm a service's peer set
+     * before it takes traffic. Addresses already connected to count as
+     * connected at once.
+     * <p>
+     * The returned future completes, normally, once every connect has
+     * succeeded or failed; while reconnecting to an address is backing off,
+     * it fails at once with the last failure.
+     *
+     * @param addresses The addresses
+     * @return A future for the outcome of each connect
+     */
+    public CompletableFuture<PreconnectResult> preconnect(Collection<Address> addresses) {
+        Checks.notNull("addresses", addresses);
+        Set<Address> connected = ConcurrentHashMap.newKeySet();
+        Map<Address, Throwable> failures = new ConcurrentHashMap<>();
+        CompletableFuture<PreconnectResult> result = new CompletableFuture<>();
+        List<ChannelFuture> connects = new ArrayList<>();
+        List<Address> connectAddresses = new ArrayList<>();
+        for (Address address : new LinkedHashSet<>(addresses)) {
+            Checks.notNull("address", address);
+            for (ChannelFuture f : associations.connectAll(address)) {
+                connects.add(f);
+                connectAddresses.add(address);
+            }
+        }
+        if (connects.isEmpty()) {
+            result.complete(new PreconnectResult(connected, failures));
+            return result;
+        }
+        AtomicInteger remaining = new AtomicInteger(connects.size());
+        for (int i = 0; i < connects.size(); i++) {
+            Address address = connectAddresses.get(i);
+            connects.get(i).addListener((ChannelFutureListener) future -> {
+                if (future.cause() != null) {
+                    failures.putIfAbsent(address, future.cause());
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    for (Address a : connectAddresses) {
+                        if (!failures.containsKey(a)) {
+                            connected.add(a);
+                        }
+                    }
+                    logger.log(Level.FINE, "Preconnected to {0} addresses, {1} failed",
+                            new Object[]{connected.size(), failures.size()});
+                    result.complete(new PreconnectResult(connected, failures));
+                }
+            });
+        }
+        return result;
+    }
+
+    private ChannelFuture checkUsable(Channel ch) {
+        if (!ch.isOpen()) {
+            return ch.newFailedFuture(new ClosedChannelException());
+        }
+        if (ch instanceof SctpChannel && ((SctpChannel) ch).association() == null) {
+            return ch.newFailedFuture(new IOException("Association closed - client has disconnected"));
+        }
+        if (memory.isOverBudget()) {
+            memory.rejected();
+            return ch.newFailedFuture(new MemoryBudgetExceededException(memory.used(), memory.budget()));
+        }
+        return null;
+    }
+
+    /**
+     * Count an encoded message against the memory budget; the caller
+     * releases the count when the write of it completes.
+     *
+     * @return The bytes counted, or -1 if there is no budget
+     */
+    private int countPending(SctpMessage msg) {
+        if (!memory.isEnabled()) {
+            return -1;
+        }
+        int bytes = msg.content().readableBytes();
+        memory.acquire(bytes);
+        return bytes;
+    }
+
+    /**
+     * Get the stream the StreamSelector chooses for a message, or the next
+     * one in rotation if it has no preference.
+     */
+    private int selectStream(Channel channel, Message<?> message) {
+        int streams = outStreams(channel);
+        if (streams > 0) {
+            int stream = selector.select(channel, message, streams);
+            if (stream >= 0) {
+                return stream;
+            }
+        }
+        return associations.nextOutStream(channel);
+    }
+
+    /**
+     * Get the number of streams negotiated for an SCTP association, or the
+     * number of virtual streams of another transport.
+     */
+    private int outStreams(Channel channel) {
+        if (channel instanceof SctpChannel) {
+            Association association = ((SctpChannel) channel).association();
+            return association == null ? 0 : association.maxOutboundStreams();
+        }
+        return associations.outStreams(channel);
+    }
+
+    private SctpMessage toSctpMessage(Channel ch, Message<?> message, int sctpChannel) throws IOException {
+        // Netty builds the MessageInfo for the association when it writes
+        // this, and framing for other transports needs only the stream id
+        return new SctpMessage(0, sctpChannel, !selector.ordered(message), encode(ch, message));
+    }
+
+    /**
+     * Encode a message into a single buffer. If the codec can write its
+     * header in place, space for it is reserved at the start of the buffer
+     * the payload is serialized into, so only one buffer is allocated.
+     */
+    private ByteBuf encode(Channel channel, Message<?> message) throws IOException {
+        if (message.body instanceof ByteBuf) {
+            return correlate(channel, message, encoder.encode(message.type, (ByteBuf) message.body, channel));
+        }
+        int headerLength = encoder.headerLength(message.type);
+        // Requests and replies also reserve room for the correlation header
+        int extension = message.correlationId == 0 ? 0 : CorrelationHeader.LENGTH;
+        ByteBuf buf = channel.alloc().buffer();
+        boolean success = false;
+        try {
+            if (headerLength >= 0 && extension + headerLength > 0) {
+                buf.writeZero(extension + headerLength);
+            }
+            if (message.body != null) {
+                try (ByteBufOutputStream out = new ByteBufOutputStream(buf)) {
+                    mapper.writeValue(message.body, out);
+                }
+            }
+            ByteBuf result;
+            if (headerLength >= 0) {
+                buf.readerIndex(extension);
+                result = encoder.encodeHeader(message.type, buf, channel);
+                if (result == buf && extension > 0) {
+                    buf.readerIndex(0);
+                    CorrelationHeader.set(buf, 0, message.correlationId, message.reply);
+                } else {
+                    result = correlate(channel, message, result);
+                }
+            } else {
+                result = correlate(channel, message, encoder.encode(message.type, buf, channel));
+            }
+            success = true;
+            return result;
+        } finally {
+            if (!success) {
+                buf.release();
+            }
+        }
+    }
+
+    /**
+     * Get the number of bytes waiting to be written to a channel - those in
+     * Netty's outbound buffer plus any messages held by
+     * {@link WritePolicy#WAIT} until it is writable.
+     *
+     * @param channel The channel
+     * @return A byte count
+     */
+    public long pendingOutboundBytes(Channel channel) {
+        Checks.notNull("channel", channel);
+        return backpressure.pendingBytes(channel);
+    }
+
+    /**
+     * Get the number of bytes waiting to be written to the associations with
+     * the passed address, or zero if there is no open association to it.
+     *
+     * @param address The address
+     * @return A byte count
+     */
+    public long pendingOutboundBytes(Address address) {
+        Checks.notNull("address", address);
+        long result = 0;
+        for (Channel channel : associations.channels(address)) {
+            result += backpressure.pendingBytes(channel);
+        }
+        return result;
+    }
+
+    /**
+     * Get when a message was last sent to or received from an address.
+     *
+     * @param address The address
+     * @return Milliseconds since the epoch, or 0 if there is no association
+     * to it
+     */
+    public long lastUsed(Address address) {
+        Checks.notNull("address", address);
+        return associations.lastUsed(address);
+    }
+
+    /**
+     * Get the status of, and traffic over, each path of the associations to
+     * a multi-homed address - one per address of the peer, for each
+     * association in the address's pool.
+     *
+     * @param address The address
+     * @return A list of paths, empty if there is no association to the
+     * address or its peer has a single address
+     */
+    public List<SctpPath> paths(Address address) {
+        Checks.notNull("address", address);
+        List<SctpPath> result = new ArrayList<>();
+        for (Channel channel : associations.channels(address)) {
+            AssociationState state = AssociationState.peek(channel);
+            SctpPaths paths = state == null ? null : state.paths();
+            if (paths != null) {
+                result.addAll(paths.snapshot());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get when a message was last sent to or received from each address
+     * there are associations to, for example to see which will be evicted
+     * next.
+     *
+     * @return A map of addresses to milliseconds since the epoch
+     */
+    public Map<Address, Long> lastUsed() {
+        return associations.lastUsed();
+    }
+
+    private ByteBuf correlate(Channel channel, Message<?> message, ByteBuf encoded) {
+        if (message.correlationId == 0) {
+            return encoded;
+        }
+        return CorrelationHeader.prepend(channel.alloc(), encoded, message.correlationId, message.reply);
+    }
+
+    /**
+     * Send a request to an ad-hoc address, opening a connection if
+     * necessary, and get a future for its reply - the message returned by
+     * the remote MessageHandler. The request carries a correlation id which
+     * the remote end sends back with the reply, so replies are matched to
+     * requests however they are interleaved.
+     * <p>
+     * The future completes on the event loop of the channel the reply
+     * arrives on; use the <code>*Async()</code> methods of
+     * CompletableFuture for anything that blocks. It fails with a
+     * TimeoutException if no reply arrives in time, or with the cause if
+     * the request cannot be sent. If the remote handler returns null, no
+     * reply is sent and the request times out. A reply payload of type
+     * ByteBuf is an unpooled copy.
+     *
+     * @param <R> The reply payload type
+     * @param address The address
+     * @param message The request
+     * @param replyType The type to decode the reply's payload as
+     * @param timeout How long to wait for the reply
+     * @return A future for the reply
+     */
+    public <R> CompletableFuture<Message<R>> request(Address address, Message<?> message, Class<R> replyType, Duration timeout) {
+        Checks.notNull("address", address);
+        Checks.notNull("message", message);
+        Checks.notNull("replyType", replyType);
+        checkTimeout(timeout);
+        RequestCorrelator.Pending<R> pending = correlator.register(replyType, timeout);
+        send(address, message.correlated(pending.id, false), new RequestSendListener(pending));
+        return pending.future;
+    }
+
+    /**
+     * Send a request using the passed channel, and get a future for its
+     * reply.
+     *
+     * @param <R> The reply payload type
+     * @param channel The channel
+     * @param message The request
+     * @param replyType The type to decode the reply's payload as
+     * @param timeout How long to wait for the reply
+     * @return A future for the reply
+     * @see #request(com.mastfrog.scamper.Address, com.mastfrog.scamper.Message, java.lang.Class, java.time.Duration)
+     */
+    public <R> CompletableFuture<Message<R>> request(Channel channel, Message<?> message, Class<R> replyType, Duration timeout) {
+        Checks.notNull("channel", channel);
+        Checks.notNull("message", message);
+        Checks.notNull("replyType", replyType);
+        checkTimeout(timeout);
+        RequestCorrelator.Pending<R> pending = correlator.register(replyType, timeout);
+        try {
+            send(channel, message.correlated(pending.id, false)).addListener(new RequestSendListener(pending));
+        } catch (IOException | RuntimeException ex) {
+            pending.future.completeExceptionally(ex);
+        }
+        return pending.future;
+    }
+
+    private static void checkTimeout(Duration timeout) {
+        Checks.notNull("timeout", timeout);
+        if (timeout.isNegative() || timeout.isZero()) {
+            throw new IllegalArgumentException("Timeout must be positive: " + timeout);
+        }
+    }
+
     /**
      * Send to an ad-hoc address. A new connection will be created if
-     * necessary..
+     * necessary. If several associations are kept to each address, a message
+     * with a key - see {@link Message#withKey} - always goes over the same
+     * one, and any other over the least loaded. Messages sent while the
+     * association is connecting wait in a bounded queue and are written
+     * together once it has; while reconnecting to the address is backing off
+     * after a failure, they fail at once.
      *
      * @param address The address
      * @param message The message
      * @return this
      */
     public ChannelFuture send(Address address, final Message<?> message) {
-        return send(address, message, null);
+        return send(address, message, (ChannelFutureListener) null);
     }
 
     /**
@@ -157,8 +642,33 @@ public final class Sender {
      * completed
      */
     public ChannelFuture send(Address address, final Message<?> message, final ChannelFutureListener l) {
-        int sctpChannel = associations.nextOutStream(address);
-        return send(address, message, sctpChannel, l);
+        Checks.notNull("address", address);
+        Checks.notNull("message", message);
+        return sendWhenConnected(address, message, StreamSelector.ANY, l);
+    }
+
+    /**
+     * Send to an ad-hoc address, applying the passed policy if the channel's
+     * outbound buffer is over its high water mark. A new connection will be
+     * created if necessary.
+     *
+     * @param address The address
+     * @param message The message
+     * @param policy What to do if the channel is not writable
+     * @return a future that will be notified when the message write is
+     * completed
+     */
+    public ChannelFuture send(Address address, final Message<?> message, final WritePolicy policy) {
+        Checks.notNull("address", address);
+        Checks.notNull("message", message);
+        Checks.notNull("policy", policy);
+        ChannelFuture connect = associations.connect(address, message.key());
+        if (failedAlready(connect)) {
+            return connect;
+        }
+        ChannelPromise result = connect.channel().newPromise();
+        whenConnected(address, connect, message, StreamSelector.ANY, policy, result);
+        return result;
     }
 
     /**
@@ -178,19 +688,233 @@ public final class Sender {
         Checks.notNull("address", address);
         Checks.notNull("message", message);
         Checks.nonNegative("sctpChannel", sctpChannel);
+        return sendWhenConnected(address, message, sctpChannel, l);
+    }
+
+    private ChannelFuture sendWhenConnected(final Address address, final Message<?> message, final int sctpChannel, final ChannelFutureListener l) {
         logger.log(Level.FINE, "Send message to {0} on {1} type {1}", new Object[]{address, sctpChannel,
             message.type});
-        return associations.connect(address).addListener(new ChannelFutureListener() {
-            @Override
-            public void operationComplete(ChannelFuture future) throws Exception {
-                if (future.cause() == null) {
-                    logger.log(Level.FINE, "Got back connection {0} for {1}", new Object[]{future.channel().remoteAddress(), address});
+        ChannelFuture connect = associations.connect(address, message.key());
+        if (failedAlready(connect)) {
+            if (l != null) {
+                connect.addListener(l);
+            }
+            return connect;
+        }
+        ChannelPromise sent = connect.channel().newPromise();
+        if (l != null) {
+            sent.addListener(l);
+        }
+        whenConnected(address, connect, message, sctpChannel, backpressure.defaultPolicy(), sent);
+        return connect;
+    }
+
+    /**
+     * Determine if a connect has already failed - perhaps because its channel
+     * could not even be created, in which case the channel has no event loop
+     * and no promise can be made with it, so the connect future itself is
+     * what is returned to the caller.
+     */
+    private static boolean failedAlready(ChannelFuture connect) {
+        return connect.isDone() && !connect.isSuccess();
+    }
+
+    /**
+     * Send a message once a connect completes. While it is in progress, the
+     * message joins a bounded queue on the connecting channel, written in one
+     * batch when it connects; once it has, the message is sent at once. The
+     * stream is chosen only when connected, so the selector sees the
+     * channel.
+     */
+    private void whenConnected(Address address, ChannelFuture connect, Message<?> message, int sctpChannel, WritePolicy policy, ChannelPromise promise) {
+        if (!connect.isDone()) {
+            Attribute<PendingSends> attr = connect.channel().attr(PENDING_SENDS);
+            PendingSends pending = attr.get();
+            if (pending == null) {
+                PendingSends created = new PendingSends(address);
+                pending = attr.setIfAbsent(created);
+                if (pending == null) {
+                    pending = created;
+                    connect.addListener(created);
                 }
-                ChannelFuture fut = send(future.channel(), message, sctpChannel);
-                if (l != null) {
-                    fut.addListener(l);
+            }
+            if (pending.add(new PendingSend(message, sctpChannel, promise))) {
+                return;
+            }
+            // The queue was written while we were adding to it
+        }
+        if (connect.cause() != null) {
+            // Fails fast while the address is backing off
+            promise.setFailure(connect.cause());
+            return;
+        }
+        try {
+            ChannelFuture fut = sctpChannel == StreamSelector.ANY
+                    ? send(connect.channel(), message, policy)
+                    : send(connect.channel(), message, sctpChannel, policy);
+            fut.addListener(new PromiseNotifier<>(promise));
+        } catch (IOException | RuntimeException ex) {
+            promise.setFailure(ex);
+        }
+    }
+
+    /**
+     * A message waiting for its channel to connect.
+     */
+    private static final class PendingSend {
+
+        final Message<?> message;
+        final int sctpChannel;
+        final ChannelPromise promise;
+
+        PendingSend(Message<?> message, int sctpChannel, ChannelPromise promise) {
+            this.message = message;
+            this.sctpChannel = sctpChannel;
+            this.promise = promise;
+        }
+    }
+
+    /**
+     * The messages waiting for one channel to connect, written in a single
+     * batch - one flush - when it does, or failed together if it does not.
+     * No WritePolicy is applied to them; a new channel's buffer is empty.
+     */
+    private final class PendingSends implements ChannelFutureListener {
+
+        private final Address address;
+        private List<PendingSend> sends = new ArrayList<>();
+
+        PendingSends(Address address) {
+            this.address = address;
+        }
+
+        /**
+         * Queue a send, or fail it if the queue is full.
+         *
+         * @return false if the queue has already been written, and the send
+         * should be performed directly
+         */
+        boolean add(PendingSend send) {
+            synchronized (this) {
+                if (sends == null) {
+                    return false;
+                }
+                if (sends.size() < connectQueueSize) {
+                    sends.add(send);
+                    return true;
                 }
             }
-        });
+            send.promise.setFailure(new IOException(connectQueueSize
+                    + " messages already waiting to connect to " + address));
+            return true;
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            List<PendingSend> toSend;
+            synchronized (this) {
+                toSend = sends;
+                sends = null;
+            }
+            if (toSend.isEmpty()) {
+                return;
+            }
+            if (future.cause() != null) {
+                for (PendingSend send : toSend) {
+                    send.promise.setFailure(future.cause());
+                }
+                return;
+            }
+            logger.log(Level.FINE, "Send {0} messages queued while connecting to {1}",
+                    new Object[]{toSend.size(), address});
+            Channel ch = future.channel();
+            ChannelFuture unusable = checkUsable(ch);
+            List<SctpMessage> encoded = new ArrayList<>(toSend.size());
+            List<ChannelPromise> promises = new ArrayList<>(toSend.size());
+            for (PendingSend send : toSend) {
+                if (unusable != null) {
+                    send.promise.setFailure(unusable.cause());
+                    continue;
+                }
+                try {
+                    int stream = send.sctpChannel == StreamSelector.ANY
+                            ? selectStream(ch, send.message) : send.sctpChannel;
+                    encoded.add(toSctpMessage(ch, send.message, stream));
+                    promises.add(send.promise);
+                } catch (IOException | RuntimeException ex) {
+                    send.promise.setFailure(ex);
+                }
+            }
+            // Connect futures complete on the channel's event loop
+            writeBatch(ch, encoded, promises);
+        }
+    }
+
+    /**
+     * Fails a request's future if the request could not be sent.
+     */
+    private static final class RequestSendListener implements ChannelFutureListener {
+
+        private final RequestCorrelator.Pending<?> pending;
+
+        RequestSendListener(RequestCorrelator.Pending<?> pending) {
+            this.pending = pending;
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+            if (future.cause() != null) {
+                pending.future.completeExceptionally(future.cause());
+            } else if (future.isCancelled()) {
+                pending.future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Completes the aggregate future for a batch once every message's write
+     * has completed, collecting the failures.
+     */
+    private static final class BatchListener {
+
+        private final ChannelPromise aggregate;
+        // One extra count, released by sealed(), so the batch cannot complete
+        // while messages are still being added
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private final List<BatchSendException.Failure> failures = new ArrayList<>();
+
+        BatchListener(ChannelPromise aggregate) {
+            this.aggregate = aggregate;
+        }
+
+        void add(ChannelPromise promise, int index, Message<?> message) {
+            pending.incrementAndGet();
+            promise.addListener((ChannelFutureListener) future -> {
+                if (!future.isSuccess()) {
+                    synchronized (failures) {
+                        failures.add(new BatchSendException.Failure(index, message, future.cause()));
+                    }
+                }
+                done();
+            });
+        }
+
+        void sealed() {
+            done();
+        }
+
+        private void done() {
+            if (pending.decrementAndGet() == 0) {
+                List<BatchSendException.Failure> failed;
+                synchronized (failures) {
+                    failed = new ArrayList<>(failures);
+                }
+                if (failed.isEmpty()) {
+                    aggregate.trySuccess();
+                } else {
+                    aggregate.tryFailure(new BatchSendException(failed));
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardOpenOption.DELETE_ON_CLOSE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A temporary file the fragments of one oversized message are appended to,
+ * so that reassembling it does not hold them in memory. Once the last
+ * fragment has arrived, the file is memory-mapped and the mapping handed
+ * on as a ByteBuf; the file is deleted as soon as it is mapped, and the
+ * mapping is unmapped when the buffer is garbage collected.
+ *
+ * @author Tim Boudreau
+ */
+final class SpillFile {
+
+    private final FileChannel channel;
+    private long size;
+
+    private SpillFile(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    static SpillFile create(Path dir) throws IOException {
+        Path path = Files.createTempFile(dir, "scamper-", ".fragments");
+        try {
+            return new SpillFile(FileChannel.open(path, READ, WRITE, DELETE_ON_CLOSE));
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(path);
+            throw ex;
+        }
+    }
+
+    /**
+     * Append the readable bytes of a buffer, without releasing it or
+     * changing its reader index.
+     *
+     * @param buf A buffer
+     * @return The size of the file
+     * @throws IOException If the write fails
+     */
+    long append(ByteBuf buf) throws IOException {
+        int index = buf.readerIndex();
+        int length = buf.readableBytes();
+        int written = 0;
+        while (written < length) {
+            written += buf.getBytes(index + written, channel, size + written, length - written);
+        }
+        return size += length;
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * Map the file's contents and close (and so delete) it.
+     *
+     * @return A read-only buffer over the mapping
+     * @throws IOException If the file cannot be mapped
+     */
+    ByteBuf map() throws IOException {
+        try {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return Unpooled.wrappedBuffer(mapped);
+        } finally {
+            close();
+        }
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // Nothing more we can do
+        }
+    }
+}
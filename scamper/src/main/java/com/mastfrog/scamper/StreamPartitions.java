@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.mastfrog.giulius.ShutdownHookRegistry;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_STREAM_PARTITIONS;
+import com.mastfrog.settings.Settings;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Spreads the decoding and handling of inbound messages over a pool of
+ * single-threaded workers, choosing the worker by association and SCTP
+ * stream, so that one busy association which uses many streams is not
+ * limited to the single core its event loop runs on. Every message on a
+ * given stream of a given association goes to the same worker, so they are
+ * still handled in the order they arrived. Fragment reassembly, replies to
+ * requests and streaming handlers stay on the event loop.
+ * <p>
+ * Enabled by setting <code>sctp.stream.partitions</code> to the number of
+ * workers.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class StreamPartitions implements Runnable {
+
+    private final EventExecutorGroup group;
+    private final EventExecutor[] workers;
+    private final MemoryGovernor memory;
+
+    @Inject
+    StreamPartitions(Settings settings, MemoryGovernor memory) {
+        this.memory = memory;
+        int count = settings.getInt(SETTINGS_KEY_STREAM_PARTITIONS, -1);
+        if (count > 0) {
+            group = new DefaultEventExecutorGroup(count, new DefaultThreadFactory("scamper-stream", true));
+            List<EventExecutor> all = new ArrayList<>(count);
+            for (EventExecutor e : group) {
+                all.add(e);
+            }
+            workers = all.toArray(new EventExecutor[all.size()]);
+        } else {
+            group = null;
+            workers = null;
+        }
+    }
+
+    @Inject(optional = true)
+    void shutdownWith(ShutdownHookRegistry reg) {
+        reg.add(this);
+    }
+
+    boolean isEnabled() {
+        return workers != null;
+    }
+
+    /**
+     * Get the worker for a stream of an association.
+     *
+     * @param channel The association's channel
+     * @param stream The stream
+     * @return A worker
+     */
+    EventExecutor worker(Channel channel, int stream) {
+        return workers[Math.floorMod(31 * channel.id().hashCode() + stream, workers.length)];
+    }
+
+    /**
+     * Run a task on the worker for the stream an inbound message arrived
+     * on; its payload buffer is retained, and counted against the memory
+     * budget, until the task has run.
+     *
+     * @param ctx The channel context
+     * @param decoded The message type and payload
+     * @param task Decodes and handles the message
+     */
+    void execute(ChannelHandlerContext ctx, MessageTypeAndBuffer decoded, Bulkhead.Task task) {
+        ByteBuf buf = decoded.buf.retain();
+        int bytes = buf.readableBytes();
+        memory.acquire(bytes);
+        worker(ctx.channel(), decoded.streamIdentifier).execute(() -> {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                ctx.fireExceptionCaught(t);
+            } finally {
+                buf.release();
+                memory.release(bytes);
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        if (group != null) {
+            group.shutdownGracefully();
+        }
+    }
+}
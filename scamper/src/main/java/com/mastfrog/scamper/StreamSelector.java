@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import com.google.inject.ImplementedBy;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+
+/**
+ * Chooses the SCTP stream each outbound message is sent on, and whether the
+ * peer must deliver it in order. Messages delivered in order on one stream
+ * wait for each other, but not for messages on other streams; unordered
+ * messages wait for nothing. The default sends every message unordered, on
+ * the next stream in rotation; see {@link StreamSelectors} for others.
+ * <p>
+ * Set one with <code>SctpServerAndClientBuilder.withStreamSelector()</code>.
+ * Sends which name a stream explicitly bypass {@link #select select()}, but
+ * are still ordered or not as {@link #ordered ordered()} says.
+ *
+ * @author Tim Boudreau
+ */
+@ImplementedBy(StreamSelectors.RoundRobin.class)
+public interface StreamSelector {
+
+    /**
+     * Returned by {@link #select select()} to send on the next stream in
+     * rotation.
+     */
+    int ANY = -1;
+
+    /**
+     * Choose the stream to send a message on. Called on whatever thread is
+     * sending, so implementations must be thread-safe.
+     *
+     * @param channel The channel
+     * @param message The message
+     * @param streams The number of outbound streams the association has
+     * @return A stream from 0 to <code>streams - 1</code>, or {@link #ANY}
+     */
+    int select(Channel channel, Message<?> message, int streams);
+
+    /**
+     * Determine if a message must be delivered in the order it was sent,
+     * relative to others on the same stream.
+     *
+     * @param message The message
+     * @return true if it is ordered
+     */
+    default boolean ordered(Message<?> message) {
+        return false;
+    }
+
+    /**
+     * Called once the write of a message has started, for selectors which
+     * track what is pending on each stream.
+     *
+     * @param channel The channel
+     * @param stream The stream the message is sent on
+     * @param bytes The encoded size of the message
+     * @param future Completed when the write is
+     */
+    default void onWrite(Channel channel, int stream, int bytes, ChannelFuture future) {
+        // do nothing
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import com.mastfrog.util.preconditions.Checks;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Stream selection policies to pass to
+ * <code>SctpServerAndClientBuilder.withStreamSelector()</code>.
+ *
+ * @author Tim Boudreau
+ */
+public final class StreamSelectors {
+
+    private StreamSelectors() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Send every message unordered, on the next stream in rotation - the
+     * default.
+     *
+     * @return A selector
+     */
+    public static StreamSelector roundRobin() {
+        return new RoundRobin();
+    }
+
+    /**
+     * Send each message which has a key - see {@link Message#withKey} - on
+     * a stream chosen by hashing the key, in order; so messages about one
+     * entity arrive in the order they were sent, while messages about
+     * different entities do not wait for each other. Messages with no key
+     * are sent unordered, on the next stream in rotation.
+     *
+     * @return A selector
+     */
+    public static StreamSelector byKey() {
+        return new ByKey();
+    }
+
+    /**
+     * Send each message unordered on whichever stream has the fewest bytes
+     * waiting to be written, so one large message does not hold up the
+     * small ones behind it.
+     *
+     * @return A selector
+     */
+    public static StreamSelector leastPending() {
+        return new LeastPending();
+    }
+
+    /**
+     * Create a builder which pins message types to ranges of streams,
+     * delivered in order.
+     *
+     * @return A builder
+     */
+    public static TypeStreamsBuilder byType() {
+        return new TypeStreamsBuilder();
+    }
+
+    private static int spread(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    static final class RoundRobin implements StreamSelector {
+
+        @Override
+        public int select(Channel channel, Message<?> message, int streams) {
+            return ANY;
+        }
+    }
+
+    static final class ByKey implements StreamSelector {
+
+        @Override
+        public int select(Channel channel, Message<?> message, int streams) {
+            Object key = message.key();
+            return key == null ? ANY : Math.floorMod(spread(key), streams);
+        }
+
+        @Override
+        public boolean ordered(Message<?> message) {
+            return message.key() != null;
+        }
+    }
+
+    static final class LeastPending implements StreamSelector {
+
+        private static final AttributeKey<AtomicLongArray> PENDING_KEY
+                = AttributeKey.valueOf(LeastPending.class, "pending");
+
+        @Override
+        public int select(Channel channel, Message<?> message, int streams) {
+            AtomicLongArray pending = pending(channel, streams);
+            int length = Math.min(streams, pending.length());
+            int result = 0;
+            long least = Long.MAX_VALUE;
+            for (int i = 0; i < length; i++) {
+                long p = pending.get(i);
+                if (p < least) {
+                    least = p;
+                    result = i;
+                    if (p == 0) {
+                        break;
+                    }
+                }
+            }
+            return result;
+        }
+
+        private AtomicLongArray pending(Channel channel, int streams) {
+            Attribute<AtomicLongArray> attr = channel.attr(PENDING_KEY);
+            AtomicLongArray result = attr.get();
+            if (result == null) {
+                AtomicLongArray created = new AtomicLongArray(Math.max(1, streams));
+                result = attr.setIfAbsent(created);
+                if (result == null) {
+                    result = created;
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public void onWrite(Channel channel, int stream, int bytes, ChannelFuture future) {
+            AtomicLongArray pending = channel.attr(PENDING_KEY).get();
+            if (pending != null && stream < pending.length()) {
+                pending.addAndGet(stream, bytes);
+                future.addListener(f -> pending.addAndGet(stream, -bytes));
+            }
+        }
+    }
+
+    /**
+     * Builds a selector which sends each message of a pinned type, in order,
+     * on a stream within that type's range - chosen by its key if it has
+     * one, otherwise in rotation - and defers to another selector for the
+     * rest. Give a type a range of one stream to have all of its messages
+     * arrive in the order they were sent.
+     */
+    public static final class TypeStreamsBuilder {
+
+        private final Map<MessageType, Range> ranges = new HashMap<>();
+        private StreamSelector otherwise = new RoundRobin();
+
+        private TypeStreamsBuilder() {
+        }
+
+        /**
+         * Pin a message type to a range of streams. If the association has
+         * fewer streams than the range needs, stream numbers wrap around.
+         *
+         * @param type The message type
+         * @param firstStream The first stream in the range
+         * @param count The number of streams in the range
+         * @return this
+         */
+        public TypeStreamsBuilder pin(MessageType type, int firstStream, int count) {
+            Checks.notNull("type", type);
+            Checks.nonNegative("firstStream", firstStream);
+            Checks.nonZero("count", count);
+            Checks.nonNegative("count", count);
+            if (ranges.containsKey(type)) {
+                throw new IllegalArgumentException(type + " is already pinned");
+            }
+            ranges.put(type, new Range(firstStream, count));
+            return this;
+        }
+
+        /**
+         * Set the selector used for message types which are not pinned;
+         * round-robin if not set.
+         *
+         * @param otherwise A selector
+         * @return this
+         */
+        public TypeStreamsBuilder otherwise(StreamSelector otherwise) {
+            Checks.notNull("otherwise", otherwise);
+            this.otherwise = otherwise;
+            return this;
+        }
+
+        public StreamSelector build() {
+            return new ByType(new HashMap<>(ranges), otherwise);
+        }
+    }
+
+    private static final class Range {
+
+        final int first;
+        final int count;
+        final AtomicInteger next = new AtomicInteger();
+
+        Range(int first, int count) {
+            this.first = first;
+            this.count = count;
+        }
+
+        int select(Message<?> message, int streams) {
+            Object key = message.key();
+            int offset = count == 1 ? 0
+                    : key == null ? Math.floorMod(next.getAndIncrement(), count)
+                    : Math.floorMod(spread(key), count);
+            return (first + offset) % streams;
+        }
+    }
+
+    static final class ByType implements StreamSelector {
+
+        private final Map<MessageType, Range> ranges;
+        private final StreamSelector otherwise;
+
+        ByType(Map<MessageType, Range> ranges, StreamSelector otherwise) {
+            this.ranges = ranges;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        public int select(Channel channel, Message<?> message, int streams) {
+            Range range = ranges.get(message.type);
+            return range == null ? otherwise.select(channel, message, streams)
+                    : range.select(message, streams);
+        }
+
+        @Override
+        public boolean ordered(Message<?> message) {
+            return ranges.containsKey(message.type) || otherwise.ordered(message);
+        }
+
+        @Override
+        public void onWrite(Channel channel, int stream, int bytes, ChannelFuture future) {
+            otherwise.onWrite(channel, stream, bytes, future);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+
+/**
+ * Handles inbound messages whose payloads may be too large to want to
+ * reassemble in memory. Rather than waiting for every SCTP fragment of a
+ * message and receiving the decoded whole, a streaming handler is told about
+ * the message as soon as its first fragment arrives, and is handed the
+ * payload a chunk at a time as the rest arrive, so a message of any size is
+ * processed in constant memory, while it is still arriving.
+ * <p>
+ * Bind one with <code>bindStreaming()</code> on ProtocolModule or
+ * {@link SctpServerAndClientBuilder}. Messages of the type which arrive in a
+ * single fragment are delivered the same way, as a single chunk.
+ * <p>
+ * Streaming requires a codec which leaves the payload unaltered after its
+ * header, such as the default one; with codecs which transform the payload,
+ * such as compression or encryption, messages are reassembled first and
+ * then delivered as a single chunk.
+ * <p>
+ * All calls happen on the channel's event loop and must not block. To slow
+ * a sender down, turn off auto-read on the channel until the data has been
+ * dealt with.
+ *
+ * @author Tim Boudreau
+ */
+public abstract class StreamingMessageHandler {
+
+    /**
+     * Called when the first fragment of a message arrives.
+     *
+     * @param type The message type
+     * @param ctx The channel context
+     * @return A body to receive the payload, or null to discard it
+     */
+    public abstract Body onMessageStart(MessageType type, ChannelHandlerContext ctx);
+
+    /**
+     * Receives the payload of one message.
+     */
+    public interface Body {
+
+        /**
+         * Called with each chunk of the payload, in order. The buffer is
+         * released when this method returns - retain it to keep it.
+         *
+         * @param chunk The chunk
+         * @param ctx The channel context
+         * @throws Exception If something goes wrong, in which case the rest
+         * of the message is discarded, <code>onAbort()</code> is called and
+         * the exception is passed to the ErrorHandler
+         */
+        void onChunk(ByteBuf chunk, ChannelHandlerContext ctx) throws Exception;
+
+        /**
+         * Called after the last chunk.
+         *
+         * @param ctx The channel context
+         * @throws Exception If something goes wrong
+         */
+        void onComplete(ChannelHandlerContext ctx) throws Exception;
+
+        /**
+         * Called if the message will not be completed, because the channel
+         * closed or this body threw an exception.
+         *
+         * @param cause The cause
+         */
+        default void onAbort(Throwable cause) {
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_SOCKET_PATH;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_TRANSPORT;
+import com.mastfrog.settings.Settings;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFactory;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ReflectiveChannelFactory;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.sctp.SctpChannel;
+import io.netty.channel.sctp.SctpChannelOption;
+import io.netty.channel.sctp.nio.NioSctpServerChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+
+/**
+ * The kind of socket messages travel over, set with
+ * <code>sctp.transport</code>. The same message types, handlers and
+ * {@link Sender} work over each of them.
+ * <p>
+ * Over TCP and Unix domain sockets, which carry a single stream of bytes,
+ * each message is sent as one frame - a four byte length, a two byte stream
+ * id, then the message - so stream selectors, stream partitions and the rest
+ * see the same stream ids they would over SCTP. There are
+ * <code>sctp.virtual.streams</code> of them; messages on all of them arrive
+ * in the order they were sent, since the socket is ordered, and there are no
+ * fragments to reassemble. Multi-homing and path status are SCTP's alone.
+ * <p>
+ * Unix domain sockets need Netty's native epoll transport, so Linux, and
+ * <code>netty-transport-native-epoll</code> - an optional dependency - on the
+ * classpath; the host of an {@link Address} is then the path of the socket,
+ * and its port is ignored. A server listens on <code>sctp.socket.path</code>, or a file named
+ * for its port in the temporary directory.
+ *
+ * @author Tim Boudreau
+ */
+public enum Transport {
+    SCTP {
+        @Override
+        EventLoopGroup newEventLoopGroup(int threads) {
+            return new NioEventLoopGroup(Math.max(0, threads));
+        }
+
+        @Override
+        Class<? extends ServerChannel> serverChannelType() {
+            return NioSctpServerChannel.class;
+        }
+
+        @Override
+        ChannelFactory<? extends Channel> clientChannelFactory() {
+            return PrimaryPathSctpChannel.FACTORY;
+        }
+
+        @Override
+        ChannelOption<Boolean> noDelayOption() {
+            return SctpChannelOption.SCTP_NODELAY;
+        }
+
+        @Override
+        public boolean isAvailable() {
+            try {
+                com.sun.nio.sctp.SctpChannel.open().close();
+                return true;
+            } catch (IOException | UnsupportedOperationException ex) {
+                return false;
+            }
+        }
+    },
+    TCP {
+        @Override
+        EventLoopGroup newEventLoopGroup(int threads) {
+            return new NioEventLoopGroup(Math.max(0, threads));
+        }
+
+        @Override
+        Class<? extends ServerChannel> serverChannelType() {
+            return NioServerSocketChannel.class;
+        }
+
+        @Override
+        ChannelFactory<? extends Channel> clientChannelFactory() {
+            return new ReflectiveChannelFactory<>(NioSocketChannel.class);
+        }
+
+        @Override
+        ChannelOption<Boolean> noDelayOption() {
+            return ChannelOption.TCP_NODELAY;
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+    },
+    UNIX_DOMAIN_SOCKET {
+        @Override
+        EventLoopGroup newEventLoopGroup(int threads) {
+            requireNativeTransport();
+            return UnixDomainSockets.newEventLoopGroup(Math.max(0, threads));
+        }
+
+        @Override
+        Class<? extends ServerChannel> serverChannelType() {
+            requireNativeTransport();
+            return UnixDomainSockets.serverChannelType();
+        }
+
+        @Override
+        ChannelFactory<? extends Channel> clientChannelFactory() {
+            requireNativeTransport();
+            return UnixDomainSockets.clientChannelFactory();
+        }
+
+        @Override
+        ChannelOption<Boolean> noDelayOption() {
+            return null;
+        }
+
+        @Override
+        SocketAddress remoteAddress(String host, int port) {
+            requireNativeTransport();
+            return UnixDomainSockets.address(host);
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return hasNativeTransport() && UnixDomainSockets.isAvailable();
+        }
+    };
+
+    /**
+     * Determine if Netty's native epoll transport, an optional dependency,
+     * is on the classpath - whether or not it works on this OS.
+     *
+     * @return true if it is
+     */
+    static boolean hasNativeTransport() {
+        return NativeTransport.PRESENT;
+    }
+
+    private static void requireNativeTransport() {
+        if (!NativeTransport.PRESENT) {
+            throw new IllegalStateException("Unix domain sockets need "
+                    + "netty-transport-native-epoll on the classpath");
+        }
+    }
+
+    /**
+     * Create the event loop group channels of this transport run on.
+     *
+     * @param threads The number of threads, or zero or less for Netty's
+     * default
+     * @return A group
+     */
+    abstract EventLoopGroup newEventLoopGroup(int threads);
+
+    abstract Class<? extends ServerChannel> serverChannelType();
+
+    abstract ChannelFactory<? extends Channel> clientChannelFactory();
+
+    /**
+     * Get the option that turns off Nagle's algorithm, or null if there is
+     * nothing to turn off.
+     */
+    abstract ChannelOption<Boolean> noDelayOption();
+
+    /**
+     * Determine if this transport can be used here - if the kernel supports
+     * SCTP, or the native epoll library loads.
+     *
+     * @return true if it can
+     */
+    public abstract boolean isAvailable();
+
+    /**
+     * Determine if messages need framing, because the socket is a stream of
+     * bytes rather than of messages.
+     */
+    boolean isFramed() {
+        return this != SCTP;
+    }
+
+    /**
+     * Get the address to connect to for a host and port, resolved when
+     * connecting.
+     */
+    SocketAddress remoteAddress(String host, int port) {
+        return InetSocketAddress.createUnresolved(host, port);
+    }
+
+    /**
+     * Get the transport set with <code>sctp.transport</code>; SCTP if it is
+     * not set.
+     *
+     * @param settings The settings
+     * @return A transport
+     */
+    static Transport of(Settings settings) {
+        String name = settings.getString(SETTINGS_KEY_TRANSPORT);
+        if (name == null || name.trim().isEmpty()) {
+            return SCTP;
+        }
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Bad " + SETTINGS_KEY_TRANSPORT + ": " + name
+                    + " - expected one of " + Arrays.toString(values()), ex);
+        }
+    }
+
+    /**
+     * Get the transport a channel belongs to.
+     *
+     * @param channel A channel
+     * @return Its transport, or null if it is some other kind of channel
+     */
+    static Transport of(Channel channel) {
+        if (channel instanceof SctpChannel) {
+            return SCTP;
+        } else if (channel instanceof SocketChannel) {
+            return TCP;
+        } else if (hasNativeTransport() && UnixDomainSockets.isDomainSocket(channel)) {
+            return UNIX_DOMAIN_SOCKET;
+        }
+        return null;
+    }
+
+    /**
+     * Get the path of the Unix domain socket a server on some port listens
+     * on.
+     *
+     * @param settings The settings
+     * @param port The port
+     * @return A file path
+     */
+    static String socketPath(Settings settings, int port) {
+        String result = settings.getString(SETTINGS_KEY_SOCKET_PATH);
+        if (result == null || result.trim().isEmpty()) {
+            result = new File(System.getProperty("java.io.tmpdir"), "scamper-" + port + ".sock").getPath();
+        }
+        return result;
+    }
+
+    private static final class NativeTransport {
+
+        static final boolean PRESENT = present();
+
+        private static boolean present() {
+            try {
+                ClassLoader loader = Transport.class.getClassLoader();
+                Class.forName("io.netty.channel.epoll.Epoll", false, loader);
+                Class.forName("io.netty.channel.unix.DomainSocketChannel", false, loader);
+                return true;
+            } catch (ClassNotFoundException | LinkageError ex) {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFactory;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ReflectiveChannelFactory;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerDomainSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.channel.unix.DomainSocketChannel;
+import java.net.SocketAddress;
+
+/**
+ * Everything which touches Netty's native epoll transport, which is an
+ * optional dependency. Only {@link Transport} calls into this, and only once
+ * it knows the classes are there, so without them Unix domain sockets are
+ * just unavailable rather than a <code>NoClassDefFoundError</code>.
+ *
+ * @author Tim Boudreau
+ */
+final class UnixDomainSockets {
+
+    private UnixDomainSockets() {
+        throw new AssertionError();
+    }
+
+    static boolean isAvailable() {
+        return Epoll.isAvailable();
+    }
+
+    static EventLoopGroup newEventLoopGroup(int threads) {
+        // Fails with the reason, rather than a bare UnsatisfiedLinkError
+        Epoll.ensureAvailability();
+        return new EpollEventLoopGroup(threads);
+    }
+
+    static Class<? extends ServerChannel> serverChannelType() {
+        return EpollServerDomainSocketChannel.class;
+    }
+
+    static ChannelFactory<? extends Channel> clientChannelFactory() {
+        return new ReflectiveChannelFactory<>(EpollDomainSocketChannel.class);
+    }
+
+    static SocketAddress address(String path) {
+        return new DomainSocketAddress(path);
+    }
+
+    static boolean isDomainSocket(Channel channel) {
+        return channel instanceof DomainSocketChannel;
+    }
+
+    static String path(SocketAddress address) {
+        return address instanceof DomainSocketAddress ? ((DomainSocketAddress) address).path() : null;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.mastfrog.giulius.ShutdownHookRegistry;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_VIRTUAL_THREADS_PER_TYPE;
+import com.mastfrog.settings.Settings;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs each inbound message's handler on its own virtual thread, so
+ * handlers may block - on JDBC, or on <code>Sender.request()</code> - without
+ * tying up an event loop. Messages arriving on the same SCTP stream of an
+ * association are handled one at a time, in the order they arrived; the
+ * number of handlers of each message type running at once is capped by a
+ * semaphore. Enabled by setting <code>sctp.virtual.threads.per.type</code>
+ * to the cap; handlers bound to a {@link Bulkhead} run there instead.
+ * <p>
+ * Virtual threads need JDK 21 or later; on older JDKs, platform threads
+ * from a cached pool are used, and the cap matters a great deal more.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class VirtualThreadDispatch implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(VirtualThreadDispatch.class.getName());
+    private static final AttributeKey<Lanes> LANES_KEY
+            = AttributeKey.valueOf(VirtualThreadDispatch.class, "lanes");
+    private final int maxPerType;
+    private final ExecutorService threads;
+    private final ConcurrentHashMap<MessageType, Semaphore> permits = new ConcurrentHashMap<>();
+
+    @Inject
+    VirtualThreadDispatch(Settings settings) {
+        maxPerType = settings.getInt(SETTINGS_KEY_VIRTUAL_THREADS_PER_TYPE, -1);
+        threads = maxPerType > 0 ? newThreadPerTaskExecutor() : null;
+    }
+
+    @Inject(optional = true)
+    void shutdownWith(ShutdownHookRegistry reg) {
+        if (threads != null) {
+            reg.add(this);
+        }
+    }
+
+    boolean isEnabled() {
+        return threads != null;
+    }
+
+    static boolean virtualThreadsAvailable() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException ex) {
+            return false;
+        }
+    }
+
+    private static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            // Looked up reflectively so the library still builds for and
+            // runs on JDKs without virtual threads
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            logger.log(Level.WARNING, "Virtual threads need JDK 21 or later; "
+                    + "running handlers on platform threads");
+            return Executors.newCachedThreadPool(new DefaultThreadFactory("scamper-handler", true));
+        }
+    }
+
+    /**
+     * Queue a handler to run after any others for messages which arrived
+     * earlier on the same stream. Called on the channel's event loop. A
+     * reference-counted payload is retained until the handler has run.
+     *
+     * @param ctx The channel context
+     * @param stream The SCTP stream the message arrived on
+     * @param message The message
+     * @param task Calls the handler and sends any reply
+     */
+    void execute(ChannelHandlerContext ctx, int stream, Message<?> message, Bulkhead.Task task) {
+        Object body = ReferenceCountUtil.retain(message.body);
+        Semaphore permit = permits.computeIfAbsent(message.type, type -> new Semaphore(maxPerType));
+        lane(ctx, stream).add(() -> {
+            try {
+                permit.acquire();
+                try {
+                    task.run();
+                } finally {
+                    permit.release();
+                }
+            } catch (InterruptedException ex) {
+                // Shutting down
+                Thread.currentThread().interrupt();
+            } catch (Throwable t) {
+                ctx.fireExceptionCaught(t);
+            } finally {
+                ReferenceCountUtil.release(body);
+            }
+        }, body);
+    }
+
+    private Lane lane(ChannelHandlerContext ctx, int stream) {
+        Attribute<Lanes> attr = ctx.channel().attr(LANES_KEY);
+        Lanes lanes = attr.get();
+        if (lanes == null) {
+            // Stream partitions may get here from more than one thread
+            Lanes created = new Lanes();
+            lanes = attr.setIfAbsent(created);
+            if (lanes == null) {
+                lanes = created;
+            }
+        }
+        return lanes.get(stream);
+    }
+
+    @Override
+    public void run() {
+        if (threads != null) {
+            threads.shutdownNow();
+        }
+    }
+
+    /**
+     * The lanes of one association, indexed by stream; touched on its event
+     * loop, or on the stream partitions its messages are handled on.
+     */
+    private final class Lanes {
+
+        private Lane[] lanes = new Lane[16];
+
+        synchronized Lane get(int stream) {
+            if (stream >= lanes.length) {
+                lanes = Arrays.copyOf(lanes, Math.max(stream + 1, lanes.length * 2));
+            }
+            Lane result = lanes[stream];
+            if (result == null) {
+                lanes[stream] = result = new Lane();
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Runs the handlers for one stream in order, on a thread which exists
+     * only while there are any waiting.
+     */
+    private final class Lane implements Runnable {
+
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private boolean running;
+
+        void add(Runnable task, Object body) {
+            boolean start;
+            synchronized (this) {
+                tasks.add(task);
+                start = !running;
+                running = true;
+            }
+            if (start) {
+                try {
+                    threads.execute(this);
+                } catch (RejectedExecutionException ex) {
+                    synchronized (this) {
+                        tasks.clear();
+                        running = false;
+                    }
+                    ReferenceCountUtil.release(body);
+                    logger.log(Level.FINE, "Shut down, not running handler", ex);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            for (;;) {
+                Runnable task;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        running = false;
+                        return;
+                    }
+                }
+                task.run();
+            }
+        }
+    }
+}
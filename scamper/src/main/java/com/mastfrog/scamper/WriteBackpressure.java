@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_WRITE_BUFFER_HIGH_WATER_MARK;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_WRITE_BUFFER_LOW_WATER_MARK;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_WRITE_POLICY;
+import com.mastfrog.settings.Settings;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Applies the configured {@link WritePolicy} to sends, holding messages sent
+ * with {@link WritePolicy#WAIT} until the channel is writable again - up to
+ * the channel's high water mark in bytes, beyond which sends fail with a
+ * {@link WriteBufferFullException}, so a slow peer cannot make them grow
+ * without limit. Also
+ * applies the configured write buffer water marks to each channel. Installed
+ * at the head of every channel's pipeline by Init so it is notified of
+ * writability changes.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+@ChannelHandler.Sharable
+final class WriteBackpressure extends ChannelInboundHandlerAdapter {
+
+    private static final AttributeKey<Held> HELD_KEY
+            = AttributeKey.valueOf(WriteBackpressure.class, "held");
+    private final WritePolicy defaultPolicy;
+    private final WriteBufferWaterMark waterMark;
+
+    @Inject
+    WriteBackpressure(Settings settings) {
+        String policy = settings.getString(SETTINGS_KEY_WRITE_POLICY);
+        defaultPolicy = policy == null ? WritePolicy.IGNORE : WritePolicy.valueOf(policy.toUpperCase());
+        int low = settings.getInt(SETTINGS_KEY_WRITE_BUFFER_LOW_WATER_MARK, -1);
+        int high = settings.getInt(SETTINGS_KEY_WRITE_BUFFER_HIGH_WATER_MARK, -1);
+        if (low >= 0 || high >= 0) {
+            WriteBufferWaterMark def = WriteBufferWaterMark.DEFAULT;
+            // Throws if low > high
+            waterMark = new WriteBufferWaterMark(low >= 0 ? low : Math.min(def.low(), high),
+                    high >= 0 ? high : Math.max(def.high(), low));
+        } else {
+            waterMark = null;
+        }
+    }
+
+    WritePolicy defaultPolicy() {
+        return defaultPolicy;
+    }
+
+    @Override
+    public boolean isSharable() {
+        return true;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        if (waterMark != null) {
+            ctx.channel().config().setWriteBufferWaterMark(waterMark);
+        }
+    }
+
+    /**
+     * Write and flush a message, held until the channel is writable if it is
+     * not now, or if earlier messages are already being held. If the bytes
+     * held would exceed the channel's high water mark, the message is
+     * released and the returned future fails with a
+     * {@link WriteBufferFullException}.
+     *
+     * @param channel The channel
+     * @param msg The message
+     * @return A future which completes when the message has been written
+     */
+    ChannelFuture writeWhenWritable(Channel channel, Object msg) {
+        ChannelPromise promise = channel.newPromise();
+        if (channel.eventLoop().inEventLoop()) {
+            writeOrHold(channel, msg, promise);
+        } else {
+            channel.eventLoop().execute(() -> writeOrHold(channel, msg, promise));
+        }
+        return promise;
+    }
+
+    private void writeOrHold(Channel channel, Object msg, ChannelPromise promise) {
+        Held held = channel.attr(HELD_KEY).get();
+        if ((held == null || held.isEmpty()) && channel.isWritable()) {
+            channel.writeAndFlush(msg, promise);
+            return;
+        }
+        if (!channel.isActive()) {
+            ReferenceCountUtil.release(msg);
+            promise.tryFailure(new ClosedChannelException());
+            return;
+        }
+        if (held == null) {
+            channel.attr(HELD_KEY).set(held = new Held());
+        }
+        if (!held.add(msg, promise, channel.config().getWriteBufferHighWaterMark())) {
+            ReferenceCountUtil.release(msg);
+            promise.tryFailure(new WriteBufferFullException(channel.remoteAddress()));
+        }
+    }
+
+    /**
+     * Get the number of bytes waiting to be written to a channel, including
+     * both Netty's outbound buffer and messages held for writability.
+     *
+     * @param channel The channel
+     * @return A byte count
+     */
+    long pendingBytes(Channel channel) {
+        ChannelOutboundBuffer buf = channel.unsafe().outboundBuffer();
+        long result = buf == null ? 0 : buf.totalPendingWriteBytes();
+        Held held = channel.attr(HELD_KEY).get();
+        return held == null ? result : result + held.bytes;
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        Channel channel = ctx.channel();
+        Held held = channel.attr(HELD_KEY).get();
+        if (held != null && channel.isWritable()) {
+            held.drain(channel);
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        Held held = ctx.channel().attr(HELD_KEY).getAndSet(null);
+        if (held != null) {
+            held.fail(new ClosedChannelException());
+        }
+        super.channelInactive(ctx);
+    }
+
+    /**
+     * Messages held for a channel; only touched on its event loop.
+     */
+    private static final class Held {
+
+        private final Deque<Object> messages = new ArrayDeque<>();
+        private final Deque<ChannelPromise> promises = new ArrayDeque<>();
+        volatile long bytes;
+
+        boolean isEmpty() {
+            return messages.isEmpty();
+        }
+
+        /**
+         * Hold a message, unless that would take the bytes held past the
+         * limit; one message is always accepted, however large, so a message
+         * bigger than the limit can still be sent.
+         */
+        boolean add(Object msg, ChannelPromise promise, long limit) {
+            long size = sizeOf(msg);
+            if (!messages.isEmpty() && bytes + size > limit) {
+                return false;
+            }
+            messages.add(msg);
+            promises.add(promise);
+            bytes += size;
+            return true;
+        }
+
+        void drain(Channel channel) {
+            boolean wrote = false;
+            while (!messages.isEmpty() && channel.isWritable()) {
+                Object msg = messages.poll();
+                bytes -= sizeOf(msg);
+                channel.write(msg, promises.poll());
+                wrote = true;
+            }
+            if (wrote) {
+                channel.flush();
+            }
+        }
+
+        void fail(Throwable cause) {
+            while (!messages.isEmpty()) {
+                ReferenceCountUtil.release(messages.poll());
+                promises.poll().tryFailure(cause);
+            }
+            bytes = 0;
+        }
+
+        private static long sizeOf(Object msg) {
+            if (msg instanceof ByteBufHolder) {
+                return ((ByteBufHolder) msg).content().readableBytes();
+            }
+            return msg instanceof ByteBuf ? ((ByteBuf) msg).readableBytes() : 0;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import java.io.IOException;
+
+/**
+ * Failure cause for a send using {@link WritePolicy#FAIL} to a channel whose
+ * outbound buffer is over its high water mark, or using
+ * {@link WritePolicy#WAIT} to one already holding as many bytes.
+ *
+ * @author Tim Boudreau
+ */
+public final class WriteBufferFullException extends IOException {
+
+    WriteBufferFullException(Object remoteAddress) {
+        super("Outbound buffer for " + remoteAddress + " is over its high water mark");
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_COALESCE_MAX_BATCH;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_COALESCE_MICROS;
+import com.mastfrog.settings.Settings;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Coalesces writes made from threads other than a channel's event loop.
+ * Rather than scheduling one event loop task per <code>writeAndFlush()</code>,
+ * each channel gets a lock-free queue; the first write into an empty queue
+ * schedules a single drain task, and every write that arrives before it runs
+ * joins the same batch, which is written and flushed once.
+ * <p>
+ * Disabled unless the setting <code>sctp.write.coalesce.micros</code> is
+ * zero or greater; the value is how long the first message in a batch may
+ * wait for others to join it (zero means only as long as it takes the event
+ * loop to get to the task). At most <code>sctp.write.coalesce.max.batch</code>
+ * messages are written between flushes.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class WriteCoalescer {
+
+    static final int DEFAULT_COALESCE_MAX_BATCH = 256;
+    private static final AttributeKey<PendingWrites> PENDING_KEY
+            = AttributeKey.valueOf(WriteCoalescer.class, "pending");
+    private final long delayMicros;
+    private final int maxBatch;
+
+    @Inject
+    WriteCoalescer(Settings settings) {
+        delayMicros = settings.getLong(SETTINGS_KEY_COALESCE_MICROS, -1);
+        maxBatch = settings.getInt(SETTINGS_KEY_COALESCE_MAX_BATCH, DEFAULT_COALESCE_MAX_BATCH);
+        if (maxBatch < 1) {
+            throw new IllegalArgumentException(SETTINGS_KEY_COALESCE_MAX_BATCH
+                    + " must be at least 1 but was " + maxBatch);
+        }
+    }
+
+    boolean isEnabled() {
+        return delayMicros >= 0;
+    }
+
+    /**
+     * Write a message, coalescing it with others written to the same channel
+     * from other threads. Callers on the channel's event loop should write
+     * directly instead.
+     *
+     * @param channel The channel
+     * @param msg The message
+     * @return A future
+     */
+    ChannelFuture write(Channel channel, Object msg) {
+        ChannelPromise promise = channel.newPromise();
+        pending(channel).add(msg, promise);
+        return promise;
+    }
+
+    private PendingWrites pending(Channel channel) {
+        Attribute<PendingWrites> attr = channel.attr(PENDING_KEY);
+        PendingWrites result = attr.get();
+        if (result == null) {
+            PendingWrites nue = new PendingWrites(channel);
+            result = attr.setIfAbsent(nue);
+            if (result == null) {
+                result = nue;
+            }
+        }
+        return result;
+    }
+
+    private final class PendingWrites implements Runnable {
+
+        private final Channel channel;
+        private final Queue<PendingWrite> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        PendingWrites(Channel channel) {
+            this.channel = channel;
+        }
+
+        void add(Object msg, ChannelPromise promise) {
+            queue.offer(new PendingWrite(msg, promise));
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    if (delayMicros == 0) {
+                        channel.eventLoop().execute(this);
+                    } else {
+                        channel.eventLoop().schedule(this, delayMicros, TimeUnit.MICROSECONDS);
+                    }
+                } catch (RuntimeException ex) {
+                    // Event loop rejected the task - shutting down
+                    failAll(ex);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            // Clear the flag before draining, so a write which arrives while
+            // we are draining schedules another pass rather than being stranded
+            scheduled.set(false);
+            int count = 0;
+            PendingWrite write;
+            while ((write = queue.poll()) != null) {
+                channel.write(write.msg, write.promise);
+                if (++count % maxBatch == 0) {
+                    channel.flush();
+                }
+            }
+            if (count % maxBatch != 0) {
+                channel.flush();
+            }
+        }
+
+        private void failAll(Throwable cause) {
+            PendingWrite write;
+            while ((write = queue.poll()) != null) {
+                ReferenceCountUtil.release(write.msg);
+                write.promise.tryFailure(cause);
+            }
+        }
+    }
+
+    private static final class PendingWrite {
+
+        final Object msg;
+        final ChannelPromise promise;
+
+        PendingWrite(Object msg, ChannelPromise promise) {
+            this.msg = msg;
+            this.promise = promise;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+/**
+ * What {@link Sender} should do with a message when the channel it is to be
+ * written to is not writable - the bytes queued in Netty's outbound buffer
+ * for it have passed the high water mark, usually because the peer is
+ * reading slowly.
+ *
+ * @author Tim Boudreau
+ */
+public enum WritePolicy {
+    /**
+     * Write the message anyway, letting the outbound buffer grow. This is
+     * the default.
+     */
+    IGNORE,
+    /**
+     * Do not write the message; the returned future fails with a
+     * {@link WriteBufferFullException}.
+     */
+    FAIL,
+    /**
+     * Discard the message; the returned future is cancelled.
+     */
+    DROP,
+    /**
+     * Hold the message until the channel becomes writable again; the
+     * returned future completes once it has been written. Messages held
+     * this way are written in the order they were sent. At most the
+     * channel's high water mark in bytes is held; past that, the returned
+     * future fails with a {@link WriteBufferFullException}.
+     */
+    WAIT
+}
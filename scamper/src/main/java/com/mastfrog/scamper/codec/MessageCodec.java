@@ -64,6 +64,56 @@ public abstract class MessageCodec {
      */
     public abstract ByteBuf encode(MessageType type, ByteBuf outbound, Channel channel);
 
+    /**
+     * If this codec's wire format is a fixed-length header followed by the
+     * unaltered payload, return the length of that header, so the sender can
+     * reserve space for it and serialize the payload directly after it into
+     * a single buffer, which is then passed to <code>encodeHeader()</code>.
+     * The default implementation returns -1, meaning the codec transforms
+     * the payload and <code>encode()</code> will be called instead.
+     *
+     * @param type The type of message
+     * @return The header length, or -1
+     */
+    public int headerLength(MessageType type) {
+        return -1;
+    }
+
+    /**
+     * Write the header into space reserved for it at the start of a buffer,
+     * for codecs that return a non-negative value from
+     * <code>headerLength()</code>. The buffer's reader index is at the start
+     * of the reserved space, and the payload follows it.
+     *
+     * @param type The type of message
+     * @param buf The buffer, with <code>headerLength(type)</code> bytes
+     * reserved at its reader index
+     * @param channel The channel
+     * @return The buffer to send - usually the one passed in
+     */
+    public ByteBuf encodeHeader(MessageType type, ByteBuf buf, Channel channel) {
+        throw new UnsupportedOperationException(getClass().getName()
+                + " does not support writing headers in place");
+    }
+
+    /**
+     * For codecs whose wire format is a header followed by the unaltered
+     * payload, decode the header from the first fragment of a message whose
+     * remaining fragments have not arrived yet, so the payload can be passed
+     * to a streaming handler as it arrives. The returned buffer holds the
+     * part of the payload in this fragment. The default implementation
+     * returns null, meaning the codec needs the whole message.
+     *
+     * @param firstFragment The first fragment; if null is returned it must
+     * be unaltered
+     * @param ctx The channel context
+     * @param sctpChannel The SCTP stream
+     * @return A message type and buffer, or null
+     */
+    public MessageTypeAndBuffer decodeHeader(ByteBuf firstFragment, ChannelHandlerContext ctx, int sctpChannel) {
+        return null;
+    }
+
     /**
      * The first byte of a message, which identifies it as belonging to this
      * codec (there could be more than one).
@@ -41,6 +41,7 @@ public class RawMessageCodec extends MessageCodec {
     protected final Codec jsonBson;
     protected final MessageTypeRegistry messageTypes;
     public static final int MAGIC = 123;
+    private static final MessageType NOT_RAW = MessageType.createUnknown(-1, -1);
 
     @Inject
     protected RawMessageCodec(@Named(GUICE_BINDING_SCAMPER_CODEC) Codec jsonBson, MessageTypeRegistry messageTypes) {
@@ -60,7 +61,16 @@ public class RawMessageCodec extends MessageCodec {
             MessageType messageType = messageTypes.forByteBuf(buf);
             return new MessageTypeAndBuffer(messageType, buf, sctpChannel);
         }
-        return new MessageTypeAndBuffer(MessageType.createUnknown(-1, -1), buf.resetReaderIndex(), sctpChannel);
+        return new MessageTypeAndBuffer(NOT_RAW, buf.resetReaderIndex(), sctpChannel);
+    }
+
+    @Override
+    public MessageTypeAndBuffer decodeHeader(ByteBuf firstFragment, ChannelHandlerContext ctx, int sctpChannel) {
+        if (firstFragment.readableBytes() < MessageType.HEADER_SIZE + 1
+                || firstFragment.getByte(firstFragment.readerIndex()) != magicNumber()) {
+            return null;
+        }
+        return decode(firstFragment, ctx, sctpChannel);
     }
 
     @Override
@@ -71,4 +81,17 @@ public class RawMessageCodec extends MessageCodec {
         result.writerIndex(buf.readableBytes() + outbound.readableBytes());
         return result;
     }
+
+    @Override
+    public int headerLength(MessageType type) {
+        return type.headerLength() + 1;
+    }
+
+    @Override
+    public ByteBuf encodeHeader(MessageType type, ByteBuf buf, Channel channel) {
+        int ix = buf.readerIndex();
+        buf.setByte(ix, magicNumber());
+        type.setHeader(buf, ix + 1);
+        return buf;
+    }
 }
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class AddressTest {
+
+    @Test
+    public void testLiteralAndSocketAddressFormsAreEqual() throws Exception {
+        Address fromString = new Address("127.0.0.1", 8007);
+        Address fromSocket = new Address(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 8007));
+        assertEquals(fromString, fromSocket);
+        assertEquals(fromString.hashCode(), fromSocket.hashCode());
+        assertNotEquals(fromString, new Address("127.0.0.1", 8008));
+        assertNotEquals(fromString, new Address("127.0.0.2", 8007));
+    }
+
+    @Test
+    public void testIpv6LiteralsCompareByBytes() throws Exception {
+        Address shortForm = new Address("::1", 8007);
+        Address longForm = new Address("0:0:0:0:0:0:0:1", 8007);
+        assertEquals(shortForm, longForm);
+        assertEquals(shortForm.hashCode(), longForm.hashCode());
+        assertEquals(shortForm, new Address(new InetSocketAddress(InetAddress.getByName("::1"), 8007)));
+    }
+
+    @Test
+    public void testHostNamesCompareAsStrings() {
+        assertEquals(new Address("example.com", 80), new Address("example.com", 80));
+        assertNotEquals(new Address("example.com", 80), new Address("example.org", 80));
+        // Not valid IPv4 literals, so treated as names rather than resolved
+        assertNotEquals(new Address("1.2.3.256", 80), new Address("1.2.3.0", 80));
+        assertEquals(new Address("1.2.3", 80), new Address("1.2.3", 80));
+    }
+
+    @Test
+    public void testAlternatesTriedInTurn() {
+        Address address = new Address("10.0.0.1", 8007).withAlternates("10.0.1.1", "10.0.2.1");
+        assertTrue(address.isMultiHomed());
+        assertFalse(new Address("10.0.0.1", 8007).isMultiHomed());
+        // An address names an association by its primary path
+        assertEquals(new Address("10.0.0.1", 8007), address);
+        assertEquals(new Address("10.0.0.1", 8007).hashCode(), address.hashCode());
+        assertEquals("10.0.0.1", address.hostForAttempt(0));
+        assertEquals("10.0.1.1", address.hostForAttempt(1));
+        assertEquals("10.0.2.1", address.hostForAttempt(2));
+        assertEquals("10.0.0.1", address.hostForAttempt(3));
+        assertEquals("10.0.0.1", new Address("10.0.0.1", 8007).hostForAttempt(5));
+    }
+}
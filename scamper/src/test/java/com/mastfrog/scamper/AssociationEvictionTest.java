@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class AssociationEvictionTest {
+
+    private final Address first = new Address("10.0.0.1", 8007);
+    private final Address second = new Address("10.0.0.2", 8007);
+    private final Address third = new Address("10.0.0.3", 8007);
+
+    private static Associations associations(int max) {
+        return new Associations(null, null, 1, new Associations.Backoff(100, 1000), max);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws Exception {
+        Associations assoc = associations(2);
+        assoc.slotForTest(first, null);
+        Thread.sleep(5);
+        assoc.slotForTest(second, null);
+        Thread.sleep(5);
+        // Using the first again makes the second the least recently used
+        assoc.slotForTest(first, null);
+        Thread.sleep(5);
+        assoc.slotForTest(third, null);
+        assertEquals(2, assoc.size());
+        assertTrue(assoc.lastUsed(first) > 0);
+        assertEquals(0, assoc.lastUsed(second));
+        assertTrue(assoc.lastUsed(third) >= assoc.lastUsed(first));
+        assertEquals(2, assoc.lastUsed().size());
+    }
+
+    @Test
+    public void testIdleEvicted() throws Exception {
+        Associations assoc = associations(-1);
+        assoc.slotForTest(first, null);
+        assoc.slotForTest(second, null);
+        Thread.sleep(50);
+        assoc.slotForTest(third, null);
+        assertEquals(2, assoc.evictIdle(25));
+        assertEquals(1, assoc.size());
+        assertTrue(assoc.lastUsed(third) > 0);
+        // Evicted addresses are reconnected to on demand
+        assoc.slotForTest(first, null);
+        assertEquals(2, assoc.size());
+    }
+
+    @Test
+    public void testUnboundedByDefault() {
+        Associations assoc = associations(-1);
+        for (int i = 0; i < 100; i++) {
+            assoc.slotForTest(new Address("10.0.1." + i, 8007), null);
+        }
+        assertEquals(100, assoc.size());
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.internal.PlatformDependent;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Test;
+
+/**
+ * Checks the per-channel state, and measures what an association costs in
+ * heap and direct memory, with 10,000 of them open over loopback - TCP
+ * connections if the kernel has no SCTP. The benchmark needs a file
+ * descriptor limit above 20,000, so it only runs with
+ * <code>-Dscamper.footprint.benchmark=true</code>.
+ */
+public class AssociationStateTest {
+
+    private static final int BENCHMARK_ASSOCIATIONS = 10000;
+
+    @Test
+    public void testOneStatePerChannel() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        assertNull(AssociationState.peek(channel));
+        AssociationState state = AssociationState.of(channel);
+        assertSame(state, AssociationState.of(channel));
+        assertSame(state, AssociationState.peek(channel));
+        assertNull("Fragments are only created when needed", state.fragments());
+        // No streams are known until the association is in a pool
+        assertEquals(0, state.nextOutStream());
+        state.stream(7);
+        assertEquals(7, state.stream());
+    }
+
+    @Test
+    public void testStreamCountersWrap() {
+        Associations assoc = new Associations(null, null);
+        Address address = new Address("10.0.0.1", 8007);
+        assoc.registerForTest(address, 3, 5);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i % 5, assoc.nextOutStream(address));
+            assertEquals(i % 3, assoc.nextInStream(address));
+        }
+    }
+
+    @Test
+    public void testFootprintBenchmark() throws Exception {
+        assumeTrue("Set -Dscamper.footprint.benchmark=true to run", Boolean.getBoolean("scamper.footprint.benchmark"));
+        // Without SCTP in the kernel, TCP connections stand in for
+        // associations, which still measures the state kept for each
+        Transport transport = Transport.SCTP.isAvailable() ? Transport.SCTP : Transport.TCP;
+        int count = Integer.getInteger("scamper.footprint.associations", BENCHMARK_ASSOCIATIONS);
+        NioEventLoopGroup boss = new NioEventLoopGroup(1);
+        NioEventLoopGroup workers = new NioEventLoopGroup();
+        Channel server = null;
+        try {
+            Associations accepting = new Associations(null, null);
+            CountDownLatch accepted = new CountDownLatch(count);
+            ChannelConfigurer config = new LoopbackConfigurer(boss, workers, new Accept(accepting, accepted), transport);
+            server = config.init(new ServerBootstrap()).bind("127.0.0.1", 0).sync().channel();
+            Address address = new Address("127.0.0.1", ((InetSocketAddress) server.localAddress()).getPort());
+            // One pool slot per association, so all of them go to one address
+            Associations connecting = new Associations(config, null, count);
+
+            long heapBefore = usedHeap();
+            long directBefore = usedDirect();
+            long then = System.nanoTime();
+            List<ChannelFuture> futures = connecting.connectAll(address);
+            for (ChannelFuture f : futures) {
+                assertTrue("Connect failed: " + f.cause(), f.await(1, TimeUnit.MINUTES) && f.isSuccess());
+            }
+            assertTrue("Timed out", accepted.await(1, TimeUnit.MINUTES));
+            long elapsed = System.nanoTime() - then;
+            long heap = usedHeap() - heapBefore;
+            long direct = usedDirect() - directBefore;
+            assertEquals(count, connecting.channels(address).size());
+
+            System.out.println(count + " loopback " + transport + " associations opened in "
+                    + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms; retained per association, "
+                    + "counting both ends: " + (heap / count) + " bytes of heap, "
+                    + (direct / count) + " bytes of direct memory");
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+            workers.shutdownGracefully(0, 1, TimeUnit.SECONDS).await();
+            boss.shutdownGracefully(0, 1, TimeUnit.SECONDS).await();
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(200);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long usedDirect() {
+        long result = 0;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName())) {
+                result += pool.getMemoryUsed();
+            }
+        }
+        // Netty's own direct buffers, if it allocates them without cleaners
+        long netty = PlatformDependent.usedDirectMemory();
+        return netty > 0 ? result + netty : result;
+    }
+
+    /**
+     * Registers accepted associations the way InboundBytesDecoder does.
+     */
+    @ChannelHandler.Sharable
+    static final class Accept extends ChannelInboundHandlerAdapter {
+
+        private final Associations assoc;
+        private final CountDownLatch accepted;
+
+        Accept(Associations assoc, CountDownLatch accepted) {
+            this.assoc = assoc;
+            this.accepted = accepted;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            assoc.ensureRegistered(ctx);
+            accepted.countDown();
+            super.channelActive(ctx);
+        }
+    }
+
+    /**
+     * Bare channels with no codec, so only the associations themselves are
+     * measured.
+     */
+    static final class LoopbackConfigurer extends ChannelConfigurer {
+
+        private final Accept accept;
+
+        LoopbackConfigurer(NioEventLoopGroup boss, NioEventLoopGroup workers, Accept accept, Transport transport) {
+            super(boss, workers, null, PooledByteBufAllocator.DEFAULT, transport);
+            this.accept = accept;
+        }
+
+        @Override
+        protected ServerBootstrap init(ServerBootstrap b) {
+            return b.group(group, worker)
+                    .channel(transport.serverChannelType())
+                    .option(ChannelOption.SO_BACKLOG, 1000)
+                    .childHandler(accept);
+        }
+
+        @Override
+        protected Bootstrap init(Bootstrap b) {
+            return b.group(worker)
+                    .channelFactory(transport.clientChannelFactory())
+                    .handler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch) {
+                        }
+                    });
+        }
+    }
+}
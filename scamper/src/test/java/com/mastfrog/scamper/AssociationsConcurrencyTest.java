@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * A smoke test of the lock-free registry: has 32 threads pick outbound
+ * streams for a handful of addresses at once, as address-based sends do, and
+ * checks that no selection is lost and every stream is handed out equally
+ * often. It is not a benchmark, and makes no claim about contention.
+ */
+public class AssociationsConcurrencyTest {
+
+    private static final int THREADS = 32;
+    private static final int ADDRESSES = 8;
+    private static final int STREAMS = 10;
+    private static final int CALLS_PER_THREAD = 20000;
+
+    @Test
+    public void testConcurrentStreamSelectionIsFair() throws Throwable {
+        Associations assoc = new Associations(null, null);
+        Address[] addresses = new Address[ADDRESSES];
+        AtomicIntegerArray[] counts = new AtomicIntegerArray[ADDRESSES];
+        for (int i = 0; i < ADDRESSES; i++) {
+            addresses[i] = new Address("10.0.0." + (i + 1), 8007);
+            assoc.registerForTest(addresses[i], STREAMS, STREAMS);
+            counts[i] = new AtomicIntegerArray(STREAMS);
+        }
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(THREADS);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int offset = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < CALLS_PER_THREAD; i++) {
+                        int ix = (i + offset) % ADDRESSES;
+                        counts[ix].incrementAndGet(assoc.nextOutStream(addresses[ix]));
+                        assertNull(assoc.channel(addresses[ix]));
+                    }
+                } catch (Throwable ex) {
+                    failure.compareAndSet(null, ex);
+                } finally {
+                    done.countDown();
+                }
+            }, "sender-" + t);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        start.countDown();
+        assertTrue("Timed out", done.await(2, TimeUnit.MINUTES));
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        long total = (long) THREADS * CALLS_PER_THREAD;
+        int expected = (int) (total / ADDRESSES / STREAMS);
+        for (int i = 0; i < ADDRESSES; i++) {
+            for (int s = 0; s < STREAMS; s++) {
+                assertEquals("Stream " + s + " of " + addresses[i], expected, counts[i].get(s));
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import java.util.HashSet;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Checks how sends to one address are spread over a pool of associations.
+ */
+public class AssociationsPoolTest {
+
+    private final Address address = new Address("10.0.0.1", 8007);
+
+    @Test
+    public void testKeyedSendsStayOnOneMember() {
+        Associations assoc = new Associations(null, null, 4);
+        Set<Integer> slots = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            int slot = assoc.slotForTest(address, "entity-" + i);
+            assertEquals(slot, assoc.slotForTest(address, "entity-" + i));
+            slots.add(slot);
+        }
+        assertEquals("Keys should use every member", 4, slots.size());
+    }
+
+    @Test
+    public void testUnkeyedSendsFillThePool() {
+        Associations assoc = new Associations(null, null, 4);
+        Set<Integer> slots = new HashSet<>();
+        for (int i = 0; i < 4; i++) {
+            slots.add(assoc.slotForTest(address, null));
+        }
+        assertEquals(4, slots.size());
+    }
+
+    @Test
+    public void testSingleAssociationByDefault() {
+        Associations assoc = new Associations(null, null);
+        assertEquals(0, assoc.slotForTest(address, null));
+        assertEquals(0, assoc.slotForTest(address, "key"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPoolSizeMustBePositive() {
+        new Associations(null, null, 0);
+    }
+}
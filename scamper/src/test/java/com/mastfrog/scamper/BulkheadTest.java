@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class BulkheadTest {
+
+    private static final MessageType TYPE = new MessageType("slow", 7, 7);
+
+    @Test
+    public void testHandlersRunOffTheEventLoopAndOverflowIsRejected() throws Exception {
+        Bulkhead bulkhead = new Bulkhead("slow", 1, 1, RejectionPolicy.DROP);
+        try {
+            EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+            ChannelHandlerContext ctx = channel.pipeline().firstContext();
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch ran = new CountDownLatch(2);
+            AtomicReference<Thread> thread = new AtomicReference<>();
+            ByteBuf payload = Unpooled.buffer().writeInt(42);
+            bulkhead.execute(ctx, TYPE.newMessage(payload), () -> {
+                thread.set(Thread.currentThread());
+                release.await(10, TimeUnit.SECONDS);
+                ran.countDown();
+            });
+            // Held until the handler has run
+            assertEquals(2, payload.refCnt());
+            bulkhead.execute(ctx, TYPE.newMessage("queued"), ran::countDown);
+            bulkhead.execute(ctx, TYPE.newMessage("dropped"), () -> {
+                throw new AssertionError("Should have been dropped");
+            });
+            assertEquals(1, bulkhead.rejected());
+            release.countDown();
+            assertTrue(ran.await(10, TimeUnit.SECONDS));
+            assertNotSame(Thread.currentThread(), thread.get());
+            for (int i = 0; i < 100 && payload.refCnt() != 1; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, payload.refCnt());
+            payload.release();
+        } finally {
+            bulkhead.shutdown();
+        }
+    }
+
+    @Test
+    public void testCallerRuns() throws Exception {
+        Bulkhead bulkhead = new Bulkhead("inline", 1, 1, RejectionPolicy.CALLER_RUNS);
+        try {
+            EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+            ChannelHandlerContext ctx = channel.pipeline().firstContext();
+            CountDownLatch release = new CountDownLatch(1);
+            bulkhead.execute(ctx, TYPE.newMessage("busy"), () -> release.await(10, TimeUnit.SECONDS));
+            bulkhead.execute(ctx, TYPE.newMessage("queued"), () -> {
+            });
+            AtomicReference<Thread> thread = new AtomicReference<>();
+            bulkhead.execute(ctx, TYPE.newMessage("inline"), () -> thread.set(Thread.currentThread()));
+            assertSame(Thread.currentThread(), thread.get());
+            assertEquals(1, bulkhead.rejected());
+            release.countDown();
+        } finally {
+            bulkhead.shutdown();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.CreationException;
+import com.mastfrog.giulius.Dependencies;
+import com.mastfrog.scamper.codec.MessageCodec;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class CorrelationHeaderTest {
+
+    private static final MessageType TYPE = new MessageType("thing", 5, 6);
+
+    @Test
+    public void testHeaderStripped() {
+        ByteBuf buf = Unpooled.buffer();
+        CorrelationHeader.set(buf.writeZero(CorrelationHeader.LENGTH), 0, 42, true);
+        buf.writeInt(7);
+        MessageTypeAndBuffer decoded = CorrelationHeader.decode(new PassThroughCodec(1), buf, null, 0);
+        assertEquals(42, decoded.correlationId);
+        assertTrue(decoded.reply);
+        assertEquals(4, decoded.buf.readableBytes());
+        buf.release();
+    }
+
+    @Test
+    public void testMagicWithoutValidFlagsIsNotAHeader() {
+        // Starts with the magic byte, but the second is not a flag
+        ByteBuf buf = Unpooled.buffer().writeByte(CorrelationHeader.MAGIC).writeByte(9).writeLong(3);
+        MessageTypeAndBuffer decoded = CorrelationHeader.decode(new PassThroughCodec(1), buf, null, 0);
+        assertEquals(0, decoded.correlationId);
+        assertEquals(10, decoded.buf.readableBytes());
+        assertEquals(10, CorrelationHeader.decodeHeader(new PassThroughCodec(1), buf, null, 0).buf.readableBytes());
+        buf.release();
+    }
+
+    @Test
+    public void testCodecWithReservedMagicRefused() throws Exception {
+        Dependencies deps = new SctpServerAndClientBuilder("scamper-correlation-test")
+                .noLoggingHandler()
+                .withModule(new AbstractModule() {
+                    @Override
+                    protected void configure() {
+                        bind(MessageCodec.class).toInstance(new PassThroughCodec(CorrelationHeader.MAGIC));
+                    }
+                }).buildInjector();
+        try {
+            // The injector is created on first use
+            deps.getInjector();
+            fail("Codec using " + CorrelationHeader.MAGIC + " should be refused");
+        } catch (CreationException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("reserved for correlation ids"));
+        } finally {
+            deps.shutdown();
+        }
+    }
+
+    static final class PassThroughCodec extends MessageCodec {
+
+        private final int magic;
+
+        PassThroughCodec(int magic) {
+            this.magic = magic;
+        }
+
+        @Override
+        public MessageTypeAndBuffer decode(ByteBuf message, ChannelHandlerContext ctx, int sctpChannel) {
+            return new MessageTypeAndBuffer(TYPE, message, sctpChannel);
+        }
+
+        @Override
+        public MessageTypeAndBuffer decodeHeader(ByteBuf firstFragment, ChannelHandlerContext ctx, int sctpChannel) {
+            return decode(firstFragment, ctx, sctpChannel);
+        }
+
+        @Override
+        public ByteBuf encode(MessageType type, ByteBuf outbound, Channel channel) {
+            return outbound;
+        }
+
+        @Override
+        protected int magicNumber() {
+            return magic;
+        }
+    }
+}
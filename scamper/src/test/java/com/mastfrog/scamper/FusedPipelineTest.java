@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.CreationException;
+import com.google.inject.Module;
+import com.google.inject.ProvisionException;
+import com.google.inject.name.Names;
+import com.google.inject.util.Modules;
+import com.mastfrog.giulius.Dependencies;
+import com.mastfrog.giulius.annotations.Namespace;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_FUSED_PIPELINE;
+import com.mastfrog.settings.SettingsBuilder;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.sctp.SctpMessage;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class FusedPipelineTest {
+
+    private static final MessageType ECHO = new MessageType("echo", 3, 4);
+    static final BlockingQueue<Echo> received = new LinkedBlockingQueue<>();
+
+    @Test
+    public void testFusedRoundTrip() throws Exception {
+        roundTrip(true);
+    }
+
+    @Test
+    public void testSeparateRoundTrip() throws Exception {
+        roundTrip(false);
+    }
+
+    /**
+     * Encode a message with Sender, pass it through the pipeline Init builds,
+     * and check the handler gets it and its reply is written back.
+     */
+    private void roundTrip(boolean fused) throws Exception {
+        received.clear();
+        SctpServerAndClientBuilder builder = new SctpServerAndClientBuilder("scamper-fused-test")
+                .noLoggingHandler()
+                .bind(ECHO, EchoHandler.class);
+        if (fused) {
+            builder.useFusedPipeline();
+        }
+        Dependencies deps = builder.buildInjector();
+        try {
+            Sender sender = deps.getInstance(Sender.class);
+            EmbeddedChannel out = new EmbeddedChannel();
+            assertTrue(sender.send(out, ECHO.newMessage(new Echo("hello")), 2).isSuccess());
+            SctpMessage request = out.readOutbound();
+            assertNotNull(request);
+
+            EmbeddedChannel in = new EmbeddedChannel(deps.getInstance(Init.class));
+            assertEquals(fused, in.pipeline().get(FusedInboundHandler.class) != null);
+            in.writeInbound(request);
+            Echo echo = received.poll();
+            assertNotNull("Handler not called", echo);
+            assertEquals("hello", echo.text);
+            assertNull(received.poll());
+
+            SctpMessage reply = in.readOutbound();
+            assertNotNull("No reply", reply);
+            reply.release();
+            in.finishAndReleaseAll();
+        } finally {
+            deps.shutdown();
+        }
+    }
+
+    @Test
+    public void testCustomProcessorRefused() throws Exception {
+        Module custom = Modules.override(new SctpServerAndClientBuilder("scamper-fused-test")
+                .noLoggingHandler().buildModule()).with(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(Netty5Handler.class).annotatedWith(Names.named("processor")).to(CustomProcessor.class);
+            }
+        });
+        Dependencies deps = Dependencies.builder()
+                .add(new SettingsBuilder().add(SETTINGS_KEY_FUSED_PIPELINE, "true").build(), Namespace.DEFAULT)
+                .add(custom).build();
+        try {
+            deps.getInstance(Init.class);
+            fail("Custom processor should be refused");
+        } catch (ProvisionException | CreationException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("fused pipeline cannot be used"));
+        } finally {
+            deps.shutdown();
+        }
+    }
+
+    static final class CustomProcessor extends Netty5Handler<Object> {
+
+        @Override
+        protected void messageReceived(ChannelHandlerContext ctx, Object msg) {
+        }
+    }
+
+    static final class EchoHandler extends MessageHandler<Echo, Echo> {
+
+        EchoHandler() {
+            super(Echo.class);
+        }
+
+        @Override
+        public Message<Echo> onMessage(Message<Echo> data, ChannelHandlerContext ctx) {
+            received.add(data.body);
+            return ECHO.newMessage(new Echo(data.body.text + " back"));
+        }
+    }
+
+    public static final class Echo {
+
+        public String text;
+
+        public Echo() {
+        }
+
+        Echo(String text) {
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Singleton;
+import com.google.inject.name.Names;
+import static com.mastfrog.scamper.FragmentedMessageOverflowHandler.SETTINGS_KEY_MAX_AGGREGATED_BYTES;
+import static com.mastfrog.scamper.FragmentedMessageOverflowHandler.SETTINGS_KEY_SPILL_DIR;
+import static com.mastfrog.scamper.FragmentedMessageOverflowHandler.SETTINGS_KEY_SPILL_MAX_BYTES;
+import static com.mastfrog.scamper.FragmentedMessageOverflowHandler.SETTINGS_KEY_SPILL_THRESHOLD;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_MEMORY_BUDGET;
+import static com.mastfrog.scamper.ProtocolModule.GUICE_BINDING_SCAMPER_CODEC;
+import com.mastfrog.scamper.codec.MessageCodec;
+import com.mastfrog.scamper.codec.RawMessageCodec;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.settings.SettingsBuilder;
+import com.mastfrog.util.codec.Codec;
+import com.sun.nio.sctp.MessageInfo;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.sctp.SctpMessage;
+import io.netty.util.ReferenceCountUtil;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Objects;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class InboundSctpMessageToByteBufDecoderTest {
+
+    private static final MessageType STREAMED = new MessageType("streamed", 5, 5);
+    private int overflows;
+    private Injector injector;
+    private MemoryGovernor memory;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private InboundSctpMessageToByteBufDecoder decoder(long maxBytes) throws Exception {
+        return decoder(new SettingsBuilder()
+                .add(SETTINGS_KEY_MAX_AGGREGATED_BYTES, Long.toString(maxBytes)).build());
+    }
+
+    private InboundSctpMessageToByteBufDecoder decoder(Settings settings) throws Exception {
+        injector = Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(MessageHandlerMapping.class).toInstance(new MessageHandlerMapping.Builder()
+                        .addStreaming(STREAMED, Collector.class).build());
+                bind(MessageTypeRegistry.class).toInstance(new MessageTypeRegistry(Collections.singleton(STREAMED)));
+                bind(Codec.class).annotatedWith(Names.named(GUICE_BINDING_SCAMPER_CODEC)).toInstance(Codec.javaSerialization());
+            }
+        });
+        return new InboundSctpMessageToByteBufDecoder(null, settings, new FragmentedMessageOverflowHandler() {
+            @Override
+            protected boolean onTooManyFragmentedBytes(ChannelHandlerContext ctx, long totalBytes, SctpMessage currentMessage, Iterable<ByteBuf> buffers) {
+                overflows++;
+                return true;
+            }
+        }, injector.getInstance(MessageCodec.class), injector.getInstance(MessageDispatch.class),
+                memory = new MemoryGovernor(settings));
+    }
+
+    private static SctpMessage message(int stream, String content, boolean complete) {
+        return message(stream, Unpooled.copiedBuffer(content, StandardCharsets.UTF_8), complete);
+    }
+
+    private static SctpMessage message(int stream, ByteBuf content, boolean complete) {
+        MessageInfo info = MessageInfo.createOutgoing(null, stream);
+        info.complete(complete);
+        return new SctpMessage(info, content);
+    }
+
+    @Test
+    public void testStreamingHandlerGetsChunksAsTheyArrive() throws Exception {
+        InboundSctpMessageToByteBufDecoder decoder = decoder(4);
+        EmbeddedChannel channel = new EmbeddedChannel(decoder);
+        ChannelHandlerContext ctx = channel.pipeline().context(decoder);
+        Collector collector = injector.getInstance(Collector.class);
+
+        ByteBuf first = Unpooled.buffer().writeByte(RawMessageCodec.MAGIC);
+        STREAMED.writeHeader(first).writeBytes("abc".getBytes(StandardCharsets.UTF_8));
+        SctpMessage one = message(7, first, false);
+        assertNull(decoder.reassemble(ctx, one));
+        assertEquals(1, collector.starts);
+        assertEquals("abc", collector.received.toString());
+        // Streamed bytes do not count against the reassembly limit
+        SctpMessage two = message(7, "defgh", false);
+        assertNull(decoder.reassemble(ctx, two));
+        assertEquals(0, overflows);
+        assertFalse(collector.complete);
+        SctpMessage three = message(7, "ijk", true);
+        assertNull(decoder.reassemble(ctx, three));
+        assertEquals("abcdefghijk", collector.received.toString());
+        assertTrue(collector.complete);
+        for (SctpMessage m : new SctpMessage[]{one, two, three}) {
+            assertEquals(1, m.content().refCnt());
+            m.release();
+        }
+
+        // A single-fragment message of a streamed type is delivered whole
+        collector.received.setLength(0);
+        collector.complete = false;
+        assertTrue(injector.getInstance(MessageDispatch.class).stream(new MessageTypeAndBuffer(STREAMED,
+                Unpooled.copiedBuffer("whole", StandardCharsets.UTF_8), 0), ctx));
+        assertEquals("whole", collector.received.toString());
+        assertTrue(collector.complete);
+        assertEquals(2, collector.starts);
+    }
+
+    @Singleton
+    static final class Collector extends StreamingMessageHandler implements StreamingMessageHandler.Body {
+
+        final StringBuilder received = new StringBuilder();
+        boolean complete;
+        int starts;
+
+        @Override
+        public Body onMessageStart(MessageType type, ChannelHandlerContext ctx) {
+            assertEquals(STREAMED, type);
+            starts++;
+            return this;
+        }
+
+        @Override
+        public void onChunk(ByteBuf chunk, ChannelHandlerContext ctx) {
+            received.append(chunk.toString(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void onComplete(ChannelHandlerContext ctx) {
+            complete = true;
+        }
+    }
+
+    @Test
+    public void testCompleteMessagesPassThrough() throws Exception {
+        InboundSctpMessageToByteBufDecoder decoder = decoder(1024);
+        EmbeddedChannel channel = new EmbeddedChannel(decoder);
+        ChannelHandlerContext ctx = channel.pipeline().context(decoder);
+        SctpMessage msg = message(3, "hello", true);
+        assertSame(msg.content(), decoder.reassemble(ctx, msg));
+        msg.release();
+    }
+
+    @Test
+    public void testFragmentsAreMerged() throws Exception {
+        InboundSctpMessageToByteBufDecoder decoder = decoder(1024);
+        EmbeddedChannel channel = new EmbeddedChannel(decoder);
+        ChannelHandlerContext ctx = channel.pipeline().context(decoder);
+        for (int round = 0; round < 2; round++) {
+            SctpMessage one = message(40, "abc", false);
+            SctpMessage other = message(2, "xyz", true);
+            SctpMessage two = message(40, "def", false);
+            SctpMessage three = message(40, "ghi", true);
+            assertNull(decoder.reassemble(ctx, one));
+            // Other streams are unaffected
+            assertSame(other.content(), decoder.reassemble(ctx, other));
+            assertNull(decoder.reassemble(ctx, two));
+            ByteBuf merged = decoder.reassemble(ctx, three);
+            assertEquals("abcdefghi", merged.toString(StandardCharsets.UTF_8));
+            ByteBuf oneContent = one.content();
+            ByteBuf threeContent = three.content();
+            merged.release();
+            for (SctpMessage m : new SctpMessage[]{one, other, two, three}) {
+                m.release();
+            }
+            assertEquals(0, oneContent.refCnt());
+            assertEquals(0, threeContent.refCnt());
+            // The stream's queue is empty again
+            SctpMessage after = message(40, "next", true);
+            assertSame(after.content(), decoder.reassemble(ctx, after));
+            after.release();
+        }
+    }
+
+    @Test
+    public void testOverflowReleasesFragments() throws Exception {
+        InboundSctpMessageToByteBufDecoder decoder = decoder(4);
+        EmbeddedChannel channel = new EmbeddedChannel(decoder);
+        ChannelHandlerContext ctx = channel.pipeline().context(decoder);
+        SctpMessage one = message(1, "abc", false);
+        SctpMessage two = message(1, "def", false);
+        assertNull(decoder.reassemble(ctx, one));
+        assertEquals(0, overflows);
+        assertNull(decoder.reassemble(ctx, two));
+        assertEquals(1, overflows);
+        ByteBuf oneContent = one.content();
+        ByteBuf twoContent = two.content();
+        one.release();
+        two.release();
+        assertEquals(0, oneContent.refCnt());
+        assertEquals(0, twoContent.refCnt());
+    }
+
+    @Test
+    public void testOversizedMessagesSpillToDisk() throws Exception {
+        InboundSctpMessageToByteBufDecoder decoder = decoder(new SettingsBuilder()
+                .add(SETTINGS_KEY_SPILL_THRESHOLD, "4")
+                .add(SETTINGS_KEY_SPILL_MAX_BYTES, "16")
+                .add(SETTINGS_KEY_SPILL_DIR, tmp.getRoot().getAbsolutePath()).build());
+        EmbeddedChannel channel = new EmbeddedChannel(decoder);
+        ChannelHandlerContext ctx = channel.pipeline().context(decoder);
+        SctpMessage one = message(1, "abc", false);
+        SctpMessage two = message(1, "def", false);
+        SctpMessage three = message(1, "ghi", false);
+        SctpMessage four = message(1, "jkl", true);
+        assertNull(decoder.reassemble(ctx, one));
+        assertEquals(0, Objects.requireNonNull(tmp.getRoot().list()).length);
+        assertEquals(2, one.content().refCnt());
+        assertNull(decoder.reassemble(ctx, two));
+        // Past the threshold, queued fragments are written out and released;
+        // whether the spill file is visible in the directory meanwhile depends
+        // on the platform (Linux unlinks DELETE_ON_CLOSE files when opened)
+        assertEquals(1, one.content().refCnt());
+        assertEquals(1, two.content().refCnt());
+        assertNull(decoder.reassemble(ctx, three));
+        assertEquals(1, three.content().refCnt());
+        ByteBuf merged = decoder.reassemble(ctx, four);
+        assertEquals("abcdefghijkl", merged.toString(StandardCharsets.UTF_8));
+        assertEquals(1, four.content().refCnt());
+        assertEquals(0, tmp.getRoot().list().length);
+        assertEquals(0, overflows);
+        merged.release();
+        for (SctpMessage m : new SctpMessage[]{one, two, three, four}) {
+            m.release();
+        }
+        // The stream's queue is usable again, and the spilled size is limited
+        for (int i = 0; i < 6; i++) {
+            SctpMessage m = message(1, "abc", false);
+            assertNull(decoder.reassemble(ctx, m));
+            m.release();
+        }
+        assertEquals(1, overflows);
+        channel.close();
+        assertEquals(0, tmp.getRoot().list().length);
+    }
+
+    @Test
+    public void testMessagesAreShedOverTheMemoryBudget() throws Exception {
+        InboundSctpMessageToByteBufDecoder decoder = decoder(new SettingsBuilder()
+                .add(SETTINGS_KEY_MEMORY_BUDGET, "8").build());
+        EmbeddedChannel channel = new EmbeddedChannel(decoder);
+        ChannelHandlerContext ctx = channel.pipeline().context(decoder);
+        memory.register(channel);
+        SctpMessage one = message(1, "abcde", false);
+        SctpMessage two = message(1, "fghij", false);
+        SctpMessage three = message(1, "klmno", false);
+        SctpMessage rest = message(1, "pqr", true);
+        assertNull(decoder.reassemble(ctx, one));
+        assertEquals(5, memory.used());
+        assertFalse(memory.isReadingPaused());
+        assertNull(decoder.reassemble(ctx, two));
+        assertEquals(10, memory.used());
+        assertTrue(memory.isReadingPaused());
+        assertFalse(channel.config().isAutoRead());
+        // Over budget - the partial message is released and the rest skipped
+        assertNull(decoder.reassemble(ctx, three));
+        assertEquals(0, memory.used());
+        assertFalse(memory.isReadingPaused());
+        assertTrue(channel.config().isAutoRead());
+        assertEquals(1, memory.shedMessages());
+        assertEquals(1, one.content().refCnt());
+        assertEquals(1, two.content().refCnt());
+        assertNull(decoder.reassemble(ctx, rest));
+        for (SctpMessage m : new SctpMessage[]{one, two, three, rest}) {
+            m.release();
+        }
+        // Back under budget, so complete messages pass through again
+        SctpMessage next = message(1, "next", true);
+        assertSame(next.content(), decoder.reassemble(ctx, next));
+        next.release();
+        assertEquals(1, memory.shedMessages());
+        assertEquals(1, memory.pauseCount());
+        assertEquals(10, memory.peak());
+    }
+
+    @Test
+    public void testMemoryReleasedWhenHandlerThrows() throws Exception {
+        InboundSctpMessageToByteBufDecoder decoder = decoder(new SettingsBuilder()
+                .add(SETTINGS_KEY_MEMORY_BUDGET, "1000").build());
+        long[] usedWhenHandled = new long[1];
+        EmbeddedChannel channel = new EmbeddedChannel(decoder, new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                ReferenceCountUtil.release(msg);
+                usedWhenHandled[0] = memory.used();
+                throw new IllegalStateException("Handler failed");
+            }
+        });
+        SctpMessage whole = message(1, "abcde", true);
+        try {
+            channel.writeInbound(whole);
+            fail("Handler exception not propagated");
+        } catch (IllegalStateException ex) {
+            assertEquals("Handler failed", ex.getMessage());
+        }
+        assertEquals(5, usedWhenHandled[0]);
+        assertEquals(0, memory.used());
+        assertEquals(0, whole.refCnt());
+
+        // Reassembled from fragments, both the queued and merged counts
+        SctpMessage first = message(2, "abc", false);
+        SctpMessage last = message(2, "de", true);
+        channel.writeInbound(first);
+        assertEquals(3, memory.used());
+        try {
+            channel.writeInbound(last);
+            fail("Handler exception not propagated");
+        } catch (IllegalStateException ex) {
+            assertEquals("Handler failed", ex.getMessage());
+        }
+        assertEquals(5, usedWhenHandled[0]);
+        assertEquals(0, memory.used());
+        assertEquals(0, first.refCnt());
+        assertEquals(0, last.refCnt());
+        assertFalse(channel.finish());
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+public class LongMapTest {
+
+    @Test
+    public void testPutGetRemove() {
+        LongMap<String> map = new LongMap<>();
+        for (long i = 1; i <= 1000; i++) {
+            assertNull(map.put(i, "v" + i));
+        }
+        assertEquals(1000, map.size());
+        for (long i = 1; i <= 1000; i++) {
+            assertEquals("v" + i, map.get(i));
+        }
+        for (long i = 1; i <= 1000; i += 2) {
+            assertEquals("v" + i, map.remove(i));
+        }
+        assertEquals(500, map.size());
+        for (long i = 1; i <= 1000; i++) {
+            assertEquals(i % 2 == 0 ? "v" + i : null, map.get(i));
+        }
+        assertNull(map.get(5000));
+        assertNull(map.remove(5000));
+    }
+
+    @Test
+    public void testMatchesHashMap() {
+        Random rnd = new Random(42);
+        LongMap<Long> map = new LongMap<>(4);
+        Map<Long, Long> expected = new HashMap<>();
+        for (int i = 0; i < 100000; i++) {
+            // A small key range, so probe runs collide and removals shift
+            long key = 1 + rnd.nextInt(300);
+            if (rnd.nextBoolean()) {
+                assertEquals(expected.put(key, (long) i), map.put(key, (long) i));
+            } else {
+                assertEquals(expected.remove(key), map.remove(key));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (long key = 1; key <= 300; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+        Map<Long, Long> drained = new HashMap<>();
+        map.drain(v -> drained.put(v, v));
+        assertEquals(expected.size(), drained.size());
+        assertEquals(0, map.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroKeyRejected() {
+        new LongMap<String>().put(0, "x");
+    }
+}
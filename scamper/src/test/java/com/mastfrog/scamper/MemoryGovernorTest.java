@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_MEMORY_BUDGET;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_MEMORY_HIGH_WATER_MARK;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_MEMORY_LOW_WATER_MARK;
+import com.mastfrog.giulius.Dependencies;
+import com.mastfrog.settings.SettingsBuilder;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.DefaultChannelId;
+import io.netty.channel.embedded.EmbeddedChannel;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class MemoryGovernorTest {
+
+    private static MemoryGovernor governor(long budget, long low, long high) throws Exception {
+        return new MemoryGovernor(new SettingsBuilder()
+                .add(SETTINGS_KEY_MEMORY_BUDGET, Long.toString(budget))
+                .add(SETTINGS_KEY_MEMORY_LOW_WATER_MARK, Long.toString(low))
+                .add(SETTINGS_KEY_MEMORY_HIGH_WATER_MARK, Long.toString(high)).build());
+    }
+
+    private static EmbeddedChannel channel() {
+        // Embedded channels share one id unless given their own, and the
+        // governor keeps its channels in a set of them
+        return new EmbeddedChannel(DefaultChannelId.newInstance());
+    }
+
+    @Test
+    public void testReadingPausedBetweenWaterMarks() throws Exception {
+        MemoryGovernor memory = governor(100, 40, 80);
+        EmbeddedChannel first = channel();
+        EmbeddedChannel second = channel();
+        memory.register(first);
+        memory.register(second);
+
+        memory.acquire(79);
+        assertFalse(memory.isReadingPaused());
+        assertTrue(first.config().isAutoRead());
+        memory.acquire(1);
+        assertTrue(memory.isReadingPaused());
+        assertFalse(first.config().isAutoRead());
+        assertFalse(second.config().isAutoRead());
+
+        // A channel registered while paused starts paused
+        EmbeddedChannel third = channel();
+        memory.register(third);
+        assertFalse(third.config().isAutoRead());
+
+        // Still paused until the low water mark
+        memory.release(39);
+        assertTrue(memory.isReadingPaused());
+        assertFalse(second.config().isAutoRead());
+        memory.release(1);
+        assertFalse(memory.isReadingPaused());
+        for (EmbeddedChannel ch : new EmbeddedChannel[]{first, second, third}) {
+            assertTrue(ch.config().isAutoRead());
+        }
+
+        memory.acquire(60);
+        assertTrue(memory.isReadingPaused());
+        assertEquals(2, memory.pauseCount());
+        // Closed channels leave the group
+        third.close();
+        memory.release(100);
+        assertFalse(memory.isReadingPaused());
+        assertEquals(0, memory.used());
+    }
+
+    @Test
+    public void testGauges() throws Exception {
+        MemoryGovernor memory = governor(100, 40, 80);
+        assertTrue(memory.isEnabled());
+        assertEquals(100, memory.budget());
+        assertEquals(40, memory.lowWaterMark());
+        assertEquals(80, memory.highWaterMark());
+        memory.acquire(30);
+        memory.acquire(50);
+        memory.release(70);
+        memory.acquire(5);
+        assertEquals(15, memory.used());
+        assertEquals(80, memory.peak());
+        assertEquals(1, memory.pauseCount());
+        assertFalse(memory.isOverBudget());
+        memory.acquire(86);
+        assertTrue(memory.isOverBudget());
+        memory.shed();
+        memory.rejected();
+        memory.rejected();
+        assertEquals(1, memory.shedMessages());
+        assertEquals(2, memory.rejectedSends());
+        assertTrue(memory.toString(), memory.toString().contains("used=101"));
+    }
+
+    @Test
+    public void testDefaultWaterMarks() throws Exception {
+        MemoryGovernor memory = new MemoryGovernor(new SettingsBuilder()
+                .add(SETTINGS_KEY_MEMORY_BUDGET, "1000").build());
+        assertEquals(750, memory.highWaterMark());
+        assertEquals(500, memory.lowWaterMark());
+    }
+
+    @Test
+    public void testDisabledWithoutBudget() throws Exception {
+        MemoryGovernor memory = new MemoryGovernor(new SettingsBuilder().build());
+        assertFalse(memory.isEnabled());
+        EmbeddedChannel channel = new EmbeddedChannel();
+        memory.register(channel);
+        memory.acquire(Integer.MAX_VALUE);
+        assertEquals(0, memory.used());
+        assertFalse(memory.isOverBudget());
+        assertFalse(memory.isReadingPaused());
+        assertTrue(channel.config().isAutoRead());
+        assertEquals(Long.MAX_VALUE, memory.budget());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testHighWaterMarkOverBudget() throws Exception {
+        governor(100, 40, 120);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLowWaterMarkOverHigh() throws Exception {
+        governor(100, 90, 80);
+    }
+
+    @Test
+    public void testSendsRejectedOverBudget() throws Exception {
+        MessageType type = new MessageType("thing", 5, 6);
+        Dependencies deps = new SctpServerAndClientBuilder("scamper-memory-test")
+                .noLoggingHandler()
+                .withMemoryBudget(1000, 400, 800)
+                .buildInjector();
+        try {
+            Sender sender = deps.getInstance(Sender.class);
+            MemoryGovernor memory = deps.getInstance(MemoryGovernor.class);
+            SendAllTest.HeldWrites writes = new SendAllTest.HeldWrites();
+            EmbeddedChannel channel = new EmbeddedChannel(writes);
+
+            memory.acquire(1001);
+            ChannelFuture refused = sender.send(channel, type.newMessage("hello"));
+            assertTrue(refused.cause() instanceof MemoryBudgetExceededException);
+            assertEquals(1, memory.rejectedSends());
+            assertEquals(1001, memory.used());
+
+            // Back under budget; the send is counted until it is written
+            memory.release(1001);
+            ChannelFuture sent = sender.send(channel, type.newMessage("hello"));
+            assertEquals(1, writes.promises.size());
+            assertTrue(memory.used() > 0);
+            writes.completeAll();
+            assertTrue(sent.isSuccess());
+            assertEquals(0, memory.used());
+            assertEquals(1, memory.rejectedSends());
+        } finally {
+            deps.shutdown();
+        }
+    }
+}
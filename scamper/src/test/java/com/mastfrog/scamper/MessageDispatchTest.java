@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Singleton;
+import com.google.inject.name.Names;
+import com.mastfrog.giulius.Dependencies;
+import static com.mastfrog.scamper.ProtocolModule.GUICE_BINDING_SCAMPER_CODEC;
+import com.mastfrog.util.codec.Codec;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class MessageDispatchTest {
+
+    private static final MessageType TEXT = new MessageType("text", 4, 1);
+    private static final MessageType RAW = new MessageType("raw", 4, 2);
+    static final AtomicInteger created = new AtomicInteger();
+
+    @Test
+    public void testPayloadTypeFromTypeArguments() {
+        assertSame(String.class, MessageDispatch.payloadType(TextHandler.class));
+        assertSame(ByteBuf.class, MessageDispatch.payloadType(RawHandler.class));
+        assertSame(Map.class, MessageDispatch.payloadType(MapHandler.class));
+        assertNull(MessageDispatch.payloadType(ObjectHandler.class));
+    }
+
+    @Test
+    public void testHandlersCreatedOnFirstUse() throws Exception {
+        created.set(0);
+        Injector injector = Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(MessageHandlerMapping.class).toInstance(new MessageHandlerMapping.Builder()
+                        .add(TEXT, TextHandler.class)
+                        .add(RAW, RawHandler.class).build());
+                bind(Codec.class).annotatedWith(Names.named(GUICE_BINDING_SCAMPER_CODEC)).toInstance(Codec.javaSerialization());
+            }
+        });
+        MessageDispatch dispatch = injector.getInstance(MessageDispatch.class);
+        assertEquals(0, created.get());
+
+        MessageDispatch.Entry<?> raw = dispatch.entryFor(RAW);
+        ByteBuf buf = Unpooled.copiedBuffer("hello", StandardCharsets.UTF_8);
+        // Decoding needs no handler when the type arguments name the type
+        assertSame(buf, raw.decode(RAW, buf).body);
+        assertEquals(0, created.get());
+        // A singleton is created once
+        assertSame(raw.handler(), raw.handler());
+        assertEquals(1, created.get());
+        buf.release();
+    }
+
+    @Test
+    public void testPayloadDecodedInPlace() throws Exception {
+        Dependencies deps = new SctpServerAndClientBuilder("scamper-dispatch-test")
+                .noLoggingHandler()
+                .withDataEncoding(DataEncoding.JSON)
+                .bind(TEXT, TextHandler.class)
+                .buildInjector();
+        try {
+            MessageDispatch.Entry<?> text = deps.getInstance(MessageDispatch.class).entryFor(TEXT);
+            // As if a 3 byte header had been read
+            ByteBuf buf = Unpooled.copiedBuffer("abc\"hello\"", StandardCharsets.UTF_8).skipBytes(3);
+            assertEquals("hello", text.decode(TEXT, buf).body);
+            assertEquals("Read bytes should not be discarded", 'a', buf.getByte(0));
+
+            ByteBuf bad = Unpooled.copiedBuffer("abc\"oops", StandardCharsets.UTF_8).skipBytes(3);
+            try {
+                text.decode(TEXT, bad);
+                fail("Invalid JSON decoded");
+            } catch (IOException ex) {
+                assertEquals("Invalid JSON: '\"oops'", ex.getMessage());
+            }
+            assertEquals('a', bad.getByte(0));
+            buf.release();
+            bad.release();
+        } finally {
+            deps.shutdown();
+        }
+    }
+
+    @Singleton
+    static final class RawHandler extends MessageHandler<Void, ByteBuf> {
+
+        RawHandler() {
+            super(ByteBuf.class);
+            created.incrementAndGet();
+        }
+
+        @Override
+        public Message<Void> onMessage(Message<ByteBuf> data, ChannelHandlerContext ctx) {
+            return null;
+        }
+    }
+
+    static final class TextHandler extends MessageHandler<Void, String> {
+
+        TextHandler() {
+            super(String.class);
+            created.incrementAndGet();
+        }
+
+        @Override
+        public Message<Void> onMessage(Message<String> data, ChannelHandlerContext ctx) {
+            return null;
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    static final class MapHandler extends MessageHandler<Void, Map> {
+
+        MapHandler() {
+            super(Map.class);
+        }
+
+        @Override
+        public Message<Void> onMessage(Message<Map> data, ChannelHandlerContext ctx) {
+            return null;
+        }
+    }
+
+    static final class ObjectHandler extends MessageHandler<Void, Object> {
+
+        ObjectHandler() {
+            super(Object.class);
+        }
+
+        @Override
+        public Message<Void> onMessage(Message<Object> data, ChannelHandlerContext ctx) {
+            return null;
+        }
+    }
+}
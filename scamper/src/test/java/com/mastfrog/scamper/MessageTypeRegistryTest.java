@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.util.Arrays;
+import java.util.HashSet;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class MessageTypeRegistryTest {
+
+    static final MessageType ONE = new MessageType("one", 3, 3);
+    static final MessageType TWO = new MessageType("two", -128, 127);
+    static final MessageType THREE = new MessageType("three", 0, 1);
+
+    private final MessageTypeRegistry reg = new MessageTypeRegistry(
+            new HashSet<>(Arrays.asList(ONE, TWO, THREE)));
+
+    @Test
+    public void testKnownTypes() {
+        for (MessageType type : new MessageType[]{ONE, TWO, THREE}) {
+            ByteBuf buf = type.writeHeader(Unpooled.buffer()).writeInt(42);
+            assertSame(type, reg.forByteBuf(buf));
+            assertEquals("Header should be consumed without copying", 2, buf.readerIndex());
+            assertEquals(42, buf.readInt());
+            buf.resetReaderIndex();
+            assertEquals("The caller's mark should be left alone", 0, buf.readerIndex());
+        }
+    }
+
+    @Test
+    public void testUnknownTypesAreCached() {
+        ByteBuf a = Unpooled.buffer().writeByte(9).writeByte(-9);
+        ByteBuf b = Unpooled.buffer().writeByte(9).writeByte(-9);
+        MessageType first = reg.forByteBuf(a);
+        assertTrue(first.isUnknown());
+        assertEquals(MessageType.createUnknown(9, -9), first);
+        assertSame(first, reg.forByteBuf(b));
+        assertFalse(reg.forByteBuf(ONE.writeHeader(Unpooled.buffer())).isUnknown());
+    }
+
+    @Test
+    public void testRegisterLater() {
+        MessageType four = new MessageType("four", 4, 4);
+        assertTrue(reg.forByteBuf(four.writeHeader(Unpooled.buffer())).isUnknown());
+        // Replaces the sentinel cached for its bytes
+        reg.register(four);
+        assertSame(four, reg.forByteBuf(four.writeHeader(Unpooled.buffer())));
+    }
+
+    @Test
+    public void testShortBuffer() {
+        ByteBuf buf = Unpooled.buffer().writeByte(3);
+        MessageType type = reg.forByteBuf(buf);
+        assertTrue(type.isUnknown());
+        assertEquals(0, buf.readerIndex());
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import com.mastfrog.settings.SettingsBuilder;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class PreconnectTest {
+
+    private final Address first = new Address("10.0.0.1", 8007);
+    private final Address second = new Address("10.0.0.2", 8007);
+
+    private static Sender sender(Associations assoc) throws Exception {
+        // Preconnecting only touches the associations
+        return new Sender(assoc, null, null, null, null, null, null, null, new SettingsBuilder().build());
+    }
+
+    @Test
+    public void testFailuresReportedPerAddress() throws Exception {
+        Associations assoc = new Associations(null, null, 3, new Associations.Backoff(60000, 60000));
+        IOException refused = new IOException("refused");
+        IOException unreachable = new IOException("unreachable");
+        assoc.failedForTest(first, new EmbeddedChannel().newFailedFuture(refused));
+        assoc.failedForTest(second, new EmbeddedChannel().newFailedFuture(unreachable));
+        for (ChannelFuture f : assoc.connectAll(first)) {
+            assertSame(refused, f.cause());
+        }
+        PreconnectResult result = sender(assoc).preconnect(Arrays.asList(first, second, first))
+                .get(10, TimeUnit.SECONDS);
+        assertFalse(result.isSuccess());
+        assertTrue(result.connected().isEmpty());
+        assertEquals(2, result.failures().size());
+        assertSame(refused, result.failures().get(first));
+        assertSame(unreachable, result.failures().get(second));
+    }
+
+    @Test
+    public void testNothingToConnect() throws Exception {
+        PreconnectResult result = sender(new Associations(null, null))
+                .preconnect(Collections.emptyList()).get(10, TimeUnit.SECONDS);
+        assertTrue(result.isSuccess());
+        assertTrue(result.connected().isEmpty());
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import com.mastfrog.settings.Settings;
+import com.mastfrog.settings.SettingsBuilder;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFactory;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class ReconnectBackoffTest {
+
+    @Test
+    public void testDelaysDoubleWithJitterUpToMax() {
+        Associations.Backoff backoff = new Associations.Backoff(100, 1000);
+        for (int i = 0; i < 100; i++) {
+            long first = backoff.delayMillis(1);
+            assertTrue("First delay " + first, first >= 50 && first <= 100);
+            long third = backoff.delayMillis(3);
+            assertTrue("Third delay " + third, third >= 200 && third <= 400);
+            long capped = backoff.delayMillis(30);
+            assertTrue("Capped delay " + capped, capped >= 500 && capped <= 1000);
+        }
+        assertEquals(0, new Associations.Backoff(0, 0).delayMillis(5));
+    }
+
+    @Test
+    public void testFailsFastWhileBackingOff() {
+        // With no ChannelConfigurer, any real connect attempt would fail
+        Associations assoc = new Associations(null, null, 2, new Associations.Backoff(60000, 60000));
+        Address address = new Address("10.0.0.1", 8007);
+        ChannelFuture failure = new EmbeddedChannel().newFailedFuture(new IOException("refused"));
+        assoc.failedForTest(address, failure);
+        for (int i = 0; i < 10; i++) {
+            assertSame(failure, assoc.connect(address));
+            assertSame(failure, assoc.connect(address, "key-" + i));
+        }
+    }
+
+    @Test
+    public void testTriesEachHostBeforeBackingOff() {
+        EventLoopGroup group = new DefaultEventLoopGroup(1);
+        try {
+            // Connect attempts fail at once
+            ChannelConfigurer config = new ChannelConfigurer(group, group, null, null, Transport.TCP) {
+                @Override
+                protected Bootstrap init(Bootstrap b) {
+                    throw new IllegalStateException("Not connecting");
+                }
+            };
+            Associations assoc = new Associations(config, (ctx, t) -> {
+            }, 1, new Associations.Backoff(60000, 60000));
+            Address address = new Address("10.0.0.1", 8007).withAlternates("10.0.1.1");
+            ChannelFuture failure = new EmbeddedChannel().newFailedFuture(new IOException("refused"));
+            assoc.failedForTest(address, failure);
+            // The alternate has not been tried yet
+            ChannelFuture second = assoc.connect(address);
+            assertNotSame(failure, second);
+            assertTrue(second.cause() instanceof IllegalStateException);
+            // Now both have failed
+            assertSame(second, assoc.connect(address));
+        } finally {
+            group.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testListenersNotifiedWhenChannelCannotBeCreated() throws Exception {
+        EventLoopGroup group = new DefaultEventLoopGroup(1);
+        try {
+            IllegalStateException refused = new IllegalStateException("No channel");
+            ChannelConfigurer config = new ChannelConfigurer(group, group, null, null, Transport.TCP) {
+                @Override
+                protected Bootstrap init(Bootstrap b) {
+                    return b.group(group).handler(new ChannelInboundHandlerAdapter())
+                            .channelFactory((ChannelFactory<Channel>) () -> {
+                                throw refused;
+                            });
+                }
+            };
+            Associations assoc = new Associations(config, (ctx, t) -> {
+            }, 1, new Associations.Backoff(60000, 60000));
+            Settings settings = new SettingsBuilder().build();
+            // Failing to connect only touches the associations and policy
+            Sender sender = new Sender(assoc, null, null, null, new WriteBackpressure(settings), null, null, null, settings);
+            Address address = new Address("10.0.0.1", 8007);
+            Message<?> message = new MessageType("ping", 9, 6).newMessage("hello");
+            for (int i = 0; i < 2; i++) {
+                // First the failed connect, then the backoff returning it
+                CompletableFuture<Throwable> notified = new CompletableFuture<>();
+                sender.send(address, message, (ChannelFutureListener) f -> notified.complete(f.cause()));
+                assertSame(refused, notified.get(10, TimeUnit.SECONDS));
+                assertSame(refused, sender.send(address, message, WritePolicy.FAIL).await().cause());
+                assertSame(refused, sender.sendAll(address, Collections.singletonList(message)).await().cause());
+            }
+        } finally {
+            group.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testFailedAddressesForgotten() throws Exception {
+        Associations assoc = new Associations(null, null, 1, new Associations.Backoff(20, 20));
+        ChannelFuture failure = new EmbeddedChannel().newFailedFuture(new IOException("refused"));
+        for (int i = 0; i < 100; i++) {
+            assoc.failedForTest(new Address("10.0.1." + i, 8007), failure);
+        }
+        // Still backing off
+        assertEquals(100, assoc.size());
+        Thread.sleep(50);
+        // Adding another address forgets those whose retry window passed
+        assoc.failedForTest(new Address("10.0.2.1", 8007), failure);
+        assertEquals(1, assoc.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxBelowInitial() {
+        new Associations.Backoff(1000, 100);
+    }
+}
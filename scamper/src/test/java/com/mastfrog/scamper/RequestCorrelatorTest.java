@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Test;
+
+public class RequestCorrelatorTest {
+
+    private static final MessageType TYPE = new MessageType("reply", 3, 4);
+    private final RequestCorrelator correlator = new RequestCorrelator(null);
+
+    @After
+    public void shutdown() {
+        correlator.run();
+    }
+
+    @Test
+    public void testReplyCompletesRequest() throws Exception {
+        RequestCorrelator.Pending<ByteBuf> first = correlator.register(ByteBuf.class, Duration.ofMinutes(1));
+        RequestCorrelator.Pending<ByteBuf> second = correlator.register(ByteBuf.class, Duration.ofMinutes(1));
+        assertEquals(2, correlator.outstanding());
+
+        ByteBuf payload = Unpooled.copiedBuffer("hello", StandardCharsets.UTF_8);
+        correlator.complete(new MessageTypeAndBuffer(TYPE, payload, 0).withCorrelation(second.id, true));
+        Message<ByteBuf> reply = second.future.get(10, TimeUnit.SECONDS);
+        assertEquals(TYPE, reply.type);
+        assertEquals("hello", reply.body.toString(StandardCharsets.UTF_8));
+        assertTrue("Reply body should be a copy", reply.body != payload);
+        assertTrue(!first.future.isDone());
+        assertEquals(1, correlator.outstanding());
+
+        // A late or unknown reply is discarded
+        correlator.complete(new MessageTypeAndBuffer(TYPE, payload, 0).withCorrelation(second.id, true));
+        first.future.cancel(false);
+        assertEquals(0, correlator.outstanding());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        CompletableFuture<Message<ByteBuf>> future
+                = correlator.register(ByteBuf.class, Duration.ofMillis(50)).future;
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("Should have timed out");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof TimeoutException);
+        }
+    }
+}
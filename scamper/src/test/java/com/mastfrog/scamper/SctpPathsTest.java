@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import static com.sun.nio.sctp.PeerAddressChangeNotification.AddressChangeEvent.ADDR_AVAILABLE;
+import static com.sun.nio.sctp.PeerAddressChangeNotification.AddressChangeEvent.ADDR_MADE_PRIMARY;
+import static com.sun.nio.sctp.PeerAddressChangeNotification.AddressChangeEvent.ADDR_UNREACHABLE;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.sctp.SctpServerChannel;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Test;
+
+/**
+ * Checks path status and traffic counting for multi-homed associations, and,
+ * on Linux, connecting to a server bound to two loopback addresses.
+ */
+public class SctpPathsTest {
+
+    private final InetSocketAddress first = new InetSocketAddress("10.0.0.1", 8007);
+    private final InetSocketAddress second = new InetSocketAddress("10.0.1.1", 8007);
+
+    @Test
+    public void testCountsByPath() {
+        SctpPaths paths = new SctpPaths(Arrays.asList(first, second), first);
+        paths.received(first, 100);
+        paths.received(second, 10);
+        paths.received(second, 10);
+        paths.sent(50);
+        List<SctpPath> snapshot = paths.snapshot();
+        assertEquals(2, snapshot.size());
+        SctpPath primary = snapshot.get(0);
+        assertEquals(first, primary.address());
+        assertTrue(primary.isPrimary());
+        assertEquals(1, primary.messagesIn());
+        assertEquals(100, primary.bytesIn());
+        assertEquals(1, primary.messagesOut());
+        assertEquals(50, primary.bytesOut());
+        SctpPath other = snapshot.get(1);
+        assertFalse(other.isPrimary());
+        assertEquals(2, other.messagesIn());
+        assertEquals(20, other.bytesIn());
+        assertEquals(0, other.bytesOut());
+    }
+
+    @Test
+    public void testStateChanges() {
+        SctpPaths paths = new SctpPaths(Arrays.asList(first, second), first);
+        paths.changed(first, ADDR_UNREACHABLE);
+        // New data goes out on a reachable path
+        paths.sent(10);
+        SctpPath down = paths.snapshot().get(0);
+        assertEquals(SctpPath.State.UNREACHABLE, down.state());
+        assertEquals(0, down.bytesOut());
+        assertEquals(10, paths.snapshot().get(1).bytesOut());
+
+        paths.changed(first, ADDR_AVAILABLE);
+        paths.changed(second, ADDR_MADE_PRIMARY);
+        SctpPath primary = paths.snapshot().get(0);
+        assertEquals(second, primary.address());
+        assertTrue(primary.isPrimary());
+        assertEquals(SctpPath.State.ACTIVE, paths.snapshot().get(1).state());
+    }
+
+    /**
+     * Wait for a connect future's listeners - Associations' among them - to
+     * have run, which waiting on the future does not ensure.
+     */
+    private static void awaitListeners(ChannelFuture future) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        future.addListener(f -> latch.countDown());
+        assertTrue("Timed out", latch.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testMultiHomedLoopback() throws Exception {
+        assumeTrue("Needs Linux, which routes all of 127/8 over loopback",
+                System.getProperty("os.name", "").toLowerCase().contains("linux"));
+        assumeTrue("Needs SCTP support in the kernel", Transport.SCTP.isAvailable());
+        NioEventLoopGroup boss = new NioEventLoopGroup(1);
+        NioEventLoopGroup workers = new NioEventLoopGroup();
+        Channel server = null;
+        try {
+            Associations accepting = new Associations(null, null);
+            ChannelConfigurer config = new AssociationStateTest.LoopbackConfigurer(boss, workers,
+                    new AssociationStateTest.Accept(accepting, new CountDownLatch(1)), Transport.SCTP);
+            server = config.init(new ServerBootstrap()).bind("127.0.0.1", 0).sync().channel();
+            ((SctpServerChannel) server).bindAddress(InetAddress.getByName("127.0.0.2")).sync();
+            int port = ((InetSocketAddress) server.localAddress()).getPort();
+
+            // Nothing listens on the primary, so the alternate is used
+            Associations connecting = new Associations(config, (ctx, t) -> {
+            }, 1, new Associations.Backoff(60000, 60000));
+            Address address = new Address("127.0.0.3", port).withAlternates("127.0.0.1");
+            ChannelFuture refused = connecting.connect(address);
+            awaitListeners(refused);
+            assertFalse(refused.isSuccess());
+            ChannelFuture connected = connecting.connect(address);
+            awaitListeners(connected);
+            assertTrue("Connect failed: " + connected.cause(), connected.isSuccess());
+
+            AssociationState state = AssociationState.peek(connected.channel());
+            assertNotNull(state);
+            SctpPaths paths = state.paths();
+            assertNotNull("Server bound to two addresses, so two paths", paths);
+            List<SctpPath> snapshot = paths.snapshot();
+            assertEquals(snapshot.toString(), 2, snapshot.size());
+            System.out.println("Paths: " + snapshot);
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+            workers.shutdownGracefully(0, 1, TimeUnit.SECONDS).await();
+            boss.shutdownGracefully(0, 1, TimeUnit.SECONDS).await();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import com.mastfrog.giulius.Dependencies;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SendAllTest {
+
+    private static final MessageType TYPE = new MessageType("thing", 5, 6);
+    private Dependencies deps;
+    private Sender sender;
+
+    @Before
+    public void setUp() throws Exception {
+        deps = new SctpServerAndClientBuilder("scamper-sendall-test")
+                .noLoggingHandler()
+                .buildInjector();
+        sender = deps.getInstance(Sender.class);
+    }
+
+    @After
+    public void tearDown() {
+        deps.shutdown();
+    }
+
+    @Test
+    public void testOneFlushPerBatch() throws Exception {
+        HeldWrites writes = new HeldWrites();
+        EmbeddedChannel channel = new EmbeddedChannel(writes);
+        List<Message<?>> batch = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            batch.add(TYPE.newMessage(new Thing(i)));
+        }
+        ChannelFuture f = sender.sendAll(channel, batch);
+        assertEquals(10, writes.promises.size());
+        assertEquals(1, writes.flushes);
+
+        sender.sendAll(channel, batch.subList(0, 3));
+        assertEquals(13, writes.promises.size());
+        assertEquals(2, writes.flushes);
+        writes.completeAll();
+        assertTrue(f.isSuccess());
+    }
+
+    @Test
+    public void testCompletesAfterEveryWrite() throws Exception {
+        HeldWrites writes = new HeldWrites();
+        EmbeddedChannel channel = new EmbeddedChannel(writes);
+        ChannelFuture f = sender.sendAll(channel, Arrays.asList(TYPE.newMessage(new Thing(0)),
+                TYPE.newMessage(new Thing(1)), TYPE.newMessage(new Thing(2))));
+        assertEquals(3, writes.promises.size());
+        writes.promises.get(2).setSuccess();
+        writes.promises.get(0).setSuccess();
+        assertFalse("Completed with a write outstanding", f.isDone());
+        writes.promises.get(1).setSuccess();
+        assertTrue(f.isSuccess());
+    }
+
+    @Test
+    public void testFailuresIndexed() throws Exception {
+        HeldWrites writes = new HeldWrites();
+        EmbeddedChannel channel = new EmbeddedChannel(writes);
+        List<Message<?>> batch = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            // Messages 1 and 4 cannot be encoded
+            batch.add(TYPE.newMessage(i == 1 || i == 4 ? new Unencodable() : new Thing(i)));
+        }
+        ChannelFuture f = sender.sendAll(channel, batch);
+        // The others are still written, in one flush
+        assertEquals(4, writes.promises.size());
+        assertEquals(1, writes.flushes);
+        // The third write is message 3
+        IOException refused = new IOException("refused");
+        writes.promises.get(2).setFailure(refused);
+        assertFalse(f.isDone());
+        writes.completeAll();
+
+        assertTrue(f.cause() instanceof BatchSendException);
+        List<BatchSendException.Failure> failures = ((BatchSendException) f.cause()).failures();
+        assertEquals(failures.toString(), 3, failures.size());
+        assertEquals(1, failures.get(0).index);
+        assertSame(batch.get(1), failures.get(0).message);
+        assertEquals(3, failures.get(1).index);
+        assertSame(refused, failures.get(1).cause);
+        assertEquals(4, failures.get(2).index);
+        assertSame(batch.get(4), failures.get(2).message);
+    }
+
+    /**
+     * Holds the promise of each write, rather than completing it, and counts
+     * flushes.
+     */
+    static final class HeldWrites extends ChannelOutboundHandlerAdapter {
+
+        final List<ChannelPromise> promises = new ArrayList<>();
+        int flushes;
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            ReferenceCountUtil.release(msg);
+            promises.add(promise);
+        }
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) {
+            flushes++;
+        }
+
+        void completeAll() {
+            for (ChannelPromise promise : promises) {
+                promise.trySuccess();
+            }
+        }
+    }
+
+    public static final class Thing {
+
+        public int value;
+
+        public Thing() {
+        }
+
+        Thing(int value) {
+            this.value = value;
+        }
+    }
+
+    public static final class Unencodable {
+
+        public int getValue() {
+            throw new IllegalStateException("Cannot encode");
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_STREAM_PARTITIONS;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.settings.SettingsBuilder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks that stream partitions keep each stream's messages in order while
+ * spreading an association's streams over more than one thread.
+ */
+public class StreamPartitionsTest {
+
+    private static final MessageType TYPE = new MessageType("partitioned", 9, 3);
+
+    private static StreamPartitions partitions(int threads) throws Exception {
+        Settings settings = new SettingsBuilder()
+                .add(SETTINGS_KEY_STREAM_PARTITIONS, Integer.toString(threads)).build();
+        return new StreamPartitions(settings, new MemoryGovernor(settings));
+    }
+
+    private static ChannelHandlerContext context() {
+        return new EmbeddedChannel(new ChannelInboundHandlerAdapter()).pipeline().firstContext();
+    }
+
+    @Test
+    public void testOrderKeptWithinEachStream() throws Exception {
+        StreamPartitions partitions = partitions(4);
+        try {
+            assertTrue(partitions.isEnabled());
+            ChannelHandlerContext ctx = context();
+            int streams = 16;
+            int perStream = 500;
+            List<List<Integer>> seen = new ArrayList<>();
+            Set<Thread> threads = Collections.synchronizedSet(new HashSet<>());
+            List<ByteBuf> bufs = new ArrayList<>();
+            CountDownLatch done = new CountDownLatch(streams * perStream);
+            for (int s = 0; s < streams; s++) {
+                seen.add(Collections.synchronizedList(new ArrayList<>()));
+            }
+            for (int i = 0; i < perStream; i++) {
+                for (int s = 0; s < streams; s++) {
+                    List<Integer> into = seen.get(s);
+                    int value = i;
+                    ByteBuf buf = Unpooled.buffer().writeInt(value);
+                    bufs.add(buf);
+                    MessageTypeAndBuffer decoded = new MessageTypeAndBuffer(TYPE, buf, s);
+                    partitions.execute(ctx, decoded, () -> {
+                        threads.add(Thread.currentThread());
+                        into.add(decoded.buf.getInt(0));
+                        done.countDown();
+                    });
+                    // As the decoder's caller does once it returns
+                    buf.release();
+                }
+            }
+            assertTrue("Timed out", done.await(30, TimeUnit.SECONDS));
+            for (int s = 0; s < streams; s++) {
+                for (int i = 0; i < perStream; i++) {
+                    assertEquals("Stream " + s, Integer.valueOf(i), seen.get(s).get(i));
+                }
+            }
+            assertTrue("Streams should be spread over threads: " + threads, threads.size() > 1);
+            // The last task may still be in its finally block
+            Thread.sleep(100);
+            for (ByteBuf buf : bufs) {
+                assertEquals(0, buf.refCnt());
+            }
+        } finally {
+            partitions.run();
+        }
+    }
+
+    @Test
+    public void testSameStreamSameWorker() throws Exception {
+        StreamPartitions partitions = partitions(8);
+        try {
+            ChannelHandlerContext ctx = context();
+            for (int s = 0; s < 64; s++) {
+                assertTrue(partitions.worker(ctx.channel(), s) == partitions.worker(ctx.channel(), s));
+            }
+        } finally {
+            partitions.run();
+        }
+    }
+
+    @Test
+    public void testDisabledByDefault() throws Exception {
+        Settings settings = new SettingsBuilder().build();
+        assertFalse(new StreamPartitions(settings, new MemoryGovernor(settings)).isEnabled());
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.util.HashSet;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class StreamSelectorsTest {
+
+    private static final MessageType PINNED = new MessageType("pinned", 9, 4);
+    private static final MessageType OTHER = new MessageType("other", 9, 5);
+    private static final int STREAMS = 10;
+
+    @Test
+    public void testByKey() {
+        StreamSelector selector = StreamSelectors.byKey();
+        EmbeddedChannel channel = new EmbeddedChannel();
+        Set<Integer> used = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            Message<String> message = OTHER.newMessage("x").withKey("entity-" + i);
+            int stream = selector.select(channel, message, STREAMS);
+            assertTrue(stream >= 0 && stream < STREAMS);
+            assertEquals("Same key, same stream", stream,
+                    selector.select(channel, OTHER.newMessage("y").withKey("entity-" + i), STREAMS));
+            assertTrue(selector.ordered(message));
+            used.add(stream);
+        }
+        assertTrue("Keys should spread over streams: " + used, used.size() > 1);
+        Message<String> unkeyed = OTHER.newMessage("x");
+        assertEquals(StreamSelector.ANY, selector.select(channel, unkeyed, STREAMS));
+        assertFalse(selector.ordered(unkeyed));
+    }
+
+    @Test
+    public void testByType() {
+        StreamSelector selector = StreamSelectors.byType()
+                .pin(PINNED, 4, 3)
+                .otherwise(StreamSelectors.byKey())
+                .build();
+        EmbeddedChannel channel = new EmbeddedChannel();
+        Set<Integer> used = new HashSet<>();
+        for (int i = 0; i < 30; i++) {
+            int stream = selector.select(channel, PINNED.newMessage(i), STREAMS);
+            assertTrue("Outside range: " + stream, stream >= 4 && stream < 7);
+            used.add(stream);
+        }
+        assertEquals(3, used.size());
+        assertTrue(selector.ordered(PINNED.newMessage(1)));
+        // Wraps if the association has fewer streams than the range needs
+        assertTrue(selector.select(channel, PINNED.newMessage(1), 5) < 5);
+        // Unpinned types go to the fallback
+        assertEquals(StreamSelector.ANY, selector.select(channel, OTHER.newMessage(1), STREAMS));
+        assertFalse(selector.ordered(OTHER.newMessage(1)));
+        assertTrue(selector.ordered(OTHER.newMessage(1).withKey(7)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPinTwice() {
+        StreamSelectors.byType().pin(PINNED, 0, 1).pin(PINNED, 1, 1);
+    }
+
+    @Test
+    public void testLeastPending() {
+        StreamSelector selector = StreamSelectors.leastPending();
+        EmbeddedChannel channel = new EmbeddedChannel();
+        assertEquals(0, selector.select(channel, OTHER.newMessage(1), 3));
+        ChannelPromise first = channel.newPromise();
+        selector.onWrite(channel, 0, 1000, first);
+        assertEquals(1, selector.select(channel, OTHER.newMessage(1), 3));
+        ChannelPromise second = channel.newPromise();
+        selector.onWrite(channel, 1, 10, second);
+        assertEquals(2, selector.select(channel, OTHER.newMessage(1), 3));
+        selector.onWrite(channel, 2, 100, channel.newPromise());
+        assertEquals(1, selector.select(channel, OTHER.newMessage(1), 3));
+        first.setSuccess();
+        assertEquals(0, selector.select(channel, OTHER.newMessage(1), 3));
+        assertFalse(selector.ordered(OTHER.newMessage(1)));
+    }
+}
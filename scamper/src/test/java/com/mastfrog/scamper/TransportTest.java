@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_TRANSPORT;
+import com.mastfrog.settings.SettingsBuilder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.sctp.SctpMessage;
+import io.netty.handler.codec.CorruptedFrameException;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks the framing used over TCP and Unix domain sockets, sends messages
+ * through a server over TCP, and compares the throughput of each transport
+ * available here, with and without the fused pipeline, best of three runs
+ * each - which only runs with
+ * <code>-Dscamper.transport.benchmark=true</code>.
+ */
+public class TransportTest {
+
+    private static final MessageType PING = new MessageType("ping", 9, 6);
+    private static final int BENCHMARK_MESSAGES = 100000;
+    private static final int BENCHMARK_ROUNDS = 3;
+    static volatile CountDownLatch received;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testFramingRoundTrip() {
+        EmbeddedChannel out = new EmbeddedChannel(LengthPrefixedFraming.Encoder.INSTANCE);
+        assertTrue(out.writeOutbound(new SctpMessage(0, 300, true, Unpooled.copiedBuffer("hello", StandardCharsets.UTF_8))));
+        assertTrue(out.writeOutbound(new SctpMessage(0, 2, false, Unpooled.copiedBuffer("world!", StandardCharsets.UTF_8))));
+        CompositeByteBuf wire = Unpooled.compositeBuffer();
+        for (ByteBuf buf; (buf = out.readOutbound()) != null;) {
+            wire.addComponent(true, buf);
+        }
+        assertEquals(2 * (4 + 2) + 5 + 6, wire.readableBytes());
+
+        // Delivered a byte at a time, frames still come out whole
+        EmbeddedChannel in = new EmbeddedChannel(new LengthPrefixedFraming.Decoder(1024));
+        while (wire.isReadable()) {
+            in.writeInbound(wire.readRetainedSlice(1));
+        }
+        wire.release();
+        SctpMessage first = in.readInbound();
+        assertEquals(300, first.streamIdentifier());
+        assertTrue(first.isComplete());
+        assertEquals("hello", first.content().toString(StandardCharsets.UTF_8));
+        first.release();
+        SctpMessage second = in.readInbound();
+        assertEquals(2, second.streamIdentifier());
+        assertEquals("world!", second.content().toString(StandardCharsets.UTF_8));
+        second.release();
+        assertNull(in.readInbound());
+        assertFalse(in.finish());
+    }
+
+    @Test(expected = CorruptedFrameException.class)
+    public void testFrameWithoutStreamId() {
+        EmbeddedChannel in = new EmbeddedChannel(new LengthPrefixedFraming.Decoder(1024));
+        in.writeInbound(Unpooled.buffer().writeInt(1).writeByte(7));
+    }
+
+    @Test
+    public void testTransportFromSettings() throws Exception {
+        assertEquals(Transport.SCTP, Transport.of(new SettingsBuilder().build()));
+        assertEquals(Transport.TCP, Transport.of(new SettingsBuilder()
+                .add(SETTINGS_KEY_TRANSPORT, "tcp").build()));
+        assertEquals(Transport.UNIX_DOMAIN_SOCKET, Transport.of(new SettingsBuilder()
+                .add(SETTINGS_KEY_TRANSPORT, "UNIX_DOMAIN_SOCKET").build()));
+        assertNull(Transport.of(new EmbeddedChannel()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadTransport() throws Exception {
+        Transport.of(new SettingsBuilder().add(SETTINGS_KEY_TRANSPORT, "carrier-pigeon").build());
+    }
+
+    @Test
+    public void testSendOverTcp() throws Exception {
+        Server server = new Server(Transport.TCP, false);
+        try {
+            received = new CountDownLatch(50);
+            Sender sender = server.sender();
+            for (int i = 0; i < 50; i++) {
+                sender.send(server.address, PING.newMessage(new Ping(i)));
+            }
+            assertTrue("Timed out", received.await(10, TimeUnit.SECONDS));
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void testTransportBenchmark() throws Exception {
+        assumeTrue("Set -Dscamper.transport.benchmark=true to run", Boolean.getBoolean("scamper.transport.benchmark"));
+        int count = Integer.getInteger("scamper.transport.messages", BENCHMARK_MESSAGES);
+        StringBuilder report = new StringBuilder();
+        for (Transport transport : Transport.values()) {
+            if (!transport.isAvailable()) {
+                report.append(transport).append(": not available here\n");
+                continue;
+            }
+            // Later runs benefit from a warmer JIT, so alternate, and keep
+            // the best of each
+            long[] best = {Long.MAX_VALUE, Long.MAX_VALUE};
+            for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+                for (int fused = 0; fused < 2; fused++) {
+                    best[fused] = Math.min(best[fused], benchmark(transport, fused == 1, count));
+                }
+            }
+            for (int fused = 0; fused < 2; fused++) {
+                report.append(transport).append(fused == 1 ? ", fused pipeline: " : ": ")
+                        .append(count).append(" messages in ")
+                        .append(TimeUnit.NANOSECONDS.toMillis(best[fused])).append("ms, ")
+                        .append(count * TimeUnit.SECONDS.toNanos(1) / best[fused]).append(" per second\n");
+            }
+        }
+        System.out.print(report);
+    }
+
+    private long benchmark(Transport transport, boolean fused, int count) throws Exception {
+        Server server = new Server(transport, fused);
+        try {
+            Sender sender = server.sender();
+            // Connect, and warm up, before timing anything
+            received = new CountDownLatch(1000);
+            for (int i = 0; i < 1000; i++) {
+                sender.send(server.address, PING.newMessage(new Ping(i)));
+            }
+            assertTrue("Timed out", received.await(30, TimeUnit.SECONDS));
+
+            received = new CountDownLatch(count);
+            long then = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                sender.send(server.address, PING.newMessage(new Ping(i)));
+            }
+            assertTrue(transport + " timed out", received.await(2, TimeUnit.MINUTES));
+            return System.nanoTime() - then;
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * A server with a sender in the same injector, sending to it.
+     */
+    private final class Server {
+
+        private final Control<SctpServer> control;
+        private final Address address;
+
+        Server(Transport transport, boolean fused) throws Exception {
+            int port = freePort();
+            String path = new File(tmp.getRoot(), "scamper-" + port + ".sock").getPath();
+            SctpServerAndClientBuilder builder = new SctpServerAndClientBuilder("scamper-transport-test")
+                    .withTransport(transport)
+                    .withSocketPath(path)
+                    .onPort(port)
+                    .noLoggingHandler()
+                    .bind(PING, PingHandler.class);
+            if (fused) {
+                builder.useFusedPipeline();
+            }
+            control = builder.buildServer();
+            control.get().start();
+            address = transport == Transport.UNIX_DOMAIN_SOCKET
+                    ? new Address(path, 0)
+                    : new Address("127.0.0.1", port);
+        }
+
+        Sender sender() {
+            return control.getInjector().getInstance(Sender.class);
+        }
+
+        void shutdown() {
+            control.shutdown();
+        }
+    }
+
+    static final class PingHandler extends MessageHandler<Void, Ping> {
+
+        PingHandler() {
+            super(Ping.class);
+        }
+
+        @Override
+        public Message<Void> onMessage(Message<Ping> data, ChannelHandlerContext ctx) {
+            received.countDown();
+            return null;
+        }
+    }
+
+    public static final class Ping {
+
+        public int index;
+        public String padding = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+
+        public Ping() {
+        }
+
+        Ping(int index) {
+            this.index = index;
+        }
+    }
+}
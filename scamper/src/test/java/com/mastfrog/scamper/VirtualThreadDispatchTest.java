@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import com.mastfrog.giulius.Dependencies;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_VIRTUAL_THREADS_PER_TYPE;
+import com.mastfrog.settings.SettingsBuilder;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.DefaultEventLoop;
+import io.netty.channel.EventLoop;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Test;
+
+/**
+ * Checks that handlers run on virtual threads stay in order within a stream
+ * and within the per-type cap, and compares the time taken by 2,000 slow
+ * handlers on virtual threads and on an event loop.
+ */
+public class VirtualThreadDispatchTest {
+
+    private static final MessageType SLOW = new MessageType("slow", 9, 1);
+    private static final MessageType OTHER = new MessageType("other", 9, 2);
+    private static final int BENCHMARK_MESSAGES = 2000;
+    private static final long HANDLER_MILLIS = 10;
+
+    private static VirtualThreadDispatch dispatch(int maxPerType) throws Exception {
+        return new VirtualThreadDispatch(new SettingsBuilder()
+                .add(SETTINGS_KEY_VIRTUAL_THREADS_PER_TYPE, Integer.toString(maxPerType)).build());
+    }
+
+    private static ChannelHandlerContext context() {
+        return new EmbeddedChannel(new ChannelInboundHandlerAdapter()).pipeline().firstContext();
+    }
+
+    @Test
+    public void testDefaultInjectorShutsDown() throws Exception {
+        // Off by default; shutting down must not touch the missing executor.
+        // Failing shutdown hooks are logged by giulius rather than thrown
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                if (record.getThrown() != null) {
+                    failures.add(record.getThrown());
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Logger giulius = Logger.getLogger("com.mastfrog.giulius");
+        giulius.addHandler(handler);
+        try {
+            Dependencies deps = new SctpServerAndClientBuilder("scamper-vt-test")
+                    .noLoggingHandler()
+                    .buildInjector();
+            assertFalse(deps.getInstance(VirtualThreadDispatch.class).isEnabled());
+            deps.getInstance(Sender.class);
+            deps.shutdown();
+        } finally {
+            giulius.removeHandler(handler);
+        }
+        assertEquals(Collections.emptyList(), failures);
+    }
+
+    @Test
+    public void testOrderKeptWithinEachStream() throws Exception {
+        VirtualThreadDispatch dispatch = dispatch(64);
+        try {
+            ChannelHandlerContext ctx = context();
+            int streams = 8;
+            int perStream = 200;
+            List<List<Integer>> seen = new ArrayList<>();
+            CountDownLatch done = new CountDownLatch(streams * perStream);
+            for (int s = 0; s < streams; s++) {
+                seen.add(Collections.synchronizedList(new ArrayList<>()));
+            }
+            for (int i = 0; i < perStream; i++) {
+                for (int s = 0; s < streams; s++) {
+                    List<Integer> into = seen.get(s);
+                    int value = i;
+                    dispatch.execute(ctx, s * 3, SLOW.newMessage(value), () -> {
+                        if (value % 50 == 0) {
+                            Thread.sleep(5);
+                        }
+                        into.add(value);
+                        done.countDown();
+                    });
+                }
+            }
+            assertTrue("Timed out", done.await(30, TimeUnit.SECONDS));
+            for (int s = 0; s < streams; s++) {
+                for (int i = 0; i < perStream; i++) {
+                    assertEquals("Stream " + s, Integer.valueOf(i), seen.get(s).get(i));
+                }
+            }
+        } finally {
+            dispatch.run();
+        }
+    }
+
+    @Test
+    public void testConcurrencyCappedPerType() throws Exception {
+        VirtualThreadDispatch dispatch = dispatch(4);
+        try {
+            ChannelHandlerContext ctx = context();
+            AtomicInteger running = new AtomicInteger();
+            AtomicInteger maxRunning = new AtomicInteger();
+            AtomicInteger otherRunning = new AtomicInteger();
+            CountDownLatch done = new CountDownLatch(48);
+            for (int i = 0; i < 40; i++) {
+                dispatch.execute(ctx, i, SLOW.newMessage(i), () -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    Thread.sleep(20);
+                    running.decrementAndGet();
+                    done.countDown();
+                });
+            }
+            // Another type is not held up by the first one's cap
+            for (int i = 0; i < 8; i++) {
+                dispatch.execute(ctx, 100 + i, OTHER.newMessage(i), () -> {
+                    otherRunning.incrementAndGet();
+                    done.countDown();
+                });
+            }
+            assertTrue("Timed out", done.await(30, TimeUnit.SECONDS));
+            assertEquals(4, maxRunning.get());
+            assertEquals(8, otherRunning.get());
+        } finally {
+            dispatch.run();
+        }
+    }
+
+    @Test
+    public void testSlowHandlersBenchmark() throws Exception {
+        assumeTrue("Needs a JDK with virtual threads", VirtualThreadDispatch.virtualThreadsAvailable());
+        VirtualThreadDispatch dispatch = dispatch(BENCHMARK_MESSAGES);
+        try {
+            ChannelHandlerContext ctx = context();
+            CountDownLatch done = new CountDownLatch(BENCHMARK_MESSAGES);
+            long then = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_MESSAGES; i++) {
+                dispatch.execute(ctx, i, SLOW.newMessage(i), () -> {
+                    Thread.sleep(HANDLER_MILLIS);
+                    done.countDown();
+                });
+            }
+            assertTrue("Timed out", done.await(2, TimeUnit.MINUTES));
+            long virtual = System.nanoTime() - then;
+
+            // On the event loop, the same handlers run one after another
+            EventLoop loop = new DefaultEventLoop();
+            try {
+                CountDownLatch serial = new CountDownLatch(BENCHMARK_MESSAGES);
+                then = System.nanoTime();
+                for (int i = 0; i < BENCHMARK_MESSAGES; i++) {
+                    loop.execute(() -> {
+                        try {
+                            Thread.sleep(HANDLER_MILLIS);
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                        serial.countDown();
+                    });
+                }
+                assertTrue("Timed out", serial.await(2, TimeUnit.MINUTES));
+            } finally {
+                loop.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+            }
+            long eventLoop = System.nanoTime() - then;
+            System.out.println(BENCHMARK_MESSAGES + " handlers taking " + HANDLER_MILLIS
+                    + "ms each: " + TimeUnit.NANOSECONDS.toMillis(virtual)
+                    + "ms on virtual threads, " + TimeUnit.NANOSECONDS.toMillis(eventLoop)
+                    + "ms on one event loop");
+            assertTrue(virtual * 10 < eventLoop);
+        } finally {
+            dispatch.run();
+        }
+    }
+}
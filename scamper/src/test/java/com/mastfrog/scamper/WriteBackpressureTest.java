@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_WRITE_BUFFER_HIGH_WATER_MARK;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_WRITE_BUFFER_LOW_WATER_MARK;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_WRITE_POLICY;
+import com.mastfrog.settings.SettingsBuilder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.nio.channels.ClosedChannelException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class WriteBackpressureTest {
+
+    private WriteBackpressure backpressure() throws Exception {
+        return new WriteBackpressure(new SettingsBuilder()
+                .add(SETTINGS_KEY_WRITE_BUFFER_LOW_WATER_MARK, "8")
+                .add(SETTINGS_KEY_WRITE_BUFFER_HIGH_WATER_MARK, "16")
+                .add(SETTINGS_KEY_WRITE_POLICY, "wait").build());
+    }
+
+    @Test
+    public void testHeldUntilWritable() throws Exception {
+        WriteBackpressure backpressure = backpressure();
+        assertEquals(WritePolicy.WAIT, backpressure.defaultPolicy());
+        EmbeddedChannel channel = new EmbeddedChannel(backpressure);
+        assertEquals(8, channel.config().getWriteBufferLowWaterMark());
+        assertEquals(16, channel.config().getWriteBufferHighWaterMark());
+
+        channel.write(Unpooled.buffer().writeZero(32));
+        assertFalse(channel.isWritable());
+        ChannelFuture held = backpressure.writeWhenWritable(channel, Unpooled.buffer().writeZero(4));
+        assertFalse("Should be held while unwritable", held.isDone());
+        assertTrue(backpressure.pendingBytes(channel) >= 36);
+
+        channel.flush();
+        assertTrue(held.isSuccess());
+        assertEquals(0, backpressure.pendingBytes(channel));
+        ByteBuf first = channel.readOutbound();
+        ByteBuf second = channel.readOutbound();
+        assertEquals(32, first.readableBytes());
+        assertEquals(4, second.readableBytes());
+        first.release();
+        second.release();
+    }
+
+    @Test
+    public void testHeldWritesFailOnClose() throws Exception {
+        WriteBackpressure backpressure = backpressure();
+        EmbeddedChannel channel = new EmbeddedChannel(backpressure);
+        channel.write(Unpooled.buffer().writeZero(32));
+        ByteBuf buf = Unpooled.buffer().writeZero(4);
+        ChannelFuture held = backpressure.writeWhenWritable(channel, buf);
+        channel.close();
+        assertTrue(held.cause() instanceof ClosedChannelException);
+        assertEquals(0, buf.refCnt());
+    }
+
+    @Test
+    public void testHeldBytesCapped() throws Exception {
+        WriteBackpressure backpressure = backpressure();
+        EmbeddedChannel channel = new EmbeddedChannel(backpressure);
+        channel.write(Unpooled.buffer().writeZero(32));
+        // A message bigger than the high water mark is still held
+        ChannelFuture big = backpressure.writeWhenWritable(channel, Unpooled.buffer().writeZero(20));
+        assertFalse(big.isDone());
+        ByteBuf refused = Unpooled.buffer().writeZero(1);
+        ChannelFuture over = backpressure.writeWhenWritable(channel, refused);
+        assertTrue(over.cause() instanceof WriteBufferFullException);
+        assertEquals(0, refused.refCnt());
+
+        channel.flush();
+        assertTrue(big.isSuccess());
+        // Up to 16 bytes are held, and no more
+        channel.write(Unpooled.buffer().writeZero(32));
+        ChannelFuture[] held = new ChannelFuture[4];
+        for (int i = 0; i < held.length; i++) {
+            held[i] = backpressure.writeWhenWritable(channel, Unpooled.buffer().writeZero(4));
+            assertFalse("Held " + i, held[i].isDone());
+        }
+        assertTrue(backpressure.writeWhenWritable(channel, Unpooled.buffer().writeZero(4))
+                .cause() instanceof WriteBufferFullException);
+
+        channel.flush();
+        for (ChannelFuture f : held) {
+            assertTrue(f.isSuccess());
+        }
+        for (ByteBuf buf; (buf = channel.readOutbound()) != null;) {
+            buf.release();
+        }
+    }
+
+    @Test
+    public void testDefaults() throws Exception {
+        WriteBackpressure backpressure = new WriteBackpressure(new SettingsBuilder().build());
+        assertEquals(WritePolicy.IGNORE, backpressure.defaultPolicy());
+        EmbeddedChannel channel = new EmbeddedChannel(backpressure);
+        ChannelFuture f = backpressure.writeWhenWritable(channel, "hello");
+        assertTrue(f.isSuccess());
+        assertEquals("hello", channel.readOutbound());
+    }
+}
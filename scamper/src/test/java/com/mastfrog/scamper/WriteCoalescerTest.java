@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper;
+
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_COALESCE_MAX_BATCH;
+import static com.mastfrog.scamper.ProtocolModule.SETTINGS_KEY_COALESCE_MICROS;
+import com.mastfrog.settings.SettingsBuilder;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class WriteCoalescerTest {
+
+    private static final int SOCKET_WRITERS = 4;
+    private static final int SOCKET_MESSAGES = 5000;
+
+    @Test
+    public void testWritesAreBatched() throws Exception {
+        WriteCoalescer coalescer = new WriteCoalescer(new SettingsBuilder()
+                .add(SETTINGS_KEY_COALESCE_MICROS, "0").build());
+        assertTrue(coalescer.isEnabled());
+        FlushCounter counter = new FlushCounter();
+        EmbeddedChannel channel = new EmbeddedChannel(counter);
+        List<ChannelFuture> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(coalescer.write(channel, "msg-" + i));
+        }
+        assertNull("Nothing should be written until the event loop drains",
+                channel.readOutbound());
+        assertFalse(futures.get(0).isDone());
+        channel.runPendingTasks();
+        for (int i = 0; i < 10; i++) {
+            assertEquals("msg-" + i, channel.readOutbound());
+            assertTrue(futures.get(i).isSuccess());
+        }
+        assertEquals(1, counter.flushes);
+
+        coalescer.write(channel, "again");
+        channel.runPendingTasks();
+        assertEquals("again", channel.readOutbound());
+        assertEquals(2, counter.flushes);
+    }
+
+    @Test
+    public void testFlushesAtMaxBatch() throws Exception {
+        WriteCoalescer coalescer = new WriteCoalescer(new SettingsBuilder()
+                .add(SETTINGS_KEY_COALESCE_MICROS, "0")
+                .add(SETTINGS_KEY_COALESCE_MAX_BATCH, "4").build());
+        FlushCounter counter = new FlushCounter();
+        EmbeddedChannel channel = new EmbeddedChannel(counter);
+        for (int i = 0; i < 10; i++) {
+            coalescer.write(channel, "msg-" + i);
+        }
+        channel.runPendingTasks();
+        assertEquals(3, counter.flushes);
+    }
+
+    @Test
+    public void testFewerFlushesOverSocket() throws Exception {
+        int direct = flushesOverSocket(null);
+        int coalesced = flushesOverSocket(new WriteCoalescer(new SettingsBuilder()
+                .add(SETTINGS_KEY_COALESCE_MICROS, "1000").build()));
+        System.out.println(SOCKET_WRITERS * SOCKET_MESSAGES + " writes from " + SOCKET_WRITERS
+                + " threads over loopback TCP: " + direct + " flushes with writeAndFlush(), "
+                + coalesced + " coalesced");
+        assertEquals(SOCKET_WRITERS * SOCKET_MESSAGES, direct);
+        assertTrue("Expected far fewer flushes, got " + coalesced,
+                coalesced < SOCKET_WRITERS * SOCKET_MESSAGES / 10);
+    }
+
+    /**
+     * Write from several threads to a real socket, either coalesced or with
+     * writeAndFlush(), wait for every byte to arrive, and count the flushes.
+     */
+    private static int flushesOverSocket(WriteCoalescer coalescer) throws Exception {
+        int total = SOCKET_WRITERS * SOCKET_MESSAGES;
+        NioEventLoopGroup group = new NioEventLoopGroup(1);
+        try {
+            CountDownLatch received = new CountDownLatch(total * 8);
+            Channel server = new ServerBootstrap().group(group)
+                    .channel(NioServerSocketChannel.class)
+                    .childHandler(new ChannelInboundHandlerAdapter() {
+                        @Override
+                        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                            ByteBuf buf = (ByteBuf) msg;
+                            for (int i = 0; i < buf.readableBytes(); i++) {
+                                received.countDown();
+                            }
+                            buf.release();
+                        }
+                    }).bind("127.0.0.1", 0).sync().channel();
+            FlushCounter counter = new FlushCounter();
+            Channel client = new Bootstrap().group(group)
+                    .channel(NioSocketChannel.class)
+                    .handler(counter)
+                    .connect(server.localAddress()).sync().channel();
+            Thread[] writers = new Thread[SOCKET_WRITERS];
+            for (int t = 0; t < writers.length; t++) {
+                writers[t] = new Thread(() -> {
+                    for (int i = 0; i < SOCKET_MESSAGES; i++) {
+                        ByteBuf msg = Unpooled.buffer(8).writeLong(i);
+                        if (coalescer == null) {
+                            client.writeAndFlush(msg);
+                        } else {
+                            coalescer.write(client, msg);
+                        }
+                    }
+                });
+                writers[t].start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            assertTrue("Timed out", received.await(1, TimeUnit.MINUTES));
+            // Read on the event loop, where flushes are counted
+            int result = client.eventLoop().submit(() -> counter.flushes).get();
+            client.close().sync();
+            server.close().sync();
+            return result;
+        } finally {
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS).await();
+        }
+    }
+
+    @Test
+    public void testDisabledByDefault() throws Exception {
+        assertFalse(new WriteCoalescer(new SettingsBuilder().build()).isEnabled());
+    }
+
+    static final class FlushCounter extends ChannelOutboundHandlerAdapter {
+
+        int flushes;
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) throws Exception {
+            flushes++;
+            super.flush(ctx);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2014 Tim Boudreau
+ *
+ * This file is part of Scamper.
+ *
+ * Scamper is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mastfrog.scamper.codec;
+
+import com.mastfrog.scamper.MessageType;
+import com.mastfrog.scamper.MessageTypeAndBuffer;
+import com.mastfrog.scamper.MessageTypeRegistry;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.lang.reflect.Constructor;
+import java.util.Collections;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+public class RawMessageCodecTest {
+
+    static final MessageType TYPE = new MessageType("x", 5, 7);
+
+    @Test
+    public void testHeaderWrittenInPlaceDecodes() throws Exception {
+        RawMessageCodec codec = new RawMessageCodec(null, registry(TYPE));
+        int headerLength = codec.headerLength(TYPE);
+        assertEquals(3, headerLength);
+
+        ByteBuf buf = Unpooled.buffer();
+        buf.writeZero(headerLength);
+        buf.writeLong(1234567L);
+        ByteBuf encoded = codec.encodeHeader(TYPE, buf, null);
+        assertSame(buf, encoded);
+        assertEquals(0, encoded.readerIndex());
+
+        MessageTypeAndBuffer decoded = codec.decode(encoded, null, 0);
+        assertSame(TYPE, decoded.messageType);
+        assertEquals(1234567L, decoded.buf.readLong());
+    }
+
+    private static MessageTypeRegistry registry(MessageType type) throws Exception {
+        Constructor<MessageTypeRegistry> c = MessageTypeRegistry.class.getDeclaredConstructor(Set.class);
+        c.setAccessible(true);
+        return c.newInstance(Collections.singleton(type));
+    }
+}